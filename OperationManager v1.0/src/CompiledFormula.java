@@ -0,0 +1,731 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.DoubleBinaryOperator;
+import src.FormulaUtility.TypeWrapper;
+import src.FormulaUtility.Type;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+import src.FormulaUtility.SpecialOperation;
+import src.FormulaUtility.Precision;
+
+/**
+ * Immutable, evaluable form of a Formula.
+ * The token sequence of the Formula is turned once into an expression tree with a primitive
+ * constant pool, so evaluate(x, y) does no String work and allocates nothing.
+ * Order of operations matches Formula.solve: special operations bind to the value right after them,
+ * then ^, then * and /, then + and -, all left to right.
+ * Variables are resolved once, at compile time, to slots of a double [] frame (see getVariables and bind):
+ * evaluate(frame) reads frame[slot] directly, with no lookup and no allocation, whatever the number of variables.
+ * evaluate(x, y) and the xs / ys batch methods are for formulas that only use x and y.
+ * CompiledFormula is immutable and safe to share between threads.
+ */
+public class CompiledFormula implements DoubleBinaryOperator {
+   /** Number of points evaluated per pass over the tree in the batch methods. */
+   public static final int BATCH_SIZE = 1024;
+   /**
+    * Largest depth of an expression tree, leaves included. The passes over the tree are recursive, so a deeper
+    * tree is rejected with InvalidParameterException when it is built rather than overflowing the stack when used.
+    * At this depth every pass, parsing included, fits in half of the default 1 MB thread stack.
+    */
+   public static final int MAX_DEPTH = 500;
+
+   private final Node root;
+   private final double [] constants;
+   private final Variable [] variables;
+   private final boolean xy;
+   private final int scratchLevels;
+
+   /**
+    * Compiles the given Formula. The Formula itself is left untouched.
+    * @param f: The Formula to compile
+    */
+   public CompiledFormula (Formula f) {
+      TreeBuilder builder = new TreeBuilder(f);
+      root = builder.build();
+      constants = builder.constants;
+      variables = builder.slots.toArray(new Variable [builder.slots.size()]);
+      xy = isXY(root);
+      scratchLevels = root.scratchLevels();
+   }
+
+   /**
+    * Wraps an already built tree, used by the passes that rewrite a CompiledFormula.
+    * @param variables: frame layout, the variable of every slot used by the VariableNodes of the tree
+    */
+   CompiledFormula (Node root, Variable [] variables) {
+      this(root, collectConstants(root), variables);
+   }
+
+   /**
+    * Wraps a tree whose constant pool is already known, in the order the constants appear in the tree.
+    */
+   CompiledFormula (Node root, double [] constants, Variable [] variables) {
+      this.root = root;
+      this.constants = constants;
+      this.variables = variables;
+      xy = isXY(root);
+      scratchLevels = root.scratchLevels();
+   }
+
+   private static boolean isXY (Node n) {
+      if (n instanceof VariableNode) return ((VariableNode) n).variable == Variable.X || ((VariableNode) n).variable == Variable.Y;
+      if (n instanceof SpecialNode) return isXY(((SpecialNode) n).child);
+      if (n instanceof BiNode) return isXY(((BiNode) n).left) && isXY(((BiNode) n).right);
+      return true;
+   }
+
+   private static InvalidParameterException notXY () {
+      return new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y, evaluate it with a frame.");
+   }
+
+   private static double [] collectConstants (Node root) {
+      ArrayList<Double> pool = new ArrayList<Double>();
+      collectConstants(root, pool);
+      double [] ans = new double [pool.size()];
+      for (int i = 0; i < ans.length; i++) ans[i] = pool.get(i);
+      return ans;
+   }
+
+   private static void collectConstants (Node n, ArrayList<Double> pool) {
+      if (n instanceof Constant) pool.add(((Constant) n).value);
+      else if (n instanceof SpecialNode) collectConstants(((SpecialNode) n).child, pool);
+      else if (n instanceof BiNode) {
+         collectConstants(((BiNode) n).left, pool);
+         collectConstants(((BiNode) n).right, pool);
+      }
+   }
+
+   /**
+    * Evaluates the formula for the given variable values.
+    * @return same value as Formula.solve(x, y).
+    */
+   public double evaluate (double x, double y) {
+      if (FormulaMetrics.ENABLED) FormulaMetrics.evaluated();
+      if (!xy) throw notXY();
+      return root.evaluate(x, y);
+   }
+
+   public double evaluate () {
+      return evaluate(0,0);
+   }
+
+   public double applyAsDouble (double x, double y) {
+      if (FormulaMetrics.ENABLED) FormulaMetrics.evaluated();
+      if (!xy) throw notXY();
+      return root.evaluate(x, y);
+   }
+
+   /**
+    * Evaluates the formula with the value of every variable taken from its slot of the frame.
+    * @param frame: at least getFrameSize() values, frame[slotOf(v)] being the value of v
+    */
+   public double evaluate (double [] frame) {
+      if (FormulaMetrics.ENABLED) FormulaMetrics.evaluated();
+      if (frame.length < variables.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return root.evaluate(frame);
+   }
+
+   /**
+    * @return variables of the formula indexed by slot. Unless set with bind, slots follow the order in which
+    * the variables first appear in the source.
+    */
+   public Variable [] getVariables () {
+      return variables.clone();
+   }
+
+   /** Number of slots a frame needs. */
+   public int getFrameSize () {return variables.length;}
+
+   /**
+    * @return slot of the variable, or -1 if the formula does not have it.
+    */
+   public int slotOf (Variable v) {
+      for (int i = 0; i < variables.length; i++) {
+         if (variables[i] == v) return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Returns the same formula reading its variables from the given frame layout, so formulas that share
+    * variables can share frames.
+    * @param layout: variables in slot order, with no duplicates. Must contain every variable the formula uses, may contain others.
+    */
+   public CompiledFormula bind (Variable... layout) {
+      int [] slots = new int [variables.length];
+      for (int i = 0; i < variables.length; i++) slots[i] = -1;
+      for (int j = 0; j < layout.length; j++) {
+         for (int k = 0; k < j; k++) {
+            if (layout[k] == layout[j]) throw new InvalidParameterException("Incorrect numerical value in input: variable " + layout[j] + " appears twice in the layout.");
+         }
+         int slot = slotOf(layout[j]);
+         if (slot >= 0) slots[slot] = j;
+      }
+      return new CompiledFormula(rebind(root, slots), constants, layout.clone());
+   }
+
+   private static Node rebind (Node n, int [] slots) {
+      if (n instanceof VariableNode) {
+         VariableNode v = (VariableNode) n;
+         if (slots[v.slot] < 0) throw new InvalidParameterException("Incorrect numerical value in input: variable " + v.variable + " is missing from the layout.");
+         return slots[v.slot] == v.slot ? v : new VariableNode(v.variable, slots[v.slot]);
+      }
+      if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         Node child = rebind(s.child, slots);
+         return child == s.child ? s : new SpecialNode(s.operation, child, s.precision);
+      }
+      if (n instanceof BiNode) {
+         BiNode b = (BiNode) n;
+         Node left = rebind(b.left, slots);
+         Node right = rebind(b.right, slots);
+         return (left == b.left && right == b.right) ? b : BiNode.create(b.operation, left, right);
+      }
+      return n;
+   }
+
+   /**
+    * Generates a JVM class for the formula, so the whole expression can be inlined by the JIT.
+    * @return generated DoubleBinaryOperator, or this CompiledFormula if some operation has no bytecode equivalent.
+    */
+   public DoubleBinaryOperator toBytecode () {
+      if (!FormulaClassWriter.isSupported(this)) return this;
+      return FormulaClassWriter.generate(this);
+   }
+
+   /**
+    * Evaluates the formula for every (xs[i], ys[i]) pair and stores the result in out[i].
+    * @param xs: x values
+    * @param ys: y values, at least as long as xs
+    * @param out: results, at least as long as xs
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out) {
+      evaluate(xs, ys, out, 0, xs.length);
+   }
+
+   /**
+    * Evaluates the formula for the pairs (xs[i], ys[i]) with offset <= i < offset + length,
+    * storing the result in out[i]. The tree is walked once per block of BATCH_SIZE points,
+    * each node running a primitive loop over the whole block.
+    * @param offset: first index used in xs, ys and out
+    * @param length: number of points to evaluate
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out, int offset, int length) {
+      evaluate(xs, ys, offset, out, offset, length);
+   }
+
+   /**
+    * Evaluates the pairs (xs[i], ys[i]) with inputOffset <= i < inputOffset + length,
+    * storing the results in out starting at outputOffset.
+    */
+   public void evaluate (double [] xs, double [] ys, int inputOffset, double [] out, int outputOffset, int length) {
+      if (inputOffset < 0 || outputOffset < 0 || length < 0 || inputOffset + length > xs.length || inputOffset + length > ys.length || outputOffset + length > out.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      if (!xy) throw notXY();
+      double [][] columns = new double [variables.length][];
+      for (int i = 0; i < variables.length; i++) columns[i] = variables[i] == Variable.X ? xs : ys;
+      evaluateColumns(columns, inputOffset, out, outputOffset, length);
+   }
+
+   /**
+    * Evaluates the points offset <= i < offset + length of a columnar frame: columns[slotOf(v)][i] is the
+    * value of v at point i. Results go to out[i].
+    */
+   public void evaluate (double [][] columns, double [] out, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > out.length || columns.length < variables.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < variables.length; i++) {
+         if (columns[i] == null || offset + length > columns[i].length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      }
+      evaluateColumns(columns, offset, out, offset, length);
+   }
+
+   private void evaluateColumns (double [][] columns, int inputOffset, double [] out, int outputOffset, int length) {
+      long start = FormulaMetrics.ENABLED ? System.nanoTime() : 0;
+      double [][] scratch = new double [scratchLevels][Math.min(length, BATCH_SIZE)];
+      for (int done = 0; done < length; done += BATCH_SIZE) {
+         int n = Math.min(BATCH_SIZE, length - done);
+         root.evaluate(columns, inputOffset + done, out, outputOffset + done, n, scratch, 0);
+      }
+      if (FormulaMetrics.ENABLED) FormulaMetrics.evaluatedBatch(start, length);
+   }
+
+   /**
+    * Returns a copy of the constant pool, in the order the numbers appear in the source formula.
+    */
+   public double [] getConstants () {
+      return constants.clone();
+   }
+
+   /**
+    * Folds constant subtrees and applies identities that keep every IEEE result unchanged
+    * (see FormulaOptimizer).
+    * @return smaller CompiledFormula with the same results, or this one if nothing could be simplified.
+    */
+   public CompiledFormula optimize () {
+      Node optimized = FormulaOptimizer.optimize(root);
+      return optimized == root ? this : new CompiledFormula(optimized, variables);
+   }
+
+   /**
+    * Partially evaluates the formula for a fixed value of one variable. Every subtree that only depends on
+    * that variable and constants is computed once here, so loops that keep the variable fixed only evaluate the rest.
+    * @return residual formula, which ignores the specialized variable and gives the same results. The frame layout is kept.
+    */
+   public CompiledFormula specialize (Variable v, double value) {
+      Node replaced = substitute(root, new Variable [] {v}, new Node [] {new Constant(value)});
+      return new CompiledFormula(FormulaOptimizer.optimize(replaced), variables);
+   }
+
+   /**
+    * Replaces every occurrence of vs[i] with replacements[i], all at the same time, sharing the unchanged subtrees.
+    */
+   static Node substitute (Node n, Variable [] vs, Node [] replacements) {
+      if (n instanceof VariableNode) {
+         for (int i = 0; i < vs.length; i++) {
+            if (((VariableNode) n).variable == vs[i]) return replacements[i];
+         }
+         return n;
+      }
+      if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         Node child = substitute(s.child, vs, replacements);
+         return child == s.child ? s : new SpecialNode(s.operation, child, s.precision);
+      }
+      if (n instanceof BiNode) {
+         BiNode b = (BiNode) n;
+         Node left = substitute(b.left, vs, replacements);
+         Node right = substitute(b.right, vs, replacements);
+         return (left == b.left && right == b.right) ? b : BiNode.create(b.operation, left, right);
+      }
+      return n;
+   }
+
+   /**
+    * Replaces every occurrence of v with the formula g. The tree of g is spliced in as it is, without going
+    * through text, and shared between the occurrences.
+    * @return composed formula. Its frame layout is the one of this formula (v keeps its slot, now unused, as in
+    * specialize) followed by the variables of g this formula does not have. This formula if it does not use v.
+    */
+   public CompiledFormula substitute (Variable v, CompiledFormula g) {
+      return substitute(new Variable [] {v}, new CompiledFormula [] {g});
+   }
+
+   /**
+    * Composition f(gx, gy): replaces x with gx and y with gy at the same time, so the x and y of gx and gy are
+    * not replaced again. Same layout rules as substitute.
+    */
+   public CompiledFormula compose (CompiledFormula gx, CompiledFormula gy) {
+      return substitute(new Variable [] {Variable.X, Variable.Y}, new CompiledFormula [] {gx, gy});
+   }
+
+   private CompiledFormula substitute (Variable [] vs, CompiledFormula [] gs) {
+      Layout layout = new Layout(variables);
+      Node [] replacements = new Node [gs.length];
+      for (int i = 0; i < gs.length; i++) replacements[i] = layout.add(gs[i]);
+      Node replaced = substitute(root, vs, replacements);
+      return replaced == root ? this : new CompiledFormula(replaced, layout.toArray());
+   }
+
+   /**
+    * Left to right chain parts[0] z parts[1] z ... z parts[n - 1], the tree the parser builds for
+    * "(p0) z (p1) z ... z (pn-1)", without going through text. The trees of the parts are shared, not copied,
+    * and the whole chain is built in one pass, so joining N fragments costs time linear in N.
+    * When the chain would be deeper than MAX_DEPTH, ADD and MULT parts are grouped pairwise into a balanced tree
+    * instead, whose depth grows with log N: its results can differ from the chain in the last bits. Other operations
+    * throw InvalidParameterException.
+    * @return formula whose frame layout is the variables of the parts, in order of first appearance.
+    */
+   public static CompiledFormula combine (Operation z, CompiledFormula... parts) {
+      if (parts.length == 0) throw new InvalidParameterException("Incorrect numerical value in input.");
+      Layout layout = new Layout(parts[0].variables);
+      Node [] roots = new Node [parts.length];
+      roots[0] = parts[0].root;
+      int constantCount = parts[0].constants.length;
+      int chainDepth = roots[0].depth;
+      for (int i = 1; i < parts.length; i++) {
+         roots[i] = layout.add(parts[i]);
+         constantCount += parts[i].constants.length;
+         chainDepth = Math.max(chainDepth, roots[i].depth) + 1;
+      }
+      Node ans = roots[0];
+      if (chainDepth > MAX_DEPTH && (z == Operation.ADD || z == Operation.MULT)) ans = balanced(z, roots);
+      else {
+         for (int i = 1; i < roots.length; i++) ans = BiNode.create(z, ans, roots[i]);
+      }
+      double [] constants = new double [constantCount];
+      int k = 0;
+      for (CompiledFormula f : parts) {
+         System.arraycopy(f.constants, 0, constants, k, f.constants.length);
+         k += f.constants.length;
+      }
+      return new CompiledFormula(ans, constants, layout.toArray());
+   }
+
+   /**
+    * Joins neighbours two by two until one node is left, keeping the nodes in order from left to right.
+    */
+   private static Node balanced (Operation z, Node [] nodes) {
+      Node [] level = nodes.clone();
+      for (int count = level.length; count > 1; count = (count + 1) / 2) {
+         for (int i = 0; i < count / 2; i++) level[i] = BiNode.create(z, level[2 * i], level[2 * i + 1]);
+         if (count % 2 == 1) level[count / 2] = level[count - 1];
+      }
+      return level[0];
+   }
+
+   /**
+    * @return z(f), sharing the tree of f.
+    */
+   public static CompiledFormula apply (SpecialOperation z, CompiledFormula f) {
+      return new CompiledFormula(new SpecialNode(z, f.root), f.constants, f.variables);
+   }
+
+   /** Formula made of a single number, to build formulas with combine. */
+   public static CompiledFormula constant (double value) {
+      return new CompiledFormula(new Constant(value), new double [] {value}, new Variable [0]);
+   }
+
+   /** Formula made of a single variable, to build formulas with combine. */
+   public static CompiledFormula variable (Variable v) {
+      return new CompiledFormula(new VariableNode(v, 0), new double [0], new Variable [] {v});
+   }
+
+   /**
+    * Frame layout being merged from several formulas: the variables already there keep their slots,
+    * the others are appended in order of first appearance.
+    */
+   private static final class Layout {
+      private final ArrayList<Variable> variables = new ArrayList<Variable>();
+      private final HashMap<Variable, Integer> slots = new HashMap<Variable, Integer>();
+
+      private Layout (Variable [] initial) {
+         for (Variable v : initial) slot(v);
+      }
+
+      private int slot (Variable v) {
+         Integer ans = slots.get(v);
+         if (ans != null) return ans;
+         slots.put(v, variables.size());
+         variables.add(v);
+         return variables.size() - 1;
+      }
+
+      /**
+       * Adds the variables of f and returns its tree reading them from this layout,
+       * the tree itself when the slots are unchanged.
+       */
+      private Node add (CompiledFormula f) {
+         int [] map = new int [f.variables.length];
+         boolean same = true;
+         for (int i = 0; i < map.length; i++) {
+            map[i] = slot(f.variables[i]);
+            same &= map[i] == i;
+         }
+         return same ? f.root : rebind(f.root, map);
+      }
+
+      private Variable [] toArray () {
+         return variables.toArray(new Variable [variables.size()]);
+      }
+   }
+
+   /**
+    * Returns the same formula with every special operation computed at the given precision.
+    * FAST evaluates sin, cos, tan, ln and log with FastMath, within FastMath.ERROR of the exact results, in every
+    * evaluation path (evaluate, batches, toBytecode, FormulaBatch). VectorFormula keeps its vector math library.
+    * @return new CompiledFormula, or this one if all its special operations already have that precision.
+    */
+   public CompiledFormula withPrecision (Precision p) {
+      Node converted = withPrecision(root, p);
+      return converted == root ? this : new CompiledFormula(converted, constants, variables);
+   }
+
+   private static Node withPrecision (Node n, Precision p) {
+      if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         Node child = withPrecision(s.child, p);
+         return (child == s.child && s.precision == p) ? s : new SpecialNode(s.operation, child, p);
+      }
+      if (n instanceof BiNode) {
+         BiNode b = (BiNode) n;
+         Node left = withPrecision(b.left, p);
+         Node right = withPrecision(b.right, p);
+         return (left == b.left && right == b.right) ? b : BiNode.create(b.operation, left, right);
+      }
+      return n;
+   }
+
+   /**
+    * Number of nodes (constants, variables and operations) in the expression tree.
+    */
+   public int size () {
+      return size(root);
+   }
+
+   private static int size (Node n) {
+      if (n instanceof SpecialNode) return 1 + size(((SpecialNode) n).child);
+      if (n instanceof BiNode) return 1 + size(((BiNode) n).left) + size(((BiNode) n).right);
+      return 1;
+   }
+
+   Node getRoot () {return root;}
+
+   public String toString () {
+      return root.toString();
+   }
+
+   /**
+    * Builds the expression tree by walking the TypeWrapper sequence of a Formula once,
+    * one method per order of operation.
+    */
+   private static class TreeBuilder {
+      private final TypeWrapper [] formula;
+      private final Operation [] operations;
+      private final Variable [] variables;
+      private final SpecialOperation [] specialOperations;
+      private final double [] constants;
+      private final ArrayList<Variable> slots = new ArrayList<Variable>();
+      private int position = 0;
+
+      private TreeBuilder (Formula f) {
+         formula = f.getFunction();
+         operations = f.getOperations();
+         variables = f.getVariables();
+         specialOperations = f.getSpecialOperations();
+         Double [] numbers = f.getNumbers();
+         constants = new double [numbers.length];
+         for (int i = 0; i < numbers.length; i++) constants[i] = numbers[i];
+      }
+
+      private Node build () {
+         Node ans = buildOrder(Operation.numOfOrders);
+         if (position != formula.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+         return ans;
+      }
+
+      private Node buildOrder (int order) {
+         if (order == 0) return buildUnary();
+         Node ans = buildOrder(order - 1);
+         while (position < formula.length && formula[position].getType() == Type.OP) {
+            Operation op = operations[formula[position].getIndex()];
+            if (op.getOrder() != order) break;
+            position++;
+            ans = BiNode.create(op, ans, buildOrder(order - 1));
+         }
+         return ans;
+      }
+
+      private Node buildUnary () {
+         if (position >= formula.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+         TypeWrapper t = formula[position];
+         switch (t.getType()) {
+            case S_OP :
+               position++;
+               return new SpecialNode(specialOperations[t.getIndex()], buildUnary());
+            case NUM :
+               position++;
+               return new Constant(constants[t.getIndex()]);
+            case VAR :
+               position++;
+               Variable v = variables[t.getIndex()];
+               int slot = slots.indexOf(v);
+               if (slot < 0) {
+                  slot = slots.size();
+                  slots.add(v);
+               }
+               return new VariableNode(v, slot);
+            case O_SEP :
+               position++;
+               Node ans = buildOrder(Operation.numOfOrders);
+               if (position >= formula.length || formula[position].getType() != Type.C_SEP) throw new InvalidParameterException("Incorrect numerical value in input.");
+               position++;
+               return ans;
+            default : throw new InvalidParameterException("Incorrect numerical value in input.");
+         }
+      }
+   }
+
+   /**
+    * Node of the expression tree. Nodes are immutable, so trees can be shared between threads.
+    */
+   abstract static class Node {
+      /** Number of nodes on the longest path from this node down to a leaf, this node included. */
+      final int depth;
+
+      Node (int depth) {
+         if (depth > MAX_DEPTH) throw new InvalidParameterException("Incorrect numerical value in input: formula deeper than " + MAX_DEPTH + " levels.");
+         this.depth = depth;
+      }
+
+      abstract double evaluate (double x, double y);
+
+      abstract double evaluate (double [] frame);
+
+      /**
+       * Evaluates n points starting at index from of the columns (one per slot) into dst, starting at dst[to].
+       * Intermediate results of child nodes go to scratch[level] and deeper.
+       */
+      abstract void evaluate (double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level);
+
+      /**
+       * Number of scratch buffers needed by the batch evaluation of this node.
+       */
+      int scratchLevels () {return 0;}
+   }
+
+   static final class Constant extends Node {
+      final double value;
+      Constant (double value) {
+         super(1);
+         this.value = value;
+      }
+      double evaluate (double x, double y) {return value;}
+      double evaluate (double [] frame) {return value;}
+      void evaluate (double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level) {
+         Arrays.fill(dst, to, to + n, value);
+      }
+      public String toString () {return "" + value;}
+   }
+
+   static final class VariableNode extends Node {
+      final Variable variable;
+      final int slot;
+      VariableNode (Variable variable, int slot) {
+         super(1);
+         this.variable = variable;
+         this.slot = slot;
+      }
+      double evaluate (double x, double y) {return variable == Variable.X ? x : y;}
+      double evaluate (double [] frame) {return frame[slot];}
+      void evaluate (double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level) {
+         System.arraycopy(columns[slot], from, dst, to, n);
+      }
+      public String toString () {return variable.toString();}
+   }
+
+   static final class SpecialNode extends Node {
+      final SpecialOperation operation;
+      final Node child;
+      final Precision precision;
+      SpecialNode (SpecialOperation operation, Node child) {
+         this(operation, child, Precision.EXACT);
+      }
+      SpecialNode (SpecialOperation operation, Node child, Precision precision) {
+         super(child.depth + 1);
+         this.operation = operation;
+         this.child = child;
+         this.precision = precision;
+      }
+      double evaluate (double x, double y) {return FormulaUtility.specialCalculations(operation, child.evaluate(x, y), precision);}
+      double evaluate (double [] frame) {return FormulaUtility.specialCalculations(operation, child.evaluate(frame), precision);}
+      void evaluate (double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level) {
+         child.evaluate(columns, from, dst, to, n, scratch, level);
+         if (precision == Precision.FAST) {
+            FastMath.calculate(operation, dst, to, dst, to, n);
+            return;
+         }
+         switch (operation) {
+            case SIN :
+               for (int i = to; i < to + n; i++) dst[i] = Math.sin(dst[i]);
+               break;
+            case COS :
+               for (int i = to; i < to + n; i++) dst[i] = Math.cos(dst[i]);
+               break;
+            case TAN :
+               for (int i = to; i < to + n; i++) dst[i] = Math.tan(dst[i]);
+               break;
+            case LOG :
+               for (int i = to; i < to + n; i++) dst[i] = Math.log10(dst[i]);
+               break;
+            case LN :
+               for (int i = to; i < to + n; i++) dst[i] = Math.log(dst[i]);
+               break;
+            default :
+               for (int i = to; i < to + n; i++) dst[i] = FormulaUtility.specialCalculations(operation, dst[i]);
+         }
+      }
+      int scratchLevels () {return child.scratchLevels();}
+      public String toString () {return operation + (child instanceof BiNode ? "" + child : "(" + child + ")");}
+   }
+
+   /**
+    * Binary operation node. There is one subclass per Operation so evaluation
+    * does not go through the switch in FormulaUtility.biCalculations.
+    */
+   abstract static class BiNode extends Node {
+      final Operation operation;
+      final Node left;
+      final Node right;
+
+      BiNode (Operation operation, Node left, Node right) {
+         super(Math.max(left.depth, right.depth) + 1);
+         this.operation = operation;
+         this.left = left;
+         this.right = right;
+      }
+
+      static BiNode create (Operation z, Node left, Node right) {
+         switch (z) {
+            case ADD :
+               return new BiNode (z, left, right) {
+                  double evaluate (double x, double y) {return this.left.evaluate(x, y) + this.right.evaluate(x, y);}
+                  double evaluate (double [] frame) {return this.left.evaluate(frame) + this.right.evaluate(frame);}
+               };
+            case SUB :
+               return new BiNode (z, left, right) {
+                  double evaluate (double x, double y) {return this.left.evaluate(x, y) - this.right.evaluate(x, y);}
+                  double evaluate (double [] frame) {return this.left.evaluate(frame) - this.right.evaluate(frame);}
+               };
+            case DIV :
+               return new BiNode (z, left, right) {
+                  double evaluate (double x, double y) {return this.left.evaluate(x, y) / this.right.evaluate(x, y);}
+                  double evaluate (double [] frame) {return this.left.evaluate(frame) / this.right.evaluate(frame);}
+               };
+            case MULT :
+               return new BiNode (z, left, right) {
+                  double evaluate (double x, double y) {return this.left.evaluate(x, y) * this.right.evaluate(x, y);}
+                  double evaluate (double [] frame) {return this.left.evaluate(frame) * this.right.evaluate(frame);}
+               };
+            case EXP :
+               return new BiNode (z, left, right) {
+                  double evaluate (double x, double y) {return Math.pow(this.left.evaluate(x, y), this.right.evaluate(x, y));}
+                  double evaluate (double [] frame) {return Math.pow(this.left.evaluate(frame), this.right.evaluate(frame));}
+               };
+            default :
+               throw new InvalidParameterException("Incorrect numerical value in input.");
+         }
+      }
+
+      void evaluate (double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level) {
+         left.evaluate(columns, from, dst, to, n, scratch, level);
+         double [] r = scratch[level];
+         right.evaluate(columns, from, r, 0, n, scratch, level + 1);
+         switch (operation) {
+            case ADD :
+               for (int i = 0; i < n; i++) dst[to + i] += r[i];
+               break;
+            case SUB :
+               for (int i = 0; i < n; i++) dst[to + i] -= r[i];
+               break;
+            case DIV :
+               for (int i = 0; i < n; i++) dst[to + i] /= r[i];
+               break;
+            case MULT :
+               for (int i = 0; i < n; i++) dst[to + i] *= r[i];
+               break;
+            case EXP :
+               for (int i = 0; i < n; i++) dst[to + i] = Math.pow(dst[to + i], r[i]);
+               break;
+            default :
+               throw new InvalidParameterException("Incorrect numerical value in input.");
+         }
+      }
+
+      int scratchLevels () {return Math.max(left.scratchLevels(), right.scratchLevels() + 1);}
+
+      public String toString () {return "(" + left + operation + right + ")";}
+   }
+}
@@ -0,0 +1,95 @@
+package src;
+
+import java.math.BigInteger;
+
+/**
+ * Correctly rounded conversion of a decimal w * 10^q to a double, without text or allocation
+ * (Eisel-Lemire: D. Lemire, "Number Parsing at a Gigabyte per Second", 2021).
+ * w is multiplied by a 128 bit truncation of 5^q; the high bits of the product are the binary mantissa,
+ * and the power of two goes to the exponent. For any w that is exact on 64 bits the product is always
+ * precise enough to round correctly (N. Mushtak and D. Lemire, "Fast Number Parsing Without Fallback", 2023).
+ */
+final class DecimalParser {
+   private static final int SMALLEST_POWER = -342;
+   private static final int LARGEST_POWER = 308;
+
+   /** High and low 64 bits of 5^q for q in [SMALLEST_POWER, LARGEST_POWER], at index 2 (q - SMALLEST_POWER). */
+   private static final long [] POWERS_OF_FIVE = powersOfFive();
+
+   private DecimalParser () {}
+
+   /**
+    * @param w: decimal mantissa, read as unsigned.
+    * @param q: decimal exponent.
+    * @return w * 10^q rounded to the nearest double, ties to even.
+    */
+   static double toDouble (long w, int q) {
+      if (w == 0 || q < SMALLEST_POWER) return 0.0;
+      if (q > LARGEST_POWER) return Double.POSITIVE_INFINITY;
+      int lz = Long.numberOfLeadingZeros(w);
+      w <<= lz;
+      int index = 2 * (q - SMALLEST_POWER);
+      long high = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+      long low = w * POWERS_OF_FIVE[index];
+      if ((high & 0x1FF) == 0x1FF) {
+         // the 9 bits below the mantissa and its rounding bit are all ones: the low half of 5^q can carry into them
+         long carry = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+         low += carry;
+         if (Long.compareUnsigned(carry, low) > 0) high++;
+      }
+      int upper = (int) (high >>> 63);
+      long mantissa = high >>> (upper + 9);
+      int power2 = (int) ((217706L * q) >> 16) + 63 + upper - lz + 1023;
+      if (power2 <= 0) {
+         // subnormal
+         if (-power2 + 1 >= 64) return 0.0;
+         mantissa >>>= -power2 + 1;
+         mantissa += mantissa & 1;
+         mantissa >>>= 1;
+         power2 = mantissa < (1L << 52) ? 0 : 1;
+         return Double.longBitsToDouble(mantissa | ((long) power2 << 52));
+      }
+      if (Long.compareUnsigned(low, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1 && (mantissa << (upper + 9)) == high) {
+         // exactly halfway between two doubles: round to even instead of up
+         mantissa &= ~1L;
+      }
+      mantissa += mantissa & 1;
+      mantissa >>>= 1;
+      if (mantissa >= (2L << 52)) {
+         mantissa = 1L << 52;
+         power2++;
+      }
+      mantissa &= ~(1L << 52);
+      if (power2 >= 0x7FF) return Double.POSITIVE_INFINITY;
+      return Double.longBitsToDouble(mantissa | ((long) power2 << 52));
+   }
+
+   private static long unsignedMultiplyHigh (long a, long b) {
+      return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+   }
+
+   /**
+    * 5^q normalized to 128 bits (top bit set): truncated for q >= 0, and a reciprocal rounded up for q < 0.
+    */
+   private static long [] powersOfFive () {
+      long [] ans = new long [2 * (LARGEST_POWER - SMALLEST_POWER + 1)];
+      BigInteger five = BigInteger.valueOf(5);
+      for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+         BigInteger c;
+         if (q < 0) {
+            BigInteger power = five.pow(-q);
+            int z = power.bitLength();
+            c = BigInteger.ONE.shiftLeft(q >= -27 ? z + 127 : 2 * z + 128).divide(power).add(BigInteger.ONE);
+            if (c.bitLength() > 128) c = c.shiftRight(c.bitLength() - 128);
+         }
+         else {
+            c = five.pow(q);
+            c = c.bitLength() < 128 ? c.shiftLeft(128 - c.bitLength()) : c.shiftRight(c.bitLength() - 128);
+         }
+         int i = 2 * (q - SMALLEST_POWER);
+         ans[i] = c.shiftRight(64).longValue();
+         ans[i + 1] = c.longValue();
+      }
+      return ans;
+   }
+}
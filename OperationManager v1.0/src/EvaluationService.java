@@ -0,0 +1,219 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process evaluation service for many concurrent small requests.
+ * Formulas are registered once under an id and compiled to a shared immutable CompiledFormula.
+ * Requests for the same formula are coalesced into micro-batches, and each batch runs one batch evaluation on the executor.
+ * A batch is dispatched when it holds maxBatchSize requests, or maxLatencyNanos after its first request, whichever comes first.
+ * submit never blocks on evaluation and only holds a ReentrantLock for a few stores, so it is safe to call
+ * from any number of threads, including virtual threads (no monitor is held while waiting).
+ * The latency deadlines of every service are kept by one shared daemon timer thread, which only hands batches
+ * to the executors, so an executor should not run its tasks on the calling thread.
+ */
+public class EvaluationService implements AutoCloseable {
+   public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+   public static final long DEFAULT_MAX_LATENCY_NANOS = 200_000;
+
+   private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+   private final int maxBatchSize;
+   private final long maxLatencyNanos;
+   private final Executor executor;
+   private final LongAdder requestCount = new LongAdder();
+   private final LongAdder batchCount = new LongAdder();
+   private volatile boolean closed = false;
+
+   public EvaluationService () {
+      this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY_NANOS, ForkJoinPool.commonPool());
+   }
+
+   /**
+    * @param maxBatchSize: requests per batch, at least 1
+    * @param maxLatencyNanos: longest time a request waits for its batch to fill up, at least 0
+    * @param executor: runs the batch evaluations and completes the futures
+    */
+   public EvaluationService (int maxBatchSize, long maxLatencyNanos, Executor executor) {
+      if (maxBatchSize < 1 || maxLatencyNanos < 0 || executor == null) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.maxBatchSize = maxBatchSize;
+      this.maxLatencyNanos = maxLatencyNanos;
+      this.executor = executor;
+   }
+
+   /**
+    * Registers or replaces the formula for an id. Requests already queued for a replaced formula still use it.
+    */
+   public void register (String id, Formula f) {
+      register(id, f.compile().optimize());
+   }
+
+   /**
+    * Registers the formula with the given precision for its special operations (see CompiledFormula.withPrecision).
+    */
+   public void register (String id, Formula f, FormulaUtility.Precision p) {
+      register(id, f.compile(p).optimize());
+   }
+
+   public void register (String id, CompiledFormula f) {
+      channels.put(id, new Channel(f));
+   }
+
+   /**
+    * @return true if the id was registered. Requests already queued for it are still evaluated.
+    */
+   public boolean unregister (String id) {
+      return channels.remove(id) != null;
+   }
+
+   /**
+    * Queues the evaluation of the formula registered under id at (x, y).
+    * @return future completed with the result, or exceptionally with InvalidParameterException if the id is unknown
+    * and IllegalStateException if the service is closed.
+    */
+   public CompletableFuture<Double> submit (String id, double x, double y) {
+      CompletableFuture<Double> ans = new CompletableFuture<Double>();
+      Channel c = channels.get(id);
+      if (closed) ans.completeExceptionally(new IllegalStateException("EvaluationService is closed."));
+      else if (c == null) ans.completeExceptionally(new InvalidParameterException("Incorrect numerical value in input: unknown formula " + id + "."));
+      else c.add(x, y, ans);
+      return ans;
+   }
+
+   public long getRequestCount () {return requestCount.sum();}
+   public long getBatchCount () {return batchCount.sum();}
+
+   /**
+    * Dispatches every queued request. Later submits fail with IllegalStateException; a submit that runs
+    * concurrently with close either fails that way or is still evaluated, its future always completes.
+    */
+   public void close () {
+      closed = true;
+      for (Channel c : channels.values()) c.flush(null);
+   }
+
+   /**
+    * Pending requests of one formula.
+    */
+   private final class Channel {
+      private final CompiledFormula formula;
+      private final ReentrantLock lock = new ReentrantLock();
+      private Batch current;
+
+      private Channel (CompiledFormula formula) {
+         this.formula = formula;
+      }
+
+      private void add (double x, double y, CompletableFuture<Double> future) {
+         requestCount.increment();
+         Batch full = null;
+         Batch started = null;
+         lock.lock();
+         try {
+            if (current == null) {
+               current = new Batch(formula, maxBatchSize);
+               started = current;
+            }
+            Batch b = current;
+            b.xs[b.size] = x;
+            b.ys[b.size] = y;
+            b.futures[b.size++] = future;
+            if (b.size == maxBatchSize) {
+               full = b;
+               current = null;
+            }
+         }
+         finally {
+            lock.unlock();
+         }
+         if (full != null) dispatch(full);
+         else if (started != null) schedule(started);
+      }
+
+      private void schedule (Batch b) {
+         Timer.INSTANCE.schedule(() -> flush(b), maxLatencyNanos, TimeUnit.NANOSECONDS);
+      }
+
+      /**
+       * Dispatches the current batch if it is b (or any current batch when b is null).
+       */
+      private void flush (Batch b) {
+         Batch ready = null;
+         lock.lock();
+         try {
+            if (current != null && (b == null || current == b)) {
+               ready = current;
+               current = null;
+            }
+         }
+         finally {
+            lock.unlock();
+         }
+         if (ready != null) dispatch(ready);
+      }
+   }
+
+   private void dispatch (Batch b) {
+      batchCount.increment();
+      try {
+         executor.execute(b);
+      }
+      catch (RejectedExecutionException e) {
+         b.fail(e);
+      }
+   }
+
+   /**
+    * Timer shared by every EvaluationService, created on first use. Its thread is a daemon and is never stopped.
+    */
+   private static final class Timer {
+      private static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "EvaluationService-timer");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Up to maxBatchSize requests, evaluated together.
+    */
+   private static final class Batch implements Runnable {
+      private final CompiledFormula formula;
+      private final double [] xs;
+      private final double [] ys;
+      private final CompletableFuture<Double> [] futures;
+      private int size = 0;
+
+      @SuppressWarnings("unchecked")
+      private Batch (CompiledFormula formula, int capacity) {
+         this.formula = formula;
+         this.xs = new double [capacity];
+         this.ys = new double [capacity];
+         this.futures = (CompletableFuture<Double> []) new CompletableFuture<?> [capacity];
+      }
+
+      public void run () {
+         double [] results = new double [size];
+         try {
+            formula.evaluate(xs, ys, results, 0, size);
+         }
+         catch (RuntimeException e) {
+            fail(e);
+            return;
+         }
+         for (int i = 0; i < size; i++) futures[i].complete(results[i]);
+      }
+
+      private void fail (Throwable t) {
+         for (int i = 0; i < size; i++) futures[i].completeExceptionally(t);
+      }
+   }
+}
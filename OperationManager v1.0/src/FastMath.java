@@ -0,0 +1,168 @@
+package src;
+
+import src.FormulaUtility.SpecialOperation;
+
+/**
+ * Approximations of the special operations used by Precision.FAST.
+ * They are plain arithmetic without branches on the argument (apart from the fallbacks), so the JIT can inline
+ * them into batch loops.
+ * sin, cos and tan: argument reduction by k pi/2 with a two part pi/2 (Cody-Waite), then the minimax polynomials
+ * of the fdlibm kernels on [-pi/4, pi/4]. Above REDUCTION_LIMIT the reduction loses bits, so Math is used instead.
+ * ln and log: x = m 2^e with m in [0.69, 1.38), then ln(m) = ln(c) + ln(1 + r) with c the center of one of 128
+ * ranges, read from a table, and r = m / c - 1 (|r| <= 1/256) in a degree 8 polynomial.
+ * NaN, negative, zero, subnormal and infinite arguments use Math.
+ * Measured against StrictMath (see benchmarks.FastMathAccuracy), every function stays within ERROR * max(1, |exact|)
+ * of the exact result, except tan near its poles, whose error is ERROR * max(1, |exact|) / |cos x|.
+ */
+public final class FastMath {
+   /** Error bound, relative for results larger than 1 in magnitude and absolute otherwise. */
+   public static final double ERROR = 1e-15;
+   public static final double REDUCTION_LIMIT = 1e5;
+
+   private static final double TWO_OVER_PI = 6.36619772367581382433e-01;
+   /** First 33 bits of pi/2, so k * PIO2_HI is exact for |k| < 2^20. */
+   private static final double PIO2_HI = 1.57079632673412561417e+00;
+   private static final double PIO2_LO = 6.07710050650619224932e-11;
+
+   private static final double S1 = -1.66666666666666324348e-01;
+   private static final double S2 = 8.33333333332248946124e-03;
+   private static final double S3 = -1.98412698298579493134e-04;
+   private static final double S4 = 2.75573137070700676789e-06;
+   private static final double S5 = -2.50507602534068634195e-08;
+   private static final double S6 = 1.58969099521155010221e-10;
+
+   private static final double C1 = 4.16666666666666019037e-02;
+   private static final double C2 = -1.38888888888741095749e-03;
+   private static final double C3 = 2.48015872894767294178e-05;
+   private static final double C4 = -2.75573143513906633035e-07;
+   private static final double C5 = 2.08757232129817482790e-09;
+   private static final double C6 = -1.13596475577881948265e-11;
+
+   private static final int LOG_TABLE_BITS = 7;
+   private static final int LOG_TABLE_SIZE = 1 << LOG_TABLE_BITS;
+   /**
+    * Bits of 0.6895..., the mantissa m is taken in [LOG_OFFSET, 2 LOG_OFFSET) so that 1 lies inside a range,
+    * whose center is taken as exactly 1: near x = 1, r = m - 1 is exact and ln(x) keeps its relative precision.
+    */
+   private static final long LOG_OFFSET = 0x3fe6100000000000L;
+   /** 1 / c and ln(c) for the center c of every mantissa range. */
+   private static final double [] LOG_INVERSE = new double [LOG_TABLE_SIZE];
+   private static final double [] LOG_CENTER = new double [LOG_TABLE_SIZE];
+   private static final double LN2_HI = 6.93147180369123816490e-01;
+   private static final double LN2_LO = 1.90821492927058770002e-10;
+   private static final double INV_LN10 = 4.34294481903251827651e-01;
+
+   static {
+      for (int j = 0; j < LOG_TABLE_SIZE; j++) {
+         double from = Double.longBitsToDouble(LOG_OFFSET + ((long) j << (52 - LOG_TABLE_BITS)));
+         double to = Double.longBitsToDouble(LOG_OFFSET + ((long) (j + 1) << (52 - LOG_TABLE_BITS)));
+         LOG_INVERSE[j] = from <= 1 && 1 < to ? 1 : 2 / (from + to);
+         LOG_CENTER[j] = -StrictMath.log(LOG_INVERSE[j]);
+      }
+   }
+
+   private FastMath () {}
+
+   public static double calculate (SpecialOperation z, double x) {
+      switch (z) {
+         case SIN :
+            return sin(x);
+         case COS :
+            return cos(x);
+         case TAN :
+            return tan(x);
+         case LN :
+            return log(x);
+         default :
+            return log10(x);
+      }
+   }
+
+   /**
+    * dst[to + i] = z(a[from + i]) for 0 <= i < n, one loop per operation so the calls are inlined.
+    */
+   static void calculate (SpecialOperation z, double [] a, int from, double [] dst, int to, int n) {
+      switch (z) {
+         case SIN :
+            for (int i = 0; i < n; i++) dst[to + i] = sin(a[from + i]);
+            break;
+         case COS :
+            for (int i = 0; i < n; i++) dst[to + i] = cos(a[from + i]);
+            break;
+         case TAN :
+            for (int i = 0; i < n; i++) dst[to + i] = tan(a[from + i]);
+            break;
+         case LN :
+            for (int i = 0; i < n; i++) dst[to + i] = log(a[from + i]);
+            break;
+         default :
+            for (int i = 0; i < n; i++) dst[to + i] = log10(a[from + i]);
+      }
+   }
+
+   public static double sin (double x) {
+      if (!(Math.abs(x) <= REDUCTION_LIMIT)) return Math.sin(x);
+      return quadrant(x, 0);
+   }
+
+   public static double cos (double x) {
+      if (!(Math.abs(x) <= REDUCTION_LIMIT)) return Math.cos(x);
+      return quadrant(x, 1);
+   }
+
+   public static double tan (double x) {
+      if (!(Math.abs(x) <= REDUCTION_LIMIT)) return Math.tan(x);
+      double k = Math.rint(x * TWO_OVER_PI);
+      double r = (x - k * PIO2_HI) - k * PIO2_LO;
+      double s = sinKernel(r);
+      double c = cosKernel(r);
+      return ((int) k & 1) == 0 ? s / c : -c / s;
+   }
+
+   public static double log (double x) {
+      if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) return Math.log(x);
+      long bits = Double.doubleToRawLongBits(x);
+      long t = bits - LOG_OFFSET;
+      int e = (int) (t >> 52);
+      int j = (int) (t >>> (52 - LOG_TABLE_BITS)) & (LOG_TABLE_SIZE - 1);
+      double m = Double.longBitsToDouble(bits - (t & 0xfff0000000000000L));
+      double r = Math.fma(m, LOG_INVERSE[j], -1);
+      double z = r * r;
+      double p = r + z * ((-0.5 + r * (1.0 / 3)) + z * ((-0.25 + r * (1.0 / 5)) + z * (-1.0 / 6 + r * (1.0 / 7) - z * 0.125)));
+      return e * LN2_HI + (LOG_CENTER[j] + (p + e * LN2_LO));
+   }
+
+   public static double log10 (double x) {
+      if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) return Math.log10(x);
+      return log(x) * INV_LN10;
+   }
+
+   /**
+    * sin(x + q pi/2). Both kernels are computed and the quadrant selects one and its sign on the bits, so random
+    * arguments cost no mispredicted branches whatever the profile of the caller.
+    */
+   private static double quadrant (double x, int q) {
+      double k = Math.rint(x * TWO_OVER_PI);
+      double r = (x - k * PIO2_HI) - k * PIO2_LO;
+      int n = (int) k + q;
+      double s = sinKernel(r);
+      double c = cosKernel(r);
+      long odd = -(long) (n & 1);
+      long bits = (Double.doubleToRawLongBits(s) & ~odd) | (Double.doubleToRawLongBits(c) & odd);
+      return Double.longBitsToDouble(bits ^ ((long) (n & 2) << 62));
+   }
+
+   /** sin(r) for |r| <= pi/4. */
+   private static double sinKernel (double r) {
+      double z = r * r;
+      double z2 = z * z;
+      return r + r * z * ((S1 + z * S2) + z2 * ((S3 + z * S4) + z2 * (S5 + z * S6)));
+   }
+
+   /** cos(r) for |r| <= pi/4. */
+   private static double cosKernel (double r) {
+      double z = r * r;
+      double z2 = z * z;
+      return 1 - (0.5 * z - z2 * ((C1 + z * C2) + z2 * ((C3 + z * C4) + z2 * (C5 + z * C6))));
+   }
+}
@@ -10,6 +10,7 @@ import src.FormulaUtility.Operation;
 import src.FormulaUtility.Variable;
 import src.FormulaUtility.SpecialOperation;
 import src.FormulaUtility.SeparatorPair;
+import src.FormulaUtility.Precision;
 
 /**
  * Create formulas and call methods to solve them.
@@ -24,127 +25,47 @@ public class Formula {
    private final Variable [] variables;
    private final SpecialOperation [] specialOperations;
    private final SeparatorPair [] separators;
+   private CompiledFormula compiled;
 
    /**
     * Construct Formula objects by passsing in valid String.
-    * Valid String: Closed parentheses, doubles instead of ints (2.0 v. 2), spaces allowed b/w opereations and parentheses (not b/w numbers).
+    * Valid String: Closed parentheses, spaces allowed b/w opereations and parentheses (not inside numbers).
+    * Numbers may be ints, decimals, use an exponent or be Infinity/NaN (2, 2.0, 1.5e-3); a '-' right before a number
+    * where a value is expected is part of the number (x*-2.0).
     * Suppoerted operations: +, -, *, /, ^, sin, cos, tan, ln, log.
-    * Passing in '$' as part of the String causes undefined behavior.
+    * '$' is not accepted.
     * 
     * @param f: The String containing the desired formula
+    * @throws InvalidParameterException with the position of the first invalid character.
     */
    public Formula (String f) {
-      ArrayList<TypeWrapper> mFunction = new ArrayList<TypeWrapper>(f.length()+2);
-      ArrayList<Double> mNumbers = new ArrayList<Double>();
-      ArrayList<Operation> mOperations = new ArrayList<Operation>();
-      ArrayList<Variable> mVariables = new ArrayList<Variable>();
-      ArrayList<SpecialOperation> mSpecialOperations = new ArrayList<SpecialOperation>();
-      ArrayList <SeparatorPair> mSeparators = new ArrayList<SeparatorPair> ();
-
-      Type superType = Type.TEMP;
-
-      int superIterationModifier = 0;
-      int numCounter = 0;
-      int operationCounter = 0;
-      int variableCounter = 0;
-      int specialOperationCounter = 0;
-
-      for (int i = 0; i < f.length(); i += (1 + superIterationModifier)) {
-
-         superIterationModifier = 0;
-         String sTemp = f.substring(i,i+1);
-
-         if (sTemp.equals(" ")) continue;
-
-         Type subType = FormulaUtility.toType(sTemp);
-
-         switch (subType) {
-            case OP :
-               if (superType == Type.OP || superType == Type.S_OP || superType == Type.TEMP) throw new InvalidParameterException("Incorrect numerical value in input.");
-               mOperations.add(FormulaUtility.toOperation(sTemp));
-               mFunction.add(new TypeWrapper (operationCounter, subType));
-               operationCounter ++;
-               superType = subType;
-               break;
-
-            case VAR :
-               if (superType == Type.VAR || superType == Type.NUM) throw new InvalidParameterException("Incorrect numerical value in input.");
-               mVariables.add(FormulaUtility.toVariable(sTemp));
-               mFunction.add(new TypeWrapper (variableCounter, subType));
-               variableCounter ++;
-               superType = subType;
-               break;
-
-            case O_SEP :
-               if (superType == Type.VAR || superType == Type.NUM || superType == Type.C_SEP) throw new InvalidParameterException("Incorrect numerical value in input.");
-               mSeparators.add(new SeparatorPair (mFunction.size()));
-               mFunction.add(new TypeWrapper (-1, subType));
-               superType = subType;
-               break;
-
-            case C_SEP :
-               if (superType == Type.OP || superType == Type.S_OP || superType == Type.TEMP) throw new InvalidParameterException("Incorrect numerical value in input.");
-               boolean finished = false;
-               for (int u = mSeparators.size() - 1; u >= 0; u--) {
-                  if (mSeparators.get(u).getFinalIndex() == -1) {
-                     mSeparators.get(u).setFinalIndex(mFunction.size() + 1);
-                     finished = true;
-                     break;
-                  }
-               }
-               if (!finished) throw new InvalidParameterException("Incorrect numerical value in input.");
-               mFunction.add(new TypeWrapper (-1, subType));
-               superType = subType;
-               break;
-
-            case S_OP :
-               if (superType == Type.VAR || superType == Type.NUM || superType == Type.C_SEP) throw new InvalidParameterException("Incorrect numerical value in input.");
-               SpecialOperation ans = FormulaUtility.extractSpecialOperation(f,i);
-               superIterationModifier += ans.toString().length() - 1;
-               mSpecialOperations.add(ans);
-               mFunction.add(new TypeWrapper (specialOperationCounter, subType));
-               specialOperationCounter ++;
-               superType = subType;
-               break;
-
-            case NUM :
-               if (superType == Type.VAR || superType == Type.C_SEP) throw new InvalidParameterException("Incorrect numerical value in input.");
-               double value = FormulaUtility.extractDouble(f, i);
-               superIterationModifier += Double.toString(value).length() - 1;
-               mNumbers.add(value);
-               mFunction.add(new TypeWrapper (numCounter, subType));
-               numCounter ++;
-               superType = subType;
-               break;
-            
-            case PH :
-               mFunction.add(new TypeWrapper (-1, subType));
-               superType = subType;
-               break;
+      this((CharSequence) f);
+   }
 
-            default : throw new InvalidParameterException("Incorrect numerical value in input.");
-         }
-      }
+   public Formula (CharSequence f) {
+      this(scan(f));
+   }
 
-      if (superType == Type.OP || superType == Type.O_SEP || superType == Type.S_OP) throw new InvalidParameterException("Incorrect numerical value in input.");
+   /**
+    * Builds the formula from a scanner whose scan succeeded, for callers that handle errors without exceptions.
+    */
+   Formula (FormulaScanner scanner) {
+      formula = scanner.function.toArray(new TypeWrapper [scanner.function.size()]);
+      numbers = scanner.numbers.toArray(new Double [scanner.numbers.size()]);
+      variables = scanner.variables.toArray(new Variable [scanner.variables.size()]);
+      operations = scanner.operations.toArray(new Operation [scanner.operations.size()]);
+      specialOperations = scanner.specialOperations.toArray(new SpecialOperation [scanner.specialOperations.size()]);
+      separators = scanner.separators.toArray(new SeparatorPair [scanner.separators.size()]);
+      if (FormulaMetrics.ENABLED) FormulaMetrics.parsed(scanner.getParseEvent(), scanner.getStart(), scanner.length(), scanner.getMaxDepth());
+   }
 
-      for (SeparatorPair k : mSeparators) {
-         if (k.getFinalIndex() == -1) throw new InvalidParameterException("Incorrect numerical value in input.");
-      }
+   private static FormulaScanner scan (CharSequence f) {
+      return scan(new FormulaScanner(f));
+   }
 
-      formula = new TypeWrapper [mFunction.size()];
-      numbers = new Double [mNumbers.size()];
-      variables = new Variable [mVariables.size()];
-      operations = new Operation [mOperations.size()];
-      specialOperations = new SpecialOperation [mSpecialOperations.size()];
-      separators = new SeparatorPair [mSeparators.size()];
-
-      mFunction.toArray(formula);
-      mNumbers.toArray(numbers);
-      mVariables.toArray(variables);
-      mOperations.toArray(operations);
-      mSpecialOperations.toArray(specialOperations);
-      mSeparators.toArray(separators);
+   private static FormulaScanner scan (FormulaScanner scanner) {
+      if (!scanner.scan()) throw new InvalidParameterException(scanner.getErrorMessage());
+      return scanner;
    }
 
    public TypeWrapper [] getFunction () {return formula;}
@@ -184,15 +105,71 @@ public class Formula {
       return ans;
    }
 
+   /**
+    * Compiles the formula into an immutable expression tree. Use it instead of solve
+    * when the same formula is evaluated many times.
+    * @return CompiledFormula of this formula, built on the first call and reused afterwards.
+    */
+   public CompiledFormula compile () {
+      if (compiled == null) compiled = new CompiledFormula(this);
+      return compiled;
+   }
+
+   /**
+    * Compiled form with the given precision for the special operations (see CompiledFormula.withPrecision).
+    */
+   public CompiledFormula compile (Precision p) {
+      return compile().withPrecision(p);
+   }
+
+   /**
+    * Fixes one variable and precomputes everything that depends only on it, for sweeps over the other variable.
+    * @return residual CompiledFormula, see CompiledFormula.specialize.
+    */
+   public CompiledFormula specialize (Variable v, double value) {
+      return compile().specialize(v, value);
+   }
+
+   /**
+    * Evaluates the formula with the variable values of a frame, see CompiledFormula.evaluate(double []) for the layout.
+    */
+   public double evaluate (double [] frame) {
+      return compile().evaluate(frame);
+   }
+
+   /**
+    * Evaluates the formula for every (xs[i], ys[i]) pair into out[i], using the compiled form.
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out) {
+      compile().evaluate(xs, ys, out);
+   }
+
+   /**
+    * Evaluates the formula for the pairs (xs[i], ys[i]) with offset <= i < offset + length into out[i].
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out, int offset, int length) {
+      compile().evaluate(xs, ys, out, offset, length);
+   }
+
+   /**
+    * Concatenates the text of the formulas and parses the result once.
+    * To build formulas from parts without going through text, see CompiledFormula.combine and substitute.
+    */
    public Formula mergeFormulas (Formula... a) {
-      Formula [] t = a;
-      String g = "";
-      for (Formula i : t) {
-         g += i;
+      StringBuilder g = new StringBuilder();
+      for (Formula i : a) {
+         g.append(i);
       }
       return new Formula(g);
    }
 
+   /**
+    * Replaces every occurrence of v with the formula g, splicing the compiled trees (see CompiledFormula.substitute).
+    */
+   public CompiledFormula substitute (Variable v, Formula g) {
+      return compile().substitute(v, g.compile());
+   }
+
    /**
     * Gets the innermost parentheses pairs that the functions contains, 
     * and returns a SeparatorPair array (initial and final indeces of parenetheses).
@@ -230,7 +207,7 @@ public class Formula {
       }
       modifiedFormula += toRangeString (startIntegration, formula.length);
 
-      return new ExtractionWrapper (new Formula (modifiedFormula), extractedFormulas);
+      return new ExtractionWrapper (new Formula (scan(new FormulaScanner(modifiedFormula, true))), extractedFormulas);
    }
 
    /**
@@ -363,14 +340,10 @@ public class Formula {
             tAns += this.toRangeString(startIndex, i);
             i++;
             startIndex = i;
-            switch (variables[t.getIndex()]) {
-               case X : 
-                  tAns += x;
-                  break;
-               case Y :
-                  tAns += y;
-                  break;
-            }
+            Variable v = variables[t.getIndex()];
+            if (v == Variable.X) tAns += x;
+            else if (v == Variable.Y) tAns += y;
+            else throw new InvalidParameterException("Incorrect numerical value in input: no value for variable " + v + ".");
          }
       }
       tAns += this.toRangeString(startIndex, formula.length);
@@ -378,14 +351,20 @@ public class Formula {
    }
 
    public double solve (double x, double y) {
+      FormulaMetrics.SolveEvent event = FormulaMetrics.ENABLED ? FormulaMetrics.solveStarted() : null;
+      long start = FormulaMetrics.ENABLED ? System.nanoTime() : 0;
+      int rounds = 0;
       Formula tFormula = replaceVariables(x, y);
       ExtractionWrapper a = tFormula.extractInnerOperations();
       while (a.getExtractedFormulas().size() > 0) {
          tFormula = solveExtractedEquations(a);
          a = tFormula.extractInnerOperations();
+         rounds++;
       }
 
-      return tFormula.solveSimpleSpecialOperations().solveSimpleOperations();
+      double ans = tFormula.solveSimpleSpecialOperations().solveSimpleOperations();
+      if (FormulaMetrics.ENABLED) FormulaMetrics.solved(event, start, rounds);
+      return ans;
    }
 
    public double solve () {
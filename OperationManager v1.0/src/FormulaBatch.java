@@ -0,0 +1,309 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+import src.FormulaUtility.SpecialOperation;
+import src.FormulaUtility.Precision;
+
+/**
+ * Evaluates one or more formulas on the same (x, y) in a single pass, computing every distinct subexpression once.
+ * The expression trees are hash-consed: structurally equal subtrees, inside one formula or across formulas,
+ * get the same register. Registers are ordered so children come before their parents, and evaluation is
+ * a straight walk over them. sin(x*y)*sin(x*y)+cos(x*y) computes x*y and sin(x*y) once.
+ * Like CompiledFormula, a FormulaBatch is immutable and can be shared between threads.
+ */
+public class FormulaBatch {
+   private static final int CONSTANT = 0;
+   private static final int VARIABLE_X = 1;
+   private static final int VARIABLE_Y = 2;
+   private static final int BI_OPERATION = 3;
+   private static final int SPECIAL_OPERATION = 4;
+   /** Special operation at Precision.FAST, a different kind so it is never shared with the exact one. */
+   private static final int FAST_SPECIAL_OPERATION = 5;
+
+   private final int [] kinds;
+   private final int [] lefts;
+   private final int [] rights;
+   private final double [] values;
+   private final Operation [] operations;
+   private final SpecialOperation [] specialOperations;
+   private final int [] outputs;
+   private final int nodeCount;
+
+   public FormulaBatch (Formula... formulas) {
+      this(compileAll(formulas));
+   }
+
+   public FormulaBatch (CompiledFormula... formulas) {
+      this(roots(formulas));
+   }
+
+   FormulaBatch (Node [] roots) {
+      Builder builder = new Builder();
+      outputs = new int [roots.length];
+      for (int i = 0; i < roots.length; i++) outputs[i] = builder.register(roots[i]);
+      int n = builder.size;
+      kinds = Arrays.copyOf(builder.kinds, n);
+      lefts = Arrays.copyOf(builder.lefts, n);
+      rights = Arrays.copyOf(builder.rights, n);
+      values = Arrays.copyOf(builder.values, n);
+      operations = Arrays.copyOf(builder.operations, n);
+      specialOperations = Arrays.copyOf(builder.specialOperations, n);
+      nodeCount = builder.visited;
+   }
+
+   private static Node [] roots (CompiledFormula [] formulas) {
+      Node [] ans = new Node [formulas.length];
+      for (int i = 0; i < formulas.length; i++) ans[i] = formulas[i].getRoot();
+      return ans;
+   }
+
+   private static CompiledFormula [] compileAll (Formula [] formulas) {
+      CompiledFormula [] ans = new CompiledFormula [formulas.length];
+      for (int i = 0; i < formulas.length; i++) ans[i] = formulas[i].compile();
+      return ans;
+   }
+
+   /** Number of formulas in the batch, and of results per point. */
+   public int getFormulaCount () {return outputs.length;}
+
+   /** Number of distinct subexpressions, which is the work done per point. */
+   public int getRegisterCount () {return kinds.length;}
+
+   /** Number of nodes in all the expression trees before sharing, a node object reached twice counted once. */
+   public int getNodeCount () {return nodeCount;}
+
+   /**
+    * @return results of every formula at (x, y), in the order the formulas were given.
+    */
+   public double [] evaluate (double x, double y) {
+      double [] ans = new double [outputs.length];
+      evaluate(x, y, ans, new double [kinds.length]);
+      return ans;
+   }
+
+   /**
+    * Allocation-free variant for loops: results gets one value per formula, registers
+    * must have at least getRegisterCount() elements and can be reused between calls (not between threads).
+    */
+   public void evaluate (double x, double y, double [] results, double [] registers) {
+      if (results.length < outputs.length || registers.length < kinds.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < kinds.length; i++) {
+         switch (kinds[i]) {
+            case CONSTANT :
+               registers[i] = values[i];
+               break;
+            case VARIABLE_X :
+               registers[i] = x;
+               break;
+            case VARIABLE_Y :
+               registers[i] = y;
+               break;
+            case BI_OPERATION :
+               registers[i] = FormulaUtility.biCalculations(operations[i], registers[lefts[i]], registers[rights[i]]);
+               break;
+            case FAST_SPECIAL_OPERATION :
+               registers[i] = FormulaUtility.specialCalculations(specialOperations[i], registers[lefts[i]], Precision.FAST);
+               break;
+            default :
+               registers[i] = FormulaUtility.specialCalculations(specialOperations[i], registers[lefts[i]]);
+         }
+      }
+      for (int k = 0; k < outputs.length; k++) results[k] = registers[outputs[k]];
+   }
+
+   /**
+    * Evaluates every formula for the pairs (xs[i], ys[i]) with offset <= i < offset + length,
+    * storing the result of formula k in results[k][i]. Each block of CompiledFormula.BATCH_SIZE points
+    * runs one primitive loop per distinct subexpression.
+    */
+   public void evaluate (double [] xs, double [] ys, double [][] results, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > xs.length || offset + length > ys.length || results.length < outputs.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int k = 0; k < outputs.length; k++) {
+         if (offset + length > results[k].length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      }
+      int block = Math.min(length, CompiledFormula.BATCH_SIZE);
+      double [][] registers = new double [kinds.length][];
+      for (int i = 0; i < kinds.length; i++) {
+         registers[i] = new double [block];
+         if (kinds[i] == CONSTANT) Arrays.fill(registers[i], values[i]);
+      }
+      for (int start = offset; start < offset + length; start += block) {
+         int n = Math.min(block, offset + length - start);
+         for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+               case VARIABLE_X :
+               case VARIABLE_Y :
+                  System.arraycopy(kinds[i] == VARIABLE_X ? xs : ys, start, registers[i], 0, n);
+                  break;
+               case BI_OPERATION :
+                  biOperation(operations[i], registers[lefts[i]], registers[rights[i]], registers[i], n);
+                  break;
+               case SPECIAL_OPERATION :
+                  specialOperation(specialOperations[i], registers[lefts[i]], registers[i], n);
+                  break;
+               case FAST_SPECIAL_OPERATION :
+                  FastMath.calculate(specialOperations[i], registers[lefts[i]], 0, registers[i], 0, n);
+                  break;
+               default :
+            }
+         }
+         for (int k = 0; k < outputs.length; k++) System.arraycopy(registers[outputs[k]], 0, results[k], start, n);
+      }
+   }
+
+   private static void biOperation (Operation z, double [] a, double [] b, double [] dst, int n) {
+      switch (z) {
+         case ADD :
+            for (int i = 0; i < n; i++) dst[i] = a[i] + b[i];
+            break;
+         case SUB :
+            for (int i = 0; i < n; i++) dst[i] = a[i] - b[i];
+            break;
+         case DIV :
+            for (int i = 0; i < n; i++) dst[i] = a[i] / b[i];
+            break;
+         case MULT :
+            for (int i = 0; i < n; i++) dst[i] = a[i] * b[i];
+            break;
+         default :
+            for (int i = 0; i < n; i++) dst[i] = Math.pow(a[i], b[i]);
+      }
+   }
+
+   private static void specialOperation (SpecialOperation z, double [] a, double [] dst, int n) {
+      switch (z) {
+         case SIN :
+            for (int i = 0; i < n; i++) dst[i] = Math.sin(a[i]);
+            break;
+         case COS :
+            for (int i = 0; i < n; i++) dst[i] = Math.cos(a[i]);
+            break;
+         case TAN :
+            for (int i = 0; i < n; i++) dst[i] = Math.tan(a[i]);
+            break;
+         case LOG :
+            for (int i = 0; i < n; i++) dst[i] = Math.log10(a[i]);
+            break;
+         case LN :
+            for (int i = 0; i < n; i++) dst[i] = Math.log(a[i]);
+            break;
+         default :
+            for (int i = 0; i < n; i++) dst[i] = FormulaUtility.specialCalculations(z, a[i]);
+      }
+   }
+
+   /**
+    * Structural identity of a node, given the registers of its children.
+    */
+   private static final class Key {
+      private final int kind;
+      private final int operation;
+      private final int left;
+      private final int right;
+      private final long bits;
+
+      private Key (int kind, int operation, int left, int right, long bits) {
+         this.kind = kind;
+         this.operation = operation;
+         this.left = left;
+         this.right = right;
+         this.bits = bits;
+      }
+
+      public boolean equals (Object o) {
+         if (!(o instanceof Key)) return false;
+         Key k = (Key) o;
+         return kind == k.kind && operation == k.operation && left == k.left && right == k.right && bits == k.bits;
+      }
+
+      public int hashCode () {
+         int h = kind;
+         h = 31 * h + operation;
+         h = 31 * h + left;
+         h = 31 * h + right;
+         return 31 * h + Long.hashCode(bits);
+      }
+   }
+
+   /**
+    * Assigns registers in post order, reusing the register of an equal Key.
+    * Trees built in code can reference one node from several parents, so nodes already registered are
+    * looked up by identity first: a shared DAG is walked once per node, not once per path.
+    */
+   private static final class Builder {
+      private final HashMap<Key, Integer> registers = new HashMap<Key, Integer>();
+      private final IdentityHashMap<Node, Integer> seen = new IdentityHashMap<Node, Integer>();
+      private int [] kinds = new int [16];
+      private int [] lefts = new int [16];
+      private int [] rights = new int [16];
+      private double [] values = new double [16];
+      private Operation [] operations = new Operation [16];
+      private SpecialOperation [] specialOperations = new SpecialOperation [16];
+      private int size = 0;
+      private int visited = 0;
+
+      private int register (Node n) {
+         Integer known = seen.get(n);
+         if (known != null) return known;
+         visited++;
+         int ans = registerNew(n);
+         seen.put(n, ans);
+         return ans;
+      }
+
+      private int registerNew (Node n) {
+         if (n instanceof Constant) {
+            double value = ((Constant) n).value;
+            return add(new Key(CONSTANT, 0, -1, -1, Double.doubleToRawLongBits(value)), CONSTANT, -1, -1, value, null, null);
+         }
+         if (n instanceof VariableNode) {
+            Variable v = ((VariableNode) n).variable;
+            if (v != Variable.X && v != Variable.Y) throw new InvalidParameterException("Incorrect numerical value in input: FormulaBatch only supports the variables x and y.");
+            int kind = v == Variable.X ? VARIABLE_X : VARIABLE_Y;
+            return add(new Key(kind, 0, -1, -1, 0), kind, -1, -1, 0, null, null);
+         }
+         if (n instanceof SpecialNode) {
+            SpecialNode s = (SpecialNode) n;
+            int child = register(s.child);
+            int kind = s.precision == Precision.FAST ? FAST_SPECIAL_OPERATION : SPECIAL_OPERATION;
+            return add(new Key(kind, s.operation.ordinal(), child, -1, 0), kind, child, -1, 0, null, s.operation);
+         }
+         BiNode b = (BiNode) n;
+         int left = register(b.left);
+         int right = register(b.right);
+         return add(new Key(BI_OPERATION, b.operation.ordinal(), left, right, 0), BI_OPERATION, left, right, 0, b.operation, null);
+      }
+
+      private int add (Key key, int kind, int left, int right, double value, Operation operation, SpecialOperation specialOperation) {
+         Integer existing = registers.get(key);
+         if (existing != null) return existing;
+         if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            values = Arrays.copyOf(values, capacity);
+            operations = Arrays.copyOf(operations, capacity);
+            specialOperations = Arrays.copyOf(specialOperations, capacity);
+         }
+         kinds[size] = kind;
+         lefts[size] = left;
+         rights[size] = right;
+         values[size] = value;
+         operations[size] = operation;
+         specialOperations[size] = specialOperation;
+         registers.put(key, size);
+         return size++;
+      }
+   }
+}
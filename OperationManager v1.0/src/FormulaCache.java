@@ -0,0 +1,358 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import src.FormulaUtility.TypeWrapper;
+
+/**
+ * Bounded cache from formula source text to CompiledFormula.
+ * Keys are rebuilt from the tokens the Formula constructor reads (see normalize), so "x + 1.0", "x+1.0" and "x+1"
+ * share an entry, and a source is cached exactly when the Formula constructor accepts it.
+ * The last few spellings of each cached key are remembered as they were given, so a repeated source is found
+ * with one hash lookup and never scanned again.
+ * The cache is split into lock-striped segments, each with its own EvictionPolicy and an equal share of the
+ * size and weight bounds. The weight of an entry is the length of its normalized source.
+ * Cached values are immutable CompiledFormula instances and can be shared between threads.
+ */
+public class FormulaCache {
+   public static final int DEFAULT_SEGMENTS = 16;
+   /** Number of source spellings remembered per cached key. */
+   public static final int MAX_SPELLINGS = 8;
+
+   private final Segment [] segments;
+   private final ConcurrentHashMap<String, String> spellings = new ConcurrentHashMap<String, String>();
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * LRU cache bounded only by the number of entries.
+    */
+   public FormulaCache (int maximumSize) {
+      this(maximumSize, Long.MAX_VALUE, EvictionPolicy.LRU, DEFAULT_SEGMENTS);
+   }
+
+   /**
+    * @param maximumSize: maximum number of entries
+    * @param maximumWeight: maximum total length of the cached sources
+    * @param policy: creates the eviction policy of each segment (EvictionPolicy.LRU, EvictionPolicy.LFU or a custom one)
+    * @param concurrencyLevel: number of segments, rounded up to a power of two
+    */
+   public FormulaCache (int maximumSize, long maximumWeight, Supplier<EvictionPolicy> policy, int concurrencyLevel) {
+      if (maximumSize < 1 || maximumWeight < 1 || concurrencyLevel < 1) throw new InvalidParameterException("Incorrect numerical value in input.");
+      int count = Integer.highestOneBit(Math.min(concurrencyLevel, maximumSize));
+      if (count < Math.min(concurrencyLevel, maximumSize)) count <<= 1;
+      if (count > maximumSize) count >>= 1;
+      segments = new Segment [count];
+      for (int i = 0; i < count; i++) {
+         int size = maximumSize / count + (i < maximumSize % count ? 1 : 0);
+         long weight = maximumWeight == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maximumWeight / count);
+         segments[i] = new Segment(size, weight, policy.get());
+      }
+   }
+
+   /**
+    * Scans the source like the Formula constructor and writes its tokens back without spaces, numbers in
+    * Double.toString form. Spaces can change the meaning of a source ("x* -2.0" is valid, "x* - 2.0" is not), so
+    * the key is built from the tokens rather than by editing the text.
+    * @throws InvalidParameterException with the same message as the Formula constructor if the source is invalid.
+    */
+   public static String normalize (CharSequence source) {
+      FormulaScanner scanner = new FormulaScanner(source);
+      if (!scanner.scan()) throw new InvalidParameterException(scanner.getErrorMessage());
+      return key(scanner);
+   }
+
+   private static String key (FormulaScanner scanner) {
+      StringBuilder ans = new StringBuilder(4 * scanner.function.size());
+      for (TypeWrapper t : scanner.function) {
+         switch (t.getType()) {
+            case NUM :
+               ans.append(scanner.numbers.get(t.getIndex()).doubleValue());
+               break;
+            case OP :
+               ans.append(scanner.operations.get(t.getIndex()));
+               break;
+            case VAR :
+               ans.append(scanner.variables.get(t.getIndex()).getName());
+               break;
+            case S_OP :
+               ans.append(scanner.specialOperations.get(t.getIndex()));
+               break;
+            case O_SEP :
+               ans.append('(');
+               break;
+            default :
+               ans.append(')');
+         }
+      }
+      return ans.toString();
+   }
+
+   /**
+    * @return key of the source, or null if it is not a valid formula.
+    */
+   private static String keyIfValid (CharSequence source) {
+      FormulaScanner scanner = new FormulaScanner(source);
+      return scanner.scan() ? key(scanner) : null;
+   }
+
+   /**
+    * Returns the compiled formula for the source, parsing and compiling it on a miss.
+    * A spelling seen before is found without scanning; only new spellings are normalized.
+    * Two threads missing on the same key at the same time may both compile it, only one result is kept.
+    * @throws InvalidParameterException if the source is not a valid formula (nothing is cached).
+    */
+   public CompiledFormula get (CharSequence source) {
+      String text = source.toString();
+      String key = spellings.get(text);
+      if (key != null) {
+         CompiledFormula ans = segmentFor(key).get(key);
+         if (ans != null) {
+            hits.increment();
+            return ans;
+         }
+      }
+      FormulaScanner scanner = new FormulaScanner(source);
+      if (!scanner.scan()) throw new InvalidParameterException(scanner.getErrorMessage());
+      key = key(scanner);
+      Segment segment = segmentFor(key);
+      CompiledFormula ans = segment.get(key, text);
+      if (ans != null) {
+         hits.increment();
+         return ans;
+      }
+      misses.increment();
+      return segment.put(key, text, new Formula(scanner).compile());
+   }
+
+   /**
+    * @return cached formula, or null if the source is not in the cache (not counted as a hit or miss).
+    */
+   public CompiledFormula getIfPresent (CharSequence source) {
+      String key = spellings.get(source.toString());
+      if (key == null) key = keyIfValid(source);
+      return key == null ? null : segmentFor(key).get(key);
+   }
+
+   public void invalidate (CharSequence source) {
+      String key = keyIfValid(source);
+      if (key != null) segmentFor(key).remove(key);
+   }
+
+   public void invalidateAll () {
+      for (Segment s : segments) s.clear();
+   }
+
+   public long size () {
+      long ans = 0;
+      for (Segment s : segments) ans += s.size();
+      return ans;
+   }
+
+   public long weight () {
+      long ans = 0;
+      for (Segment s : segments) ans += s.weight();
+      return ans;
+   }
+
+   public long getHitCount () {return hits.sum();}
+   public long getMissCount () {return misses.sum();}
+   public long getEvictionCount () {return evictions.sum();}
+
+   public double getHitRate () {
+      long h = hits.sum();
+      long total = h + misses.sum();
+      return total == 0 ? 1.0 : (double) h / total;
+   }
+
+   public String toString () {
+      return "FormulaCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+   }
+
+   private Segment segmentFor (String key) {
+      int h = key.hashCode();
+      h ^= (h >>> 16);
+      return segments[h & (segments.length - 1)];
+   }
+
+   private final class Segment {
+      private final HashMap<String, CompiledFormula> entries = new HashMap<String, CompiledFormula>();
+      private final HashMap<String, ArrayList<String>> keySpellings = new HashMap<String, ArrayList<String>>();
+      private final int maximumSize;
+      private final long maximumWeight;
+      private final EvictionPolicy policy;
+      private long weight = 0;
+
+      private Segment (int maximumSize, long maximumWeight, EvictionPolicy policy) {
+         this.maximumSize = maximumSize;
+         this.maximumWeight = maximumWeight;
+         this.policy = policy;
+      }
+
+      private synchronized CompiledFormula get (String key) {
+         CompiledFormula ans = entries.get(key);
+         if (ans != null) policy.onAccess(key);
+         return ans;
+      }
+
+      /**
+       * Like get, and remembers spelling as a source of key if the key is cached.
+       */
+      private synchronized CompiledFormula get (String key, String spelling) {
+         CompiledFormula ans = get(key);
+         if (ans != null) addSpelling(key, spelling);
+         return ans;
+      }
+
+      private synchronized CompiledFormula put (String key, String spelling, CompiledFormula value) {
+         CompiledFormula current = get(key, spelling);
+         if (current != null) return current;
+         if (key.length() > maximumWeight) return value;
+         while (entries.size() >= maximumSize || weight + key.length() > maximumWeight) {
+            String victim = policy.selectVictim();
+            if (victim == null || !removeEntry(victim)) break;
+            evictions.increment();
+         }
+         entries.put(key, value);
+         weight += key.length();
+         policy.onInsert(key);
+         addSpelling(key, spelling);
+         return value;
+      }
+
+      private synchronized void remove (String key) {
+         removeEntry(key);
+      }
+
+      private synchronized void clear () {
+         for (String key : entries.keySet()) policy.onRemove(key);
+         for (ArrayList<String> list : keySpellings.values()) {
+            for (String spelling : list) spellings.remove(spelling);
+         }
+         entries.clear();
+         keySpellings.clear();
+         weight = 0;
+      }
+
+      private boolean removeEntry (String key) {
+         if (entries.remove(key) == null) return false;
+         policy.onRemove(key);
+         weight -= key.length();
+         ArrayList<String> list = keySpellings.remove(key);
+         if (list != null) {
+            for (String spelling : list) spellings.remove(spelling);
+         }
+         return true;
+      }
+
+      /**
+       * Every spelling normalizes to a single key, so the shared spellings map needs no lock of its own:
+       * only the segment of that key ever writes it.
+       */
+      private void addSpelling (String key, String spelling) {
+         ArrayList<String> list = keySpellings.get(key);
+         if (list == null) {
+            list = new ArrayList<String>(2);
+            keySpellings.put(key, list);
+         }
+         if (list.size() >= MAX_SPELLINGS || list.contains(spelling)) return;
+         list.add(spelling);
+         spellings.put(spelling, key);
+      }
+
+      private synchronized int size () {return entries.size();}
+      private synchronized long weight () {return weight;}
+   }
+
+   /**
+    * Decides which key a full segment evicts. Every segment gets its own instance and calls it
+    * while holding the segment lock, so implementations do not need to be thread-safe.
+    */
+   public interface EvictionPolicy {
+      Supplier<EvictionPolicy> LRU = LeastRecentlyUsed::new;
+      Supplier<EvictionPolicy> LFU = LeastFrequentlyUsed::new;
+
+      void onInsert (String key);
+      void onAccess (String key);
+      void onRemove (String key);
+
+      /**
+       * @return key to evict next, or null if the policy tracks no keys.
+       */
+      String selectVictim ();
+   }
+
+   /**
+    * Evicts the key that was inserted or read least recently.
+    */
+   public static class LeastRecentlyUsed implements EvictionPolicy {
+      private final LinkedHashSet<String> order = new LinkedHashSet<String>();
+
+      public void onInsert (String key) {order.add(key);}
+
+      public void onAccess (String key) {
+         if (order.remove(key)) order.add(key);
+      }
+
+      public void onRemove (String key) {order.remove(key);}
+
+      public String selectVictim () {
+         Iterator<String> i = order.iterator();
+         return i.hasNext() ? i.next() : null;
+      }
+   }
+
+   /**
+    * Evicts the key with the fewest reads, the least recently used one among equals.
+    */
+   public static class LeastFrequentlyUsed implements EvictionPolicy {
+      private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+      private final TreeMap<Integer, LinkedHashSet<String>> byCount = new TreeMap<Integer, LinkedHashSet<String>>();
+
+      public void onInsert (String key) {
+         counts.put(key, 1);
+         bucket(1).add(key);
+      }
+
+      public void onAccess (String key) {
+         Integer count = counts.get(key);
+         if (count == null) return;
+         unbucket(count, key);
+         counts.put(key, count + 1);
+         bucket(count + 1).add(key);
+      }
+
+      public void onRemove (String key) {
+         Integer count = counts.remove(key);
+         if (count != null) unbucket(count, key);
+      }
+
+      public String selectVictim () {
+         if (byCount.isEmpty()) return null;
+         return byCount.firstEntry().getValue().iterator().next();
+      }
+
+      private LinkedHashSet<String> bucket (int count) {
+         LinkedHashSet<String> ans = byCount.get(count);
+         if (ans == null) {
+            ans = new LinkedHashSet<String>();
+            byCount.put(count, ans);
+         }
+         return ans;
+      }
+
+      private void unbucket (int count, String key) {
+         LinkedHashSet<String> b = byCount.get(count);
+         b.remove(key);
+         if (b.isEmpty()) byCount.remove(count);
+      }
+   }
+}
@@ -0,0 +1,262 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+import java.util.function.DoubleBinaryOperator;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Variable;
+import src.FormulaUtility.Precision;
+
+/**
+ * Generates a JVM class implementing DoubleBinaryOperator for a compiled formula.
+ * The expression tree is emitted as straight-line bytecode (no branches, so no stack map frames are needed)
+ * and defined as a hidden class, which lets HotSpot inline the formula like hand-written code.
+ * Operations are the same Java operators and Math methods used by CompiledFormula, so results are identical.
+ */
+class FormulaClassWriter {
+   private static final int MAX_CODE_LENGTH = 65535;
+
+   private static final int DCONST_0 = 0x0e;
+   private static final int DCONST_1 = 0x0f;
+   private static final int LDC2_W = 0x14;
+   private static final int DLOAD_1 = 0x27;
+   private static final int DLOAD_3 = 0x29;
+   private static final int ALOAD_0 = 0x2a;
+   private static final int DADD = 0x63;
+   private static final int DSUB = 0x67;
+   private static final int DMUL = 0x6b;
+   private static final int DDIV = 0x6f;
+   private static final int DRETURN = 0xaf;
+   private static final int RETURN = 0xb1;
+   private static final int INVOKESPECIAL = 0xb7;
+   private static final int INVOKESTATIC = 0xb8;
+
+   private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+   private final DataOutputStream pool = new DataOutputStream(poolBytes);
+   private final HashMap<String, Integer> poolIndexes = new HashMap<String, Integer>();
+   private int poolSize = 1;
+
+   private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+   private final DataOutputStream code = new DataOutputStream(codeBytes);
+   private int stack = 0;
+   private int maxStack = 0;
+
+   private FormulaClassWriter () {}
+
+   /**
+    * Returns true if every node of the formula has a bytecode equivalent.
+    */
+   static boolean isSupported (CompiledFormula f) {
+      return isSupported(f.getRoot());
+   }
+
+   private static boolean isSupported (Node n) {
+      if (n instanceof BiNode) return isSupported(((BiNode) n).left) && isSupported(((BiNode) n).right);
+      if (n instanceof SpecialNode) return mathMethod((SpecialNode) n) != null && isSupported(((SpecialNode) n).child);
+      if (n instanceof VariableNode) return ((VariableNode) n).variable == Variable.X || ((VariableNode) n).variable == Variable.Y;
+      return n instanceof Constant;
+   }
+
+   /**
+    * Generates, defines and instantiates the class for the given formula.
+    * @return DoubleBinaryOperator whose applyAsDouble(x, y) equals f.evaluate(x, y).
+    */
+   static DoubleBinaryOperator generate (CompiledFormula f) {
+      if (!isSupported(f)) throw new InvalidParameterException("Incorrect numerical value in input.");
+      try {
+         byte [] bytes = new FormulaClassWriter().toByteArray(f.getRoot());
+         MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+         return (DoubleBinaryOperator) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+      }
+      catch (Throwable e) {
+         throw new IllegalStateException("Could not generate bytecode for " + f, e);
+      }
+   }
+
+   private static String mathMethod (SpecialNode n) {
+      switch (n.operation) {
+         case SIN : return "sin";
+         case COS : return "cos";
+         case LOG : return "log10";
+         case LN : return "log";
+         case TAN : return "tan";
+         default : return null;
+      }
+   }
+
+   private byte [] toByteArray (Node root) throws IOException {
+      int thisClass = classRef("src/GeneratedFormula");
+      int superClass = classRef("java/lang/Object");
+      int operatorInterface = classRef("java/util/function/DoubleBinaryOperator");
+      int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+      int initName = utf8("<init>");
+      int initType = utf8("()V");
+      int applyName = utf8("applyAsDouble");
+      int applyType = utf8("(DD)D");
+      int codeName = utf8("Code");
+
+      emit(root);
+      code.writeByte(DRETURN);
+      if (codeBytes.size() > MAX_CODE_LENGTH || poolSize > 0xffff) throw new InvalidParameterException("Incorrect numerical value in input.");
+
+      ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(classBytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(61);
+      out.writeShort(poolSize);
+      poolBytes.writeTo(out);
+      out.writeShort(0x0031);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(1);
+      out.writeShort(operatorInterface);
+      out.writeShort(0);
+      out.writeShort(2);
+
+      out.writeShort(0x0001);
+      out.writeShort(initName);
+      out.writeShort(initType);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + 5);
+      out.writeShort(1);
+      out.writeShort(1);
+      out.writeInt(5);
+      out.writeByte(ALOAD_0);
+      out.writeByte(INVOKESPECIAL);
+      out.writeShort(objectInit);
+      out.writeByte(RETURN);
+      out.writeShort(0);
+      out.writeShort(0);
+
+      out.writeShort(0x0011);
+      out.writeShort(applyName);
+      out.writeShort(applyType);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + codeBytes.size());
+      out.writeShort(maxStack);
+      out.writeShort(5);
+      out.writeInt(codeBytes.size());
+      codeBytes.writeTo(out);
+      out.writeShort(0);
+      out.writeShort(0);
+
+      out.writeShort(0);
+      return classBytes.toByteArray();
+   }
+
+   /**
+    * Emits the node in postfix order. Every value is a double and takes two stack slots.
+    */
+   private void emit (Node n) throws IOException {
+      if (n instanceof Constant) {
+         double value = ((Constant) n).value;
+         if (Double.doubleToRawLongBits(value) == 0L) code.writeByte(DCONST_0);
+         else if (value == 1.0) code.writeByte(DCONST_1);
+         else {
+            code.writeByte(LDC2_W);
+            code.writeShort(doubleConstant(value));
+         }
+         push();
+      }
+      else if (n instanceof VariableNode) {
+         code.writeByte(((VariableNode) n).variable == Variable.X ? DLOAD_1 : DLOAD_3);
+         push();
+      }
+      else if (n instanceof SpecialNode) {
+         emit(((SpecialNode) n).child);
+         code.writeByte(INVOKESTATIC);
+         code.writeShort(methodRef(((SpecialNode) n).precision == Precision.FAST ? "src/FastMath" : "java/lang/Math", mathMethod((SpecialNode) n), "(D)D"));
+      }
+      else {
+         BiNode b = (BiNode) n;
+         emit(b.left);
+         emit(b.right);
+         switch (b.operation) {
+            case ADD :
+               code.writeByte(DADD);
+               break;
+            case SUB :
+               code.writeByte(DSUB);
+               break;
+            case DIV :
+               code.writeByte(DDIV);
+               break;
+            case MULT :
+               code.writeByte(DMUL);
+               break;
+            case EXP :
+               code.writeByte(INVOKESTATIC);
+               code.writeShort(methodRef("java/lang/Math", "pow", "(DD)D"));
+               break;
+         }
+         stack -= 2;
+      }
+   }
+
+   private void push () {
+      stack += 2;
+      maxStack = Math.max(maxStack, stack);
+   }
+
+   private int utf8 (String s) throws IOException {
+      Integer index = poolIndexes.get("U" + s);
+      if (index != null) return index;
+      pool.writeByte(1);
+      pool.writeUTF(s);
+      return addEntry("U" + s, 1);
+   }
+
+   private int classRef (String name) throws IOException {
+      Integer index = poolIndexes.get("C" + name);
+      if (index != null) return index;
+      int nameIndex = utf8(name);
+      pool.writeByte(7);
+      pool.writeShort(nameIndex);
+      return addEntry("C" + name, 1);
+   }
+
+   private int methodRef (String owner, String name, String type) throws IOException {
+      String key = "M" + owner + "." + name + type;
+      Integer index = poolIndexes.get(key);
+      if (index != null) return index;
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int typeIndex = utf8(type);
+      pool.writeByte(12);
+      pool.writeShort(nameIndex);
+      pool.writeShort(typeIndex);
+      int nameAndType = addEntry(key + "#nt", 1);
+      pool.writeByte(10);
+      pool.writeShort(ownerIndex);
+      pool.writeShort(nameAndType);
+      return addEntry(key, 1);
+   }
+
+   private int doubleConstant (double value) throws IOException {
+      String key = "D" + Double.doubleToRawLongBits(value);
+      Integer index = poolIndexes.get(key);
+      if (index != null) return index;
+      pool.writeByte(6);
+      pool.writeDouble(value);
+      return addEntry(key, 2);
+   }
+
+   private int addEntry (String key, int slots) {
+      int index = poolSize;
+      poolIndexes.put(key, index);
+      poolSize += slots;
+      return index;
+   }
+}
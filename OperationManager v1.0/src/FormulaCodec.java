@@ -0,0 +1,272 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+import src.FormulaUtility.SpecialOperation;
+
+/**
+ * Compact, versioned binary format for compiled formulas, loaded back without any text parsing.
+ * All values are little-endian.
+ *
+ * Library: int magic "OMF1", short version, short reserved, int formula count, int reserved, then the records.
+ * Record (starts 8-byte aligned): int code length, int constant count, short max stack depth, short variable count,
+ * the code (one byte per instruction, in postfix order), zero padding up to 8-byte alignment, the constants as raw doubles,
+ * and the frame layout: one byte length and the ASCII name of the variable of every slot, zero padded to 8-byte alignment.
+ * Instructions: CONSTANT pushes the next constant of the pool, VARIABLE + slot pushes a variable, operations pop their
+ * operands and push the result (see the opcode constants).
+ * The names of the layout are distinct. Only this version is read: opcodes 1 and 2 are left unused, they were the
+ * X and Y instructions of version 1.
+ * The precision of the special operations is not stored, decoded formulas are EXACT (see CompiledFormula.withPrecision).
+ */
+public final class FormulaCodec {
+   public static final int MAGIC = 0x31464D4F;
+   public static final short VERSION = 2;
+   static final int LIBRARY_HEADER = 16;
+   static final int RECORD_HEADER = 12;
+
+   static final byte CONSTANT = 0;
+   /** Bi operations are OPERATION + Operation.ordinal() (ADD, SUB, DIV, MULT, EXP). */
+   static final byte OPERATION = 3;
+   /** Special operations are SPECIAL_OPERATION + SpecialOperation.ordinal() (LN, LOG, SIN, COS, TAN). */
+   static final byte SPECIAL_OPERATION = 8;
+   /** Variables are VARIABLE + slot, up to MAX_VARIABLES slots. */
+   static final int VARIABLE = 16;
+   static final int MAX_VARIABLES = 256 - VARIABLE;
+
+   private FormulaCodec () {}
+
+   /**
+    * @return bytes of one record for the formula.
+    */
+   public static byte [] encode (CompiledFormula f) {
+      Encoder e = new Encoder(f.getVariables());
+      e.emit(f.getRoot());
+      ByteBuffer ans = ByteBuffer.allocate(recordSize(e.codeLength, e.constants.length, e.layoutLength)).order(ByteOrder.LITTLE_ENDIAN);
+      e.writeTo(ans);
+      return ans.array();
+   }
+
+   /**
+    * Writes a library file holding every formula, in order.
+    */
+   public static void writeLibrary (List<CompiledFormula> formulas, Path file) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(LIBRARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(formulas.size()).putInt(0).flip();
+      try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         writeFully(out, header);
+         for (CompiledFormula f : formulas) writeFully(out, ByteBuffer.wrap(encode(f)));
+      }
+   }
+
+   private static void writeFully (FileChannel out, ByteBuffer b) throws IOException {
+      while (b.hasRemaining()) out.write(b);
+   }
+
+   /**
+    * Memory-maps a library file and decodes every formula in it.
+    */
+   public static CompiledFormula [] readLibrary (Path file) throws IOException {
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+         return readLibrary(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+      }
+   }
+
+   /**
+    * Decodes a library starting at the position of the buffer, and leaves the position after the last record.
+    */
+   public static CompiledFormula [] readLibrary (ByteBuffer library) {
+      ByteBuffer b = library.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      if (b.remaining() < LIBRARY_HEADER || b.getInt() != MAGIC) throw new InvalidParameterException("Incorrect numerical value in input: not a formula library.");
+      short version = b.getShort();
+      if (version != VERSION) throw new InvalidParameterException("Incorrect numerical value in input: unsupported library version " + version + ".");
+      b.getShort();
+      int count = b.getInt();
+      b.getInt();
+      if (count < 0 || count > b.remaining() / RECORD_HEADER) throw invalidRecord();
+      CompiledFormula [] ans = new CompiledFormula [count];
+      for (int i = 0; i < count; i++) ans[i] = decode(b);
+      library.position(b.position());
+      return ans;
+   }
+
+   /**
+    * Decodes the record at the position of the buffer and moves past it.
+    * A record that does not fit between the position and the limit, or is inconsistent, throws InvalidParameterException.
+    */
+   public static CompiledFormula decode (ByteBuffer buffer) {
+      ByteBuffer b = buffer.order() == ByteOrder.LITTLE_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      int start = buffer.position();
+      int end = buffer.limit();
+      if (end - start < RECORD_HEADER) throw invalidRecord();
+      int codeLength = b.getInt(start);
+      int constantCount = b.getInt(start + 4);
+      int maxDepth = b.getShort(start + 8) & 0xffff;
+      // sizes are checked against the buffer before anything is allocated from them
+      if (codeLength < 0 || constantCount < 0 || maxDepth > codeLength) throw invalidRecord();
+      if (align(RECORD_HEADER + (long) codeLength) + 8L * constantCount > end - start) throw invalidRecord();
+      int constantStart = start + align(RECORD_HEADER + codeLength);
+      double [] constants = new double [constantCount];
+      for (int i = 0; i < constantCount; i++) constants[i] = b.getDouble(constantStart + 8 * i);
+      ArrayList<Variable> layout = new ArrayList<Variable>();
+      int layoutStart = constantStart + 8 * constantCount;
+      int layoutLength = 0;
+      for (int i = b.getShort(start + 10) & 0xffff; i > 0; i--) {
+         if (layoutStart + layoutLength >= end) throw invalidRecord();
+         int length = b.get(layoutStart + layoutLength) & 0xff;
+         if (length > end - layoutStart - layoutLength - 1) throw invalidRecord();
+         char [] name = new char [length];
+         for (int k = 0; k < length; k++) name[k] = (char) (b.get(layoutStart + layoutLength + 1 + k) & 0xff);
+         Variable v = Variable.of(new String(name));
+         if (layout.contains(v)) throw invalidRecord();
+         layout.add(v);
+         layoutLength += 1 + length;
+      }
+      if (align(layoutLength) > end - layoutStart) throw invalidRecord();
+      Node [] stack = new Node [maxDepth];
+      int top = 0;
+      int constant = 0;
+      for (int i = 0; i < codeLength; i++) {
+         int op = b.get(start + RECORD_HEADER + i) & 0xff;
+         if ((op == CONSTANT || op >= VARIABLE) && top == stack.length) throw invalidRecord();
+         if (op == CONSTANT) {
+            if (constant == constantCount) throw invalidRecord();
+            stack[top++] = new Constant(constants[constant++]);
+         }
+         else if (op >= VARIABLE) {
+            if (op - VARIABLE >= layout.size()) throw invalidRecord();
+            stack[top++] = new VariableNode(layout.get(op - VARIABLE), op - VARIABLE);
+         }
+         else if (op >= OPERATION && op < SPECIAL_OPERATION) {
+            if (top < 2) throw invalidRecord();
+            Node right = stack[--top];
+            stack[top - 1] = BiNode.create(operation(op), stack[top - 1], right);
+         }
+         else {
+            if (top < 1) throw invalidRecord();
+            stack[top - 1] = new SpecialNode(specialOperation(op), stack[top - 1]);
+         }
+      }
+      if (top != 1 || constant != constantCount) throw invalidRecord();
+      buffer.position(start + recordSize(codeLength, constantCount, layoutLength));
+      return new CompiledFormula(stack[0], constants, layout.toArray(new Variable [layout.size()]));
+   }
+
+   static Operation operation (int op) {
+      Operation [] values = Operation.values();
+      if (op - OPERATION >= values.length) throw invalidRecord();
+      return values[op - OPERATION];
+   }
+
+   static SpecialOperation specialOperation (int op) {
+      SpecialOperation [] values = SpecialOperation.values();
+      if (op < SPECIAL_OPERATION || op - SPECIAL_OPERATION >= values.length) throw invalidRecord();
+      return values[op - SPECIAL_OPERATION];
+   }
+
+   private static InvalidParameterException invalidRecord () {
+      return new InvalidParameterException("Incorrect numerical value in input: corrupt formula record.");
+   }
+
+   static int align (int n) {
+      return (n + 7) & ~7;
+   }
+
+   static long align (long n) {
+      return (n + 7) & ~7L;
+   }
+
+   /**
+    * @param layoutLength: bytes of the frame layout before padding
+    */
+   static int recordSize (int codeLength, int constantCount, int layoutLength) {
+      return align(RECORD_HEADER + codeLength) + 8 * constantCount + align(layoutLength);
+   }
+
+   /**
+    * Walks the tree in postfix order, collecting the code, the constant pool and the stack depth.
+    */
+   private static final class Encoder {
+      private final Variable [] layout;
+      private int layoutLength = 0;
+      private byte [] code = new byte [32];
+      private int codeLength = 0;
+      private double [] constants = new double [0];
+      private final ArrayList<Double> pool = new ArrayList<Double>();
+      private int depth = 0;
+      private int maxDepth = 0;
+
+      private Encoder (Variable [] layout) {
+         if (layout.length > MAX_VARIABLES) throw new InvalidParameterException("Incorrect numerical value in input: too many variables to encode.");
+         for (Variable v : layout) {
+            if (v.getName().length() > 0xff) throw new InvalidParameterException("Incorrect numerical value in input: variable name too long to encode.");
+            layoutLength += 1 + v.getName().length();
+         }
+         this.layout = layout;
+      }
+
+      private void emit (Node n) {
+         emitNode(n);
+         constants = new double [pool.size()];
+         for (int i = 0; i < constants.length; i++) constants[i] = pool.get(i);
+         if (maxDepth > 0xffff) throw new InvalidParameterException("Incorrect numerical value in input: formula too deep to encode.");
+      }
+
+      private void emitNode (Node n) {
+         if (n instanceof Constant) {
+            pool.add(((Constant) n).value);
+            push(CONSTANT);
+         }
+         else if (n instanceof VariableNode) {
+            push((byte) (VARIABLE + ((VariableNode) n).slot));
+         }
+         else if (n instanceof SpecialNode) {
+            emitNode(((SpecialNode) n).child);
+            add((byte) (SPECIAL_OPERATION + ((SpecialNode) n).operation.ordinal()));
+         }
+         else {
+            BiNode b = (BiNode) n;
+            emitNode(b.left);
+            emitNode(b.right);
+            add((byte) (OPERATION + b.operation.ordinal()));
+            depth--;
+         }
+      }
+
+      private void push (byte op) {
+         add(op);
+         maxDepth = Math.max(maxDepth, ++depth);
+      }
+
+      private void add (byte op) {
+         if (codeLength == code.length) code = Arrays.copyOf(code, codeLength * 2);
+         code[codeLength++] = op;
+      }
+
+      private void writeTo (ByteBuffer b) {
+         int start = b.position();
+         b.putInt(codeLength).putInt(constants.length).putShort((short) maxDepth).putShort((short) layout.length);
+         b.put(code, 0, codeLength);
+         b.position(start + align(RECORD_HEADER + codeLength));
+         for (double d : constants) b.putDouble(d);
+         for (Variable v : layout) {
+            b.put((byte) v.getName().length());
+            for (int i = 0; i < v.getName().length(); i++) b.put((byte) v.getName().charAt(i));
+         }
+      }
+   }
+}
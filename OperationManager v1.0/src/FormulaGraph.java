@@ -0,0 +1,345 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import src.FormulaUtility.Variable;
+
+/**
+ * Spreadsheet-like graph of named values. A name is either an input, bound with set, or a formula, defined with
+ * define, whose variables are other names of the graph. A formula reading a name that is neither is read as NaN.
+ * Every formula has a level, 1 + the highest level of the formulas it reads (inputs are level 0). The graph is
+ * kept acyclic: define throws when the new formula would read itself, directly or through other formulas.
+ * Changes do not compute anything. They mark the formulas downstream of them dirty, and recompute evaluates only
+ * the dirty formulas, level by level, so every formula reads up to date values. Formulas of one level do not
+ * depend on each other, and when there are at least PARALLEL_THRESHOLD of them they are evaluated in parallel on
+ * the pool.
+ * Readers use snapshot: the values of the last recompute, published atomically. A snapshot never changes, so it is
+ * consistent even while changes and a recompute are in progress, and reading it takes no lock.
+ * The methods that change the graph are synchronized, one writer runs at a time.
+ */
+public class FormulaGraph {
+   /** Smallest number of dirty formulas of one level evaluated in parallel. */
+   public static final int PARALLEL_THRESHOLD = 64;
+
+   private final ForkJoinPool pool;
+   private final HashMap<Variable, Entry> entries = new HashMap<Variable, Entry>();
+   /** Current values, indexed by Entry.id. Only changed by the writer. */
+   private double [] values = new double [16];
+   private final ArrayList<Entry> dirty = new ArrayList<Entry>();
+   /** Ids of the names, shared by the snapshots until a name is added. */
+   private Map<Variable, Integer> index = new HashMap<Variable, Integer>();
+   private boolean indexChanged = false;
+   /** True if some value or name changed since the last snapshot. */
+   private boolean changed = false;
+   private int visit = 0;
+   private long version = 0;
+   private volatile Snapshot snapshot = new Snapshot(index, new double [0], 0);
+
+   public FormulaGraph () {
+      this(ForkJoinPool.commonPool());
+   }
+
+   /**
+    * @param pool: evaluates the large levels of recompute
+    */
+   public FormulaGraph (ForkJoinPool pool) {
+      if (pool == null) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.pool = pool;
+   }
+
+   /**
+    * Name of the graph. The formula is null for inputs.
+    */
+   private static final class Entry {
+      final Variable name;
+      final int id;
+      CompiledFormula formula;
+      /** Entries read by the formula, indexed by frame slot. */
+      Entry [] inputs = new Entry [0];
+      final ArrayList<Entry> dependents = new ArrayList<Entry>();
+      int level = 0;
+      boolean dirty = false;
+      /** Last cycle check that reached this entry. */
+      int visit = 0;
+      /** Frame of the formula, only used by the thread evaluating it. */
+      double [] frame = new double [0];
+
+      Entry (Variable name, int id) {
+         this.name = name;
+         this.id = id;
+      }
+   }
+
+   /**
+    * Consistent, immutable view of every value at the end of one recompute.
+    */
+   public static final class Snapshot {
+      private final Map<Variable, Integer> index;
+      private final double [] values;
+      private final long version;
+
+      private Snapshot (Map<Variable, Integer> index, double [] values, long version) {
+         this.index = index;
+         this.values = values;
+         this.version = version;
+      }
+
+      public double get (String name) {
+         return get(Variable.of(name));
+      }
+
+      /**
+       * @return value of the name, NaN for an unbound input.
+       * @throws InvalidParameterException if the name was not in the graph at that recompute.
+       */
+      public double get (Variable name) {
+         Integer id = index.get(name);
+         if (id == null || id >= values.length) throw new InvalidParameterException("Incorrect numerical value in input: unknown name " + name + ".");
+         return values[id];
+      }
+
+      public boolean contains (Variable name) {
+         Integer id = index.get(name);
+         return id != null && id < values.length;
+      }
+
+      /** Number of recomputes before this snapshot. */
+      public long getVersion () {return version;}
+   }
+
+   /**
+    * Binds an input. Formulas reading it are recomputed by the next recompute.
+    * @throws InvalidParameterException if the name is a formula.
+    */
+   public synchronized void set (String name, double value) {
+      set(Variable.of(name), value);
+   }
+
+   public synchronized void set (Variable name, double value) {
+      Entry e = entry(name);
+      if (e.formula != null) throw new InvalidParameterException("Incorrect numerical value in input: " + name + " is a formula.");
+      if (Double.compare(values[e.id], value) == 0) return;
+      values[e.id] = value;
+      changed = true;
+      for (Entry d : e.dependents) markDirty(d);
+   }
+
+   public synchronized void define (String name, Formula f) {
+      define(Variable.of(name), f.compile().optimize());
+   }
+
+   /**
+    * Defines or replaces the formula of a name. An input of the same name becomes this formula.
+    * @throws InvalidParameterException if the formula reads name, directly or through other formulas
+    * (the graph is left unchanged).
+    */
+   public synchronized void define (Variable name, CompiledFormula f) {
+      Variable [] variables = f.getVariables();
+      Entry e = entries.get(name);
+      visit++;
+      for (Variable v : variables) {
+         if (v == name || (e != null && reads(entries.get(v), e))) throw new InvalidParameterException("Incorrect numerical value in input: " + name + " would depend on itself.");
+      }
+      if (e == null) e = entry(name);
+      for (Entry i : e.inputs) i.dependents.remove(e);
+      Entry [] inputs = new Entry [variables.length];
+      for (int i = 0; i < variables.length; i++) {
+         inputs[i] = entry(variables[i]);
+         inputs[i].dependents.add(e);
+      }
+      e.formula = f;
+      e.inputs = inputs;
+      e.frame = new double [inputs.length];
+      updateLevel(e);
+      markDirty(e);
+   }
+
+   /**
+    * Removes the formula or the binding of a name. It is read as NaN by the formulas still reading it.
+    * @return true if the name had a formula or a binding.
+    */
+   public synchronized boolean remove (String name) {
+      Entry e = entries.get(Variable.of(name));
+      if (e == null || (e.formula == null && Double.isNaN(values[e.id]))) return false;
+      if (e.formula != null) {
+         for (Entry i : e.inputs) i.dependents.remove(e);
+         e.formula = null;
+         e.inputs = new Entry [0];
+         e.frame = new double [0];
+         updateLevel(e);
+      }
+      values[e.id] = Double.NaN;
+      changed = true;
+      for (Entry d : e.dependents) markDirty(d);
+      return true;
+   }
+
+   /**
+    * @return formula of the name, or null for an input or an unknown name.
+    */
+   public synchronized CompiledFormula getFormula (String name) {
+      Entry e = entries.get(Variable.of(name));
+      return e == null ? null : e.formula;
+   }
+
+   /**
+    * @return current value of the name, after a recompute if some formulas are dirty.
+    */
+   public synchronized double get (String name) {
+      recompute();
+      return snapshot.get(name);
+   }
+
+   /** Number of names, inputs and formulas. */
+   public synchronized int size () {return entries.size();}
+
+   /** Number of formulas waiting for recompute. */
+   public synchronized int getDirtyCount () {return dirty.size();}
+
+   /**
+    * Values of the last recompute. Changes made since then are not visible until the next recompute.
+    */
+   public Snapshot snapshot () {return snapshot;}
+
+   /**
+    * Evaluates the dirty formulas in level order and publishes a new snapshot.
+    * @return number of formulas evaluated.
+    */
+   public synchronized int recompute () {
+      int count = dirty.size();
+      if (!changed) return 0;
+      Entry [] order = dirty.toArray(new Entry [count]);
+      dirty.clear();
+      Arrays.sort(order, Comparator.comparingInt((Entry e) -> e.level));
+      for (int from = 0; from < count; ) {
+         int to = from + 1;
+         while (to < count && order[to].level == order[from].level) to++;
+         if (to - from >= PARALLEL_THRESHOLD) pool.invoke(new Level(this, order, from, to));
+         else {
+            for (int i = from; i < to; i++) evaluate(order[i]);
+         }
+         from = to;
+      }
+      for (Entry e : order) e.dirty = false;
+      indexChanged = false;
+      changed = false;
+      snapshot = new Snapshot(index, Arrays.copyOf(values, entries.size()), ++version);
+      return count;
+   }
+
+   /**
+    * Evaluates the formula of e, if it still has one (it may have been removed after it was marked dirty).
+    */
+   private void evaluate (Entry e) {
+      if (e.formula == null) return;
+      for (int i = 0; i < e.inputs.length; i++) e.frame[i] = values[e.inputs[i].id];
+      values[e.id] = e.formula.evaluate(e.frame);
+   }
+
+   /**
+    * Evaluates order[from, to), formulas of one level, splitting the range across the pool.
+    */
+   @SuppressWarnings("serial")
+   private static final class Level extends RecursiveAction {
+      private final FormulaGraph graph;
+      private final Entry [] order;
+      private final int from, to;
+
+      private Level (FormulaGraph graph, Entry [] order, int from, int to) {
+         this.graph = graph;
+         this.order = order;
+         this.from = from;
+         this.to = to;
+      }
+
+      protected void compute () {
+         if (to - from < PARALLEL_THRESHOLD) {
+            for (int i = from; i < to; i++) graph.evaluate(order[i]);
+            return;
+         }
+         int middle = (from + to) >>> 1;
+         invokeAll(new Level(graph, order, from, middle), new Level(graph, order, middle, to));
+      }
+   }
+
+   private Entry entry (Variable name) {
+      Entry e = entries.get(name);
+      if (e != null) return e;
+      e = new Entry(name, entries.size());
+      entries.put(name, e);
+      if (!indexChanged) {
+         index = new HashMap<Variable, Integer>(index);
+         indexChanged = true;
+      }
+      index.put(name, e.id);
+      if (e.id == values.length) values = Arrays.copyOf(values, 2 * values.length);
+      values[e.id] = Double.NaN;
+      changed = true;
+      return e;
+   }
+
+   // The walks below use explicit worklists: a chain of formulas can be far longer than the thread stack allows
+   // for recursion.
+
+   /**
+    * @return true if from is target or reads it, directly or through other formulas. Entries already reached
+    * in the current check are skipped, so shared inputs are walked once.
+    */
+   private boolean reads (Entry from, Entry target) {
+      if (from == null || from.visit == visit) return false;
+      ArrayList<Entry> stack = new ArrayList<Entry>();
+      from.visit = visit;
+      stack.add(from);
+      while (!stack.isEmpty()) {
+         Entry e = stack.remove(stack.size() - 1);
+         if (e == target) return true;
+         for (Entry i : e.inputs) {
+            if (i.visit == visit) continue;
+            i.visit = visit;
+            stack.add(i);
+         }
+      }
+      return false;
+   }
+
+   private void markDirty (Entry e) {
+      if (e.dirty) return;
+      ArrayList<Entry> stack = new ArrayList<Entry>();
+      e.dirty = true;
+      stack.add(e);
+      while (!stack.isEmpty()) {
+         Entry next = stack.remove(stack.size() - 1);
+         changed = true;
+         dirty.add(next);
+         for (Entry d : next.dependents) {
+            if (d.dirty) continue;
+            d.dirty = true;
+            stack.add(d);
+         }
+      }
+   }
+
+   /**
+    * Sets the level of e from its inputs and moves its dependents accordingly. Entries are taken in the order
+    * their level changed, an entry whose level is unchanged stops the walk there.
+    */
+   private static void updateLevel (Entry e) {
+      ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+      queue.add(e);
+      while (!queue.isEmpty()) {
+         Entry next = queue.poll();
+         int level = 0;
+         for (Entry i : next.inputs) level = Math.max(level, i.level + 1);
+         if (level == next.level) continue;
+         next.level = level;
+         queue.addAll(next.dependents);
+      }
+   }
+}
@@ -0,0 +1,193 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Bulk parsing and compilation of formula libraries, one formula per line.
+ * Lines are read on the calling thread and grouped in chunks. Each chunk is parsed and compiled as one task on the
+ * executor, so the work is spread over the cores. Results reach the sink on the calling thread in input order.
+ * Memory is bounded: at most maxPendingChunks chunks are read ahead of the sink, and reading waits for the oldest
+ * chunk when the window is full.
+ * Invalid lines do not throw. They produce a Result with the position and the expected token from the scanner,
+ * so per line cost does not include exception construction. Lines that are empty or only spaces are skipped but still counted.
+ */
+public class FormulaIngestion {
+   public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+   private final int chunkSize;
+   private final int maxPendingChunks;
+   private final Executor executor;
+
+   public FormulaIngestion () {
+      this(DEFAULT_CHUNK_SIZE, 4 * Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+   }
+
+   /**
+    * @param chunkSize: lines per task, at least 1
+    * @param maxPendingChunks: chunks read but not yet delivered to the sink, at least 1
+    * @param executor: runs the parse tasks
+    */
+   public FormulaIngestion (int chunkSize, int maxPendingChunks, Executor executor) {
+      if (chunkSize < 1 || maxPendingChunks < 1 || executor == null) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.chunkSize = chunkSize;
+      this.maxPendingChunks = maxPendingChunks;
+      this.executor = executor;
+   }
+
+   /**
+    * Outcome of one line: a compiled formula, or where and why parsing stopped.
+    */
+   public static final class Result {
+      private final long line;
+      private final String source;
+      private final CompiledFormula formula;
+      private final int errorPosition;
+      private final String expected;
+
+      private Result (long line, String source, CompiledFormula formula, int errorPosition, String expected) {
+         this.line = line;
+         this.source = source;
+         this.formula = formula;
+         this.errorPosition = errorPosition;
+         this.expected = expected;
+      }
+
+      /** Line number in the input, starting at 1. */
+      public long getLine () {return line;}
+      public String getSource () {return source;}
+      public boolean isValid () {return formula != null;}
+      /** Compiled formula, or null if the line is invalid. */
+      public CompiledFormula getFormula () {return formula;}
+      /** Index in the line of the first invalid character (the line length if it ends too early), or -1 if valid. */
+      public int getErrorPosition () {return errorPosition;}
+      /** Description of what was expected at getErrorPosition, or null if valid. */
+      public String getExpected () {return expected;}
+
+      /**
+       * @return same message as the InvalidParameterException of the Formula constructor, or null if valid.
+       */
+      public String getMessage () {
+         return formula != null ? null : "Incorrect numerical value in input at position " + errorPosition + ": expected " + expected + ".";
+      }
+
+      public String toString () {
+         return line + ": " + (formula != null ? formula.toString() : getMessage());
+      }
+   }
+
+   /**
+    * Ingests a UTF-8 text file, one formula per line.
+    * @return number of results delivered to the sink.
+    */
+   public long ingest (Path input, Consumer<? super Result> sink) throws IOException {
+      try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+         return ingest(reader, sink);
+      }
+   }
+
+   /**
+    * Ingests every line of the reader, which is left open.
+    * @return number of results delivered to the sink.
+    */
+   public long ingest (BufferedReader reader, Consumer<? super Result> sink) throws IOException {
+      return run(reader::readLine, sink);
+   }
+
+   /**
+    * Ingests formulas already in memory, one per element.
+    * @return number of results delivered to the sink.
+    */
+   public long ingest (Iterable<String> lines, Consumer<? super Result> sink) {
+      Iterator<String> i = lines.iterator();
+      try {
+         return run(() -> i.hasNext() ? i.next() : null, sink);
+      }
+      catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private interface LineSource {
+      /** @return next line, or null at the end. */
+      String next () throws IOException;
+   }
+
+   private long run (LineSource lines, Consumer<? super Result> sink) throws IOException {
+      ArrayDeque<CompletableFuture<Result []>> pending = new ArrayDeque<CompletableFuture<Result []>>();
+      long delivered = 0;
+      long lineNumber = 0;
+      String [] chunk = new String [chunkSize];
+      boolean done = false;
+      while (!done) {
+         long first = lineNumber + 1;
+         int n = 0;
+         while (n < chunkSize) {
+            String line = lines.next();
+            if (line == null) {
+               done = true;
+               break;
+            }
+            chunk[n++] = line;
+            lineNumber++;
+         }
+         if (n > 0) {
+            if (pending.size() == maxPendingChunks) delivered += deliver(pending.poll(), sink);
+            String [] task = chunk;
+            int count = n;
+            pending.add(CompletableFuture.supplyAsync(() -> parse(task, count, first), executor));
+            chunk = new String [chunkSize];
+         }
+      }
+      while (!pending.isEmpty()) delivered += deliver(pending.poll(), sink);
+      return delivered;
+   }
+
+   private static int deliver (CompletableFuture<Result []> chunk, Consumer<? super Result> sink) {
+      Result [] results;
+      try {
+         results = chunk.join();
+      }
+      catch (CompletionException e) {
+         if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+         throw e;
+      }
+      for (Result r : results) sink.accept(r);
+      return results.length;
+   }
+
+   /**
+    * Parses and compiles lines [0, n) of a chunk, the first one being line first of the input.
+    */
+   private static Result [] parse (String [] lines, int n, long first) {
+      int count = 0;
+      Result [] ans = new Result [n];
+      for (int i = 0; i < n; i++) {
+         String source = lines[i];
+         if (isBlank(source)) continue;
+         FormulaScanner scanner = new FormulaScanner(source);
+         if (scanner.scan()) ans[count++] = new Result(first + i, source, new Formula(scanner).compile(), -1, null);
+         else ans[count++] = new Result(first + i, source, null, scanner.getErrorPosition(), scanner.getExpected());
+      }
+      return count == n ? ans : Arrays.copyOf(ans, count);
+   }
+
+   private static boolean isBlank (String s) {
+      for (int i = 0; i < s.length(); i++) {
+         if (s.charAt(i) != ' ') return false;
+      }
+      return true;
+   }
+}
@@ -0,0 +1,248 @@
+package src;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.SpecialOperation;
+
+/**
+ * Optional instrumentation of the hot paths: parsing, Formula.solve, compiled evaluation and the
+ * FormulaUtility calculations. Enable it with -Doperationmanager.metrics=true.
+ * When disabled, every hook is behind the static final ENABLED flag and is removed by the JIT.
+ * When enabled, data goes to three places: the counters and histograms read with snapshot(),
+ * the registered Listeners, and JFR events (operationmanager.Parse and operationmanager.Solve) if a recording is running.
+ * The events are begun when the parse or solve starts, so their JFR duration is the measured time.
+ * Parse counts include the Formulas that solve builds internally while rewriting.
+ */
+public final class FormulaMetrics {
+   public static final boolean ENABLED = Boolean.getBoolean("operationmanager.metrics");
+
+   private static final LongAdder parseCount = new LongAdder();
+   private static final LongAdder parseNanos = new LongAdder();
+   private static final Histogram parseLatency = new Histogram();
+   private static final Histogram nestingDepth = new Histogram();
+   private static final LongAdder solveCount = new LongAdder();
+   private static final LongAdder solveNanos = new LongAdder();
+   private static final Histogram solveLatency = new Histogram();
+   private static final Histogram solveRounds = new Histogram();
+   private static final LongAdder compiledEvaluations = new LongAdder();
+   private static final LongAdder batchPoints = new LongAdder();
+   private static final Histogram batchLatency = new Histogram();
+   private static final LongAdder [] biCalculations = adders(Operation.values().length);
+   private static final LongAdder [] specialCalculations = adders(SpecialOperation.values().length);
+   private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   private FormulaMetrics () {}
+
+   /**
+    * Push-based SPI: registered listeners receive every measurement as it happens, on the measuring thread.
+    */
+   public interface Listener {
+      default void parsed (long nanos, int length, int nestingDepth) {}
+      default void solved (long nanos, int rounds) {}
+      default void evaluatedBatch (long nanos, int points) {}
+      default void biCalculation (Operation z) {}
+      default void specialCalculation (SpecialOperation z) {}
+   }
+
+   public static void addListener (Listener l) {listeners.add(l);}
+   public static void removeListener (Listener l) {listeners.remove(l);}
+
+   /**
+    * Called before scanning: the JFR event is begun here so its duration covers the whole parse.
+    */
+   static ParseEvent parseStarted () {
+      ParseEvent e = new ParseEvent();
+      e.begin();
+      return e;
+   }
+
+   static void parsed (ParseEvent e, long start, int length, int depth) {
+      long nanos = System.nanoTime() - start;
+      e.end();
+      parseCount.increment();
+      parseNanos.add(nanos);
+      parseLatency.record(nanos);
+      nestingDepth.record(depth);
+      if (e.shouldCommit()) {
+         e.length = length;
+         e.nestingDepth = depth;
+         e.commit();
+      }
+      for (Listener l : listeners) l.parsed(nanos, length, depth);
+   }
+
+   static SolveEvent solveStarted () {
+      SolveEvent e = new SolveEvent();
+      e.begin();
+      return e;
+   }
+
+   static void solved (SolveEvent e, long start, int rounds) {
+      long nanos = System.nanoTime() - start;
+      e.end();
+      solveCount.increment();
+      solveNanos.add(nanos);
+      solveLatency.record(nanos);
+      solveRounds.record(rounds);
+      if (e.shouldCommit()) {
+         e.rounds = rounds;
+         e.commit();
+      }
+      for (Listener l : listeners) l.solved(nanos, rounds);
+   }
+
+   static void evaluated () {
+      compiledEvaluations.increment();
+   }
+
+   static void evaluatedBatch (long start, int points) {
+      long nanos = System.nanoTime() - start;
+      batchPoints.add(points);
+      batchLatency.record(nanos);
+      for (Listener l : listeners) l.evaluatedBatch(nanos, points);
+   }
+
+   static void biCalculation (Operation z) {
+      biCalculations[z.ordinal()].increment();
+      for (Listener l : listeners) l.biCalculation(z);
+   }
+
+   static void specialCalculation (SpecialOperation z) {
+      specialCalculations[z.ordinal()].increment();
+      for (Listener l : listeners) l.specialCalculation(z);
+   }
+
+   /**
+    * Pull-based API: consistent enough copy of every counter (each value is read once, not atomically as a whole).
+    */
+   public static Snapshot snapshot () {
+      return new Snapshot();
+   }
+
+   /**
+    * Clears every counter and histogram. Listeners stay registered.
+    */
+   public static void reset () {
+      parseCount.reset();
+      parseNanos.reset();
+      parseLatency.reset();
+      nestingDepth.reset();
+      solveCount.reset();
+      solveNanos.reset();
+      solveLatency.reset();
+      solveRounds.reset();
+      compiledEvaluations.reset();
+      batchPoints.reset();
+      batchLatency.reset();
+      for (LongAdder a : biCalculations) a.reset();
+      for (LongAdder a : specialCalculations) a.reset();
+   }
+
+   private static LongAdder [] adders (int n) {
+      LongAdder [] ans = new LongAdder [n];
+      for (int i = 0; i < n; i++) ans[i] = new LongAdder();
+      return ans;
+   }
+
+   private static long [] sums (LongAdder [] adders) {
+      long [] ans = new long [adders.length];
+      for (int i = 0; i < adders.length; i++) ans[i] = adders[i].sum();
+      return ans;
+   }
+
+   /**
+    * Power of two histogram: bucket 0 counts the value 0, bucket i counts values in [2^(i-1), 2^i).
+    */
+   static final class Histogram {
+      static final int BUCKETS = 64;
+      private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+      void record (long value) {
+         counts.incrementAndGet(bucket(value));
+      }
+
+      static int bucket (long value) {
+         return value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+      }
+
+      long [] toArray () {
+         long [] ans = new long [BUCKETS];
+         for (int i = 0; i < BUCKETS; i++) ans[i] = counts.get(i);
+         return ans;
+      }
+
+      void reset () {
+         for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+      }
+   }
+
+   /**
+    * Copy of the metrics at one point in time. Histograms use the buckets described in the class Histogram:
+    * bucket 0 counts the value 0, bucket i counts values in [2^(i-1), 2^i).
+    */
+   public static final class Snapshot {
+      private final long parseCount = FormulaMetrics.parseCount.sum();
+      private final long parseNanos = FormulaMetrics.parseNanos.sum();
+      private final long [] parseLatency = FormulaMetrics.parseLatency.toArray();
+      private final long [] nestingDepth = FormulaMetrics.nestingDepth.toArray();
+      private final long solveCount = FormulaMetrics.solveCount.sum();
+      private final long solveNanos = FormulaMetrics.solveNanos.sum();
+      private final long [] solveLatency = FormulaMetrics.solveLatency.toArray();
+      private final long [] solveRounds = FormulaMetrics.solveRounds.toArray();
+      private final long compiledEvaluations = FormulaMetrics.compiledEvaluations.sum();
+      private final long batchPoints = FormulaMetrics.batchPoints.sum();
+      private final long [] batchLatency = FormulaMetrics.batchLatency.toArray();
+      private final long [] biCalculations = sums(FormulaMetrics.biCalculations);
+      private final long [] specialCalculations = sums(FormulaMetrics.specialCalculations);
+
+      private Snapshot () {}
+
+      public long getParseCount () {return parseCount;}
+      public long getParseNanos () {return parseNanos;}
+      public long [] getParseLatencyHistogram () {return parseLatency.clone();}
+      public long [] getNestingDepthHistogram () {return nestingDepth.clone();}
+      public long getSolveCount () {return solveCount;}
+      public long getSolveNanos () {return solveNanos;}
+      public long [] getSolveLatencyHistogram () {return solveLatency.clone();}
+      /** Histogram of the number of solveExtractedEquations rounds per solve. */
+      public long [] getSolveRoundsHistogram () {return solveRounds.clone();}
+      public long getCompiledEvaluationCount () {return compiledEvaluations;}
+      public long getBatchPointCount () {return batchPoints;}
+      public long [] getBatchLatencyHistogram () {return batchLatency.clone();}
+      public long getBiCalculationCount (Operation z) {return biCalculations[z.ordinal()];}
+      public long getSpecialCalculationCount (SpecialOperation z) {return specialCalculations[z.ordinal()];}
+
+      public String toString () {
+         String ans = "- Parses: " + parseCount + " (" + parseNanos + " ns)\n- Solves: " + solveCount + " (" + solveNanos + " ns)"
+            + "\n- Compiled evaluations: " + compiledEvaluations + "\n- Batch points: " + batchPoints + "\n- Operations:";
+         for (Operation z : Operation.values()) ans += " " + z + "=" + biCalculations[z.ordinal()];
+         ans += "\n- Special Operations:";
+         for (SpecialOperation z : SpecialOperation.values()) ans += " " + z + "=" + specialCalculations[z.ordinal()];
+         return ans;
+      }
+   }
+
+   @Name("operationmanager.Parse")
+   @Label("Formula Parse")
+   @Category("OperationManager")
+   static final class ParseEvent extends Event {
+      @Label("Length")
+      int length;
+      @Label("Nesting Depth")
+      int nestingDepth;
+   }
+
+   @Name("operationmanager.Solve")
+   @Label("Formula Solve")
+   @Category("OperationManager")
+   static final class SolveEvent extends Event {
+      @Label("Rounds")
+      int rounds;
+   }
+}
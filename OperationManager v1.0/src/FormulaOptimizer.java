@@ -0,0 +1,91 @@
+package src;
+
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.SpecialOperation;
+
+/**
+ * Simplification pass over the expression tree of a CompiledFormula.
+ * Every rewrite gives bit for bit the same result for all inputs, NaN and signed zeros included:
+ * - constant subtrees, special operations on constants included, are computed once;
+ * - x*1.0, 1.0*x, x/1.0, x-0.0, x+(-0.0), (-0.0)+x and x^1.0 become x;
+ * - x^0.0 becomes 1.0 (Math.pow returns 1.0 for a zero exponent, even for NaN);
+ * - v^2.0 becomes v*v when v is a variable (the correctly rounded square, as StrictMath.pow returns).
+ * x+0.0 is not rewritten: it turns -0.0 into 0.0. Operations are never reordered, (x*2.0)*3.0 stays as it is.
+ */
+final class FormulaOptimizer {
+   private FormulaOptimizer () {}
+
+   /**
+    * @return simplified tree, or n itself if nothing changed.
+    */
+   static Node optimize (Node n) {
+      if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         Node child = optimize(s.child);
+         if (child instanceof Constant && isFoldable(s.operation)) {
+            return new Constant(FormulaUtility.specialCalculations(s.operation, ((Constant) child).value, s.precision));
+         }
+         return child == s.child ? s : new SpecialNode(s.operation, child, s.precision);
+      }
+      if (n instanceof BiNode) {
+         BiNode b = (BiNode) n;
+         Node left = optimize(b.left);
+         Node right = optimize(b.right);
+         if (left instanceof Constant && right instanceof Constant) {
+            return new Constant(FormulaUtility.biCalculations(b.operation, ((Constant) left).value, ((Constant) right).value));
+         }
+         Node ans = simplify(b.operation, left, right);
+         if (ans != null) return ans;
+         return (left == b.left && right == b.right) ? b : BiNode.create(b.operation, left, right);
+      }
+      return n;
+   }
+
+   /**
+    * Applies the identities of the class comment.
+    * @return simplified node, or null if no identity applies.
+    */
+   private static Node simplify (Operation z, Node left, Node right) {
+      switch (z) {
+         case MULT :
+            if (isConstant(right, 1.0)) return left;
+            if (isConstant(left, 1.0)) return right;
+            return null;
+         case DIV :
+            return isConstant(right, 1.0) ? left : null;
+         case SUB :
+            return isConstant(right, 0.0) ? left : null;
+         case ADD :
+            if (isConstant(right, -0.0)) return left;
+            if (isConstant(left, -0.0)) return right;
+            return null;
+         case EXP :
+            if (isConstant(right, 1.0)) return left;
+            if (isConstant(right, 0.0) || isConstant(right, -0.0)) return new Constant(1.0);
+            if (isConstant(right, 2.0) && left instanceof CompiledFormula.VariableNode) return BiNode.create(Operation.MULT, left, left);
+            return null;
+         default :
+            return null;
+      }
+   }
+
+   /**
+    * True if the node is a constant with exactly these bits (so 0.0 and -0.0 are told apart).
+    */
+   private static boolean isConstant (Node n, double value) {
+      return n instanceof Constant && Double.doubleToRawLongBits(((Constant) n).value) == Double.doubleToRawLongBits(value);
+   }
+
+   private static boolean isFoldable (SpecialOperation z) {
+      switch (z) {
+         case SIN : case COS : case TAN : case LN : case LOG :
+            return true;
+         default :
+            return false;
+      }
+   }
+}
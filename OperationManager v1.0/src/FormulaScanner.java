@@ -0,0 +1,354 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import src.FormulaUtility.TypeWrapper;
+import src.FormulaUtility.Type;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+import src.FormulaUtility.SpecialOperation;
+import src.FormulaUtility.SeparatorPair;
+
+/**
+ * Single pass, char indexed scanner behind the Formula constructor.
+ * Reads a CharSequence without substrings, parses numbers in place (ints, decimals, exponents
+ * and negative literals) and never uses exceptions for control flow: scan returns false and
+ * records the error position and the expected token instead.
+ * A variable is the longest run of name characters (see FormulaUtility.Variable), unless a special
+ * operation, "Infinity" or "NaN" starts there.
+ * Formulas are rejected when their parentheses or their tree would nest deeper than CompiledFormula.MAX_DEPTH,
+ * so a formula that scans always compiles without overflowing the stack.
+ * The place holder '$' is only accepted by the scanners of the formulas Formula.solve builds internally,
+ * any other input containing it is invalid.
+ */
+final class FormulaScanner {
+   final ArrayList<TypeWrapper> function;
+   final ArrayList<Double> numbers = new ArrayList<Double>();
+   final ArrayList<Operation> operations = new ArrayList<Operation>();
+   final ArrayList<Variable> variables = new ArrayList<Variable>();
+   final ArrayList<SpecialOperation> specialOperations = new ArrayList<SpecialOperation>();
+   final ArrayList<SeparatorPair> separators = new ArrayList<SeparatorPair>();
+
+   private final CharSequence f;
+   private final boolean placeholders;
+   private int errorPosition = -1;
+   private String expected;
+   private double number;
+   private int depth = 0;
+   private int maxDepth = 0;
+   /**
+    * Tree depth bookkeeping, GROUP ints per open parenthesis (the whole formula being group 0): the number of special
+    * operations waiting for the next operand, then per order of operation the depth of the left operand waiting
+    * for its right one, 0 if none.
+    */
+   private int [] groups = new int [4 * GROUP];
+   /** Tree depth of the last complete operand. */
+   private int operandDepth = 0;
+   private int treeDepth = 0;
+   private FormulaMetrics.ParseEvent event;
+   private long start;
+
+   private static final String VALUE = "number, variable, special operation or '('";
+   private static final String OPERATOR = "operation or ')'";
+   private static final int GROUP = Operation.numOfOrders + 1;
+   private static final String TOO_DEEP = "a formula at most " + CompiledFormula.MAX_DEPTH + " levels deep";
+
+   /**
+    * Largest power of ten that is exact as a double, used by the fast path of scanNumber.
+    */
+   private static final double [] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+   };
+
+   FormulaScanner (CharSequence f) {
+      this(f, false);
+   }
+
+   /**
+    * @param placeholders: true to accept '$' as a value (PH), for the intermediate formulas of Formula.solve
+    */
+   FormulaScanner (CharSequence f, boolean placeholders) {
+      this.f = f;
+      this.placeholders = placeholders;
+      this.function = new ArrayList<TypeWrapper>(f.length() + 2);
+   }
+
+   int getErrorPosition () {return errorPosition;}
+   String getExpected () {return expected;}
+   /** Deepest parenthesis nesting seen by scan. */
+   int getMaxDepth () {return maxDepth;}
+   /** Depth of the tree CompiledFormula builds for the formula, valid after a successful scan. */
+   int getTreeDepth () {return treeDepth;}
+   /** System.nanoTime() when scan started, only recorded when FormulaMetrics.ENABLED. */
+   long getStart () {return start;}
+   /** JFR event begun when scan started, only when FormulaMetrics.ENABLED. */
+   FormulaMetrics.ParseEvent getParseEvent () {return event;}
+   int length () {return f.length();}
+
+   String getErrorMessage () {
+      return "Incorrect numerical value in input at position " + errorPosition + ": expected " + expected + ".";
+   }
+
+   /**
+    * Scans the whole sequence.
+    * @return true if the formula is valid, false otherwise (see getErrorPosition and getExpected).
+    */
+   boolean scan () {
+      if (FormulaMetrics.ENABLED) {
+         event = FormulaMetrics.parseStarted();
+         start = System.nanoTime();
+      }
+      Type superType = Type.TEMP;
+      int i = 0;
+      while (i < f.length()) {
+         char c = f.charAt(i);
+         if (c == ' ') {
+            i++;
+            continue;
+         }
+         boolean valueExpected = superType == Type.TEMP || superType == Type.OP || superType == Type.S_OP || superType == Type.O_SEP;
+         Type subType = FormulaUtility.toType(c);
+         if (FormulaUtility.isNameStart(c)) {
+            if (FormulaUtility.matchSpecialOperation(f, i) != null) subType = Type.S_OP;
+            else subType = startsNumber(f, i) ? Type.NUM : Type.VAR;
+         }
+
+         if (subType == Type.OP && c == '-' && valueExpected && startsNumber(f, i + 1)) subType = Type.NUM;
+         if (subType == null || (subType == Type.PH && !placeholders)) return error(i, valueExpected ? VALUE : OPERATOR);
+         if (subType == Type.C_SEP || subType == Type.OP) {
+            if (valueExpected) return error(i, VALUE);
+         }
+         else if (!valueExpected) return error(i, OPERATOR);
+
+         switch (subType) {
+            case OP :
+               if (!operator(FormulaUtility.toOperation(c).getOrder())) return error(i, TOO_DEEP);
+               operations.add(FormulaUtility.toOperation(c));
+               function.add(new TypeWrapper (operations.size() - 1, subType));
+               i++;
+               break;
+
+            case VAR :
+               if (!operand(1)) return error(i, TOO_DEEP);
+               int nameEnd = FormulaUtility.nameEnd(f, i);
+               variables.add(FormulaUtility.toVariable(f, i, nameEnd));
+               function.add(new TypeWrapper (variables.size() - 1, subType));
+               i = nameEnd;
+               break;
+
+            case O_SEP :
+               if (depth == CompiledFormula.MAX_DEPTH) return error(i, "at most " + CompiledFormula.MAX_DEPTH + " nested parentheses");
+               if (groups.length < (depth + 2) * GROUP) groups = Arrays.copyOf(groups, 2 * (depth + 2) * GROUP);
+               Arrays.fill(groups, (depth + 1) * GROUP, (depth + 2) * GROUP, 0);
+               separators.add(new SeparatorPair (function.size()));
+               function.add(new TypeWrapper (-1, subType));
+               maxDepth = Math.max(maxDepth, ++depth);
+               i++;
+               break;
+
+            case C_SEP :
+               boolean finished = false;
+               for (int u = separators.size() - 1; u >= 0; u--) {
+                  if (separators.get(u).getFinalIndex() == -1) {
+                     separators.get(u).setFinalIndex(function.size() + 1);
+                     finished = true;
+                     break;
+                  }
+               }
+               if (!finished) return error(i, "operation, ')' has no matching '('");
+               function.add(new TypeWrapper (-1, subType));
+               int inner = close();
+               depth--;
+               if (!operand(inner)) return error(i, TOO_DEEP);
+               i++;
+               break;
+
+            case S_OP :
+               SpecialOperation ans = FormulaUtility.matchSpecialOperation(f, i);
+               if (ans == null) return error(i, VALUE);
+               groups[depth * GROUP]++;
+               specialOperations.add(ans);
+               function.add(new TypeWrapper (specialOperations.size() - 1, subType));
+               i += ans.toString().length();
+               break;
+
+            case NUM :
+               int end = scanNumber(f, i);
+               if (end < 0) return error(-end - 1, "digit");
+               if (!operand(1)) return error(i, TOO_DEEP);
+               numbers.add(number);
+               function.add(new TypeWrapper (numbers.size() - 1, subType));
+               i = end;
+               break;
+
+            case PH :
+               if (!operand(1)) return error(i, TOO_DEEP);
+               function.add(new TypeWrapper (-1, subType));
+               i++;
+               break;
+
+            default : return error(i, VALUE);
+         }
+         superType = subType;
+      }
+
+      if (superType == Type.TEMP || superType == Type.OP || superType == Type.O_SEP || superType == Type.S_OP) return error(f.length(), VALUE);
+
+      for (SeparatorPair k : separators) {
+         if (k.getFinalIndex() == -1) return error(f.length(), "')'");
+      }
+      treeDepth = close();
+      return treeDepth <= CompiledFormula.MAX_DEPTH || error(f.length(), TOO_DEEP);
+   }
+
+   /**
+    * An operand of the given tree depth is complete in the current group: the waiting special operations apply to it.
+    * @return false if it is deeper than CompiledFormula.MAX_DEPTH.
+    */
+   private boolean operand (int d) {
+      operandDepth = d + groups[depth * GROUP];
+      groups[depth * GROUP] = 0;
+      return operandDepth <= CompiledFormula.MAX_DEPTH;
+   }
+
+   /**
+    * An operation of the given order follows the last operand: the operations of lower orders waiting for it get their
+    * right operand, and the result becomes the left operand of this order, joined to the one already waiting there.
+    */
+   private boolean operator (int order) {
+      int base = depth * GROUP;
+      int d = operandDepth;
+      for (int k = 1; k < order; k++) {
+         if (groups[base + k] > 0) d = Math.max(groups[base + k], d) + 1;
+         groups[base + k] = 0;
+      }
+      groups[base + order] = groups[base + order] > 0 ? Math.max(groups[base + order], d) + 1 : d;
+      return groups[base + order] <= CompiledFormula.MAX_DEPTH;
+   }
+
+   /**
+    * @return tree depth of the current group, completing every waiting operation with the last operand.
+    */
+   private int close () {
+      int base = depth * GROUP;
+      int d = operandDepth;
+      for (int k = 1; k < GROUP; k++) {
+         if (groups[base + k] > 0) d = Math.max(groups[base + k], d) + 1;
+      }
+      return d;
+   }
+
+   private boolean error (int position, String expected) {
+      this.errorPosition = position;
+      this.expected = expected;
+      return false;
+   }
+
+   /**
+    * Number value found by the last successful call to scanNumber.
+    */
+   double getNumber () {return number;}
+
+   /**
+    * Parses the number starting at index start: an optional '-', digits, an optional fraction and an
+    * optional exponent ('e' or 'E', optional sign, digits), or one of the Double.toString
+    * spellings "Infinity" and "NaN". The value is stored in getNumber().
+    * Up to 15 significant digits with a small exponent are converted exactly with one multiplication
+    * or division, and up to 19 digits (every Double.toString output) with DecimalParser, in place.
+    * Digits beyond the 19th are dropped unless they can change the rounding; only then the literal is
+    * copied to a String for Double.parseDouble.
+    * @return index right after the number, or -(errorIndex + 1) if the text is not a number.
+    */
+   int scanNumber (CharSequence c, int start) {
+      int i = start;
+      int length = c.length();
+      boolean negative = false;
+      if (i < length && c.charAt(i) == '-') {
+         negative = true;
+         i++;
+      }
+      if (matches(c, i, "Infinity")) {
+         number = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+         return i + 8;
+      }
+      if (matches(c, i, "NaN")) {
+         number = Double.NaN;
+         return i + 3;
+      }
+      if (i >= length || !isDigit(c.charAt(i))) return -i - 1;
+
+      long mantissa = 0; // unsigned: 19 digits can exceed Long.MAX_VALUE
+      int digits = 0;
+      int exponent = 0;
+      while (i < length && isDigit(c.charAt(i))) {
+         if (mantissa != 0 || c.charAt(i) != '0') {
+            if (digits < 19) mantissa = mantissa * 10 + (c.charAt(i) - '0');
+            else exponent++;
+            digits++;
+         }
+         i++;
+      }
+      if (i < length && c.charAt(i) == '.') {
+         i++;
+         while (i < length && isDigit(c.charAt(i))) {
+            if (mantissa != 0 || c.charAt(i) != '0') {
+               if (digits < 19) {
+                  mantissa = mantissa * 10 + (c.charAt(i) - '0');
+                  exponent--;
+               }
+               digits++;
+            }
+            else exponent--;
+            i++;
+         }
+      }
+      if (i < length && (c.charAt(i) == 'e' || c.charAt(i) == 'E')) {
+         i++;
+         boolean negativeExponent = false;
+         if (i < length && (c.charAt(i) == '-' || c.charAt(i) == '+')) {
+            negativeExponent = c.charAt(i) == '-';
+            i++;
+         }
+         if (i >= length || !isDigit(c.charAt(i))) return -i - 1;
+         int e = 0;
+         while (i < length && isDigit(c.charAt(i))) {
+            if (e < 100000) e = e * 10 + (c.charAt(i) - '0');
+            i++;
+         }
+         exponent += negativeExponent ? -e : e;
+      }
+
+      if (mantissa == 0) number = 0.0;
+      else if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+         number = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+      }
+      else {
+         number = DecimalParser.toDouble(mantissa, exponent);
+         if (digits > 19 && number != DecimalParser.toDouble(mantissa + 1, exponent)) {
+            number = Double.parseDouble(c.subSequence(negative ? start + 1 : start, i).toString());
+         }
+      }
+      if (negative) number = -number;
+      return i;
+   }
+
+   static boolean isDigit (char c) {
+      return c >= '0' && c <= '9';
+   }
+
+   /**
+    * @return true if a digit, "Infinity" or "NaN" starts at index i.
+    */
+   static boolean startsNumber (CharSequence c, int i) {
+      return i < c.length() && (isDigit(c.charAt(i)) || matches(c, i, "Infinity") || matches(c, i, "NaN"));
+   }
+
+   private static boolean matches (CharSequence c, int start, String word) {
+      if (start + word.length() > c.length()) return false;
+      for (int i = 0; i < word.length(); i++) {
+         if (c.charAt(start + i) != word.charAt(i)) return false;
+      }
+      return true;
+   }
+}
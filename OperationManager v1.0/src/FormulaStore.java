@@ -0,0 +1,219 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.SpecialOperation;
+import src.FormulaUtility.Variable;
+
+/**
+ * Append-only store of compiled formulas packed in off-heap memory, for keeping millions of formulas resident.
+ * Every formula is one FormulaCodec record (postfix code, constant pool, frame layout) in a direct ByteBuffer
+ * segment, and is addressed by a long handle (segment index and offset). Evaluation interprets the record in
+ * place. The heap only holds the segment array, so live heap and GC work do not grow with the number of formulas.
+ * Formulas over x and y only are stored with the frame layout [x, y], so evaluate(handle, x, y) needs no lookup.
+ * Special operations are stored without their precision and evaluated exactly (see CompiledFormula.withPrecision).
+ * add is synchronized. Evaluation only does absolute reads, so it can run from any thread that obtained the handle
+ * after add returned.
+ */
+public class FormulaStore {
+   public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+   private static final Operation [] OPERATIONS = Operation.values();
+   private static final SpecialOperation [] SPECIAL_OPERATIONS = SpecialOperation.values();
+   /** Layout bytes of [x, y] read as a little-endian int: length 1, 'x', length 1, 'y'. */
+   private static final int XY_LAYOUT = 0x79017801;
+   private static final Variable [] XY = {Variable.X, Variable.Y};
+   /** Frame and stack of the evaluations without a caller stack, reused by every call from the same thread. */
+   private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+   private final int segmentSize;
+   private volatile ByteBuffer [] segments = new ByteBuffer [0];
+   private int used = 0;
+   private long count = 0;
+   private long bytes = 0;
+
+   public FormulaStore () {
+      this(DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+    * @param segmentSize: bytes allocated at once, at least 4096. Larger formulas get a segment of their own.
+    */
+   public FormulaStore (int segmentSize) {
+      if (segmentSize < 4096) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.segmentSize = segmentSize & ~7;
+   }
+
+   /**
+    * @return handle of the stored formula.
+    */
+   public long add (Formula f) {
+      return add(f.compile());
+   }
+
+   public long add (CompiledFormula f) {
+      if (isXY(f.getVariables())) f = f.bind(XY);
+      byte [] record = FormulaCodec.encode(f);
+      synchronized (this) {
+         ByteBuffer [] s = segments;
+         if (s.length == 0 || used + record.length > s[s.length - 1].capacity()) {
+            s = Arrays.copyOf(s, s.length + 1);
+            s[s.length - 1] = ByteBuffer.allocateDirect(Math.max(segmentSize, record.length)).order(ByteOrder.LITTLE_ENDIAN);
+            segments = s;
+            used = 0;
+         }
+         long handle = ((long) (s.length - 1) << 32) | used;
+         s[s.length - 1].put(used, record);
+         used += record.length;
+         count++;
+         bytes += record.length;
+         return handle;
+      }
+   }
+
+   private static boolean isXY (Variable [] variables) {
+      for (Variable v : variables) {
+         if (v != Variable.X && v != Variable.Y) return false;
+      }
+      return true;
+   }
+
+   /** Number of formulas stored. */
+   public synchronized long size () {return count;}
+
+   /** Bytes taken by the records, without the unused end of the segments. */
+   public synchronized long getMemoryUsed () {return bytes;}
+
+   /** Off-heap bytes allocated. */
+   public long getMemoryAllocated () {
+      long ans = 0;
+      for (ByteBuffer b : segments) ans += b.capacity();
+      return ans;
+   }
+
+   /**
+    * Evaluates a formula over x and y at (x, y), on a frame and stack reused by the calling thread (no allocation).
+    */
+   public double evaluate (long handle, double x, double y) {
+      ByteBuffer b = segment(handle);
+      int start = (int) handle;
+      int variableCount = b.getShort(start + 10) & 0xffff;
+      if (variableCount != 0 && (variableCount != 2 || b.getInt(layoutStart(b, start)) != XY_LAYOUT)) {
+         throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y, evaluate it with a frame.");
+      }
+      Scratch scratch = SCRATCH.get();
+      scratch.frame[0] = x;
+      scratch.frame[1] = y;
+      return evaluate(b, start, scratch.frame, scratch.stack(b.getShort(start + 8) & 0xffff));
+   }
+
+   /**
+    * @param frame: value of every variable, indexed by slot (see getVariables)
+    */
+   public double evaluate (long handle, double [] frame) {
+      return evaluate(handle, frame, SCRATCH.get().stack(getStackSize(handle)));
+   }
+
+   /**
+    * Allocation-free variant for loops: stack needs getStackSize(handle) elements and can be reused between calls
+    * (not between threads).
+    */
+   public double evaluate (long handle, double [] frame, double [] stack) {
+      ByteBuffer b = segment(handle);
+      int start = (int) handle;
+      if (frame.length < (b.getShort(start + 10) & 0xffff) || stack.length < (b.getShort(start + 8) & 0xffff)) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return evaluate(b, start, frame, stack);
+   }
+
+   public int getStackSize (long handle) {
+      return segment(handle).getShort((int) handle + 8) & 0xffff;
+   }
+
+   /**
+    * @return frame layout of the formula, decoded from the record.
+    */
+   public Variable [] getVariables (long handle) {
+      return getFormula(handle).getVariables();
+   }
+
+   /**
+    * Decodes the formula back to the heap, for the batch and bytecode paths of CompiledFormula.
+    */
+   public CompiledFormula getFormula (long handle) {
+      ByteBuffer b = segment(handle).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      b.position((int) handle);
+      return FormulaCodec.decode(b);
+   }
+
+   private ByteBuffer segment (long handle) {
+      ByteBuffer [] s = segments;
+      int index = (int) (handle >>> 32);
+      int offset = (int) handle;
+      if (index < 0 || index >= s.length || offset < 0 || (offset & 7) != 0 || offset + FormulaCodec.RECORD_HEADER > s[index].capacity()) throw new InvalidParameterException("Incorrect numerical value in input: invalid formula handle.");
+      return s[index];
+   }
+
+   private static final class Scratch {
+      final double [] frame = new double [2];
+      private double [] stack = new double [16];
+
+      /**
+       * @return the stack of this thread, grown to at least size.
+       */
+      double [] stack (int size) {
+         if (stack.length < size) stack = new double [Math.max(size, 2 * stack.length)];
+         return stack;
+      }
+   }
+
+   private static int layoutStart (ByteBuffer b, int start) {
+      return start + FormulaCodec.align(FormulaCodec.RECORD_HEADER + b.getInt(start)) + 8 * b.getInt(start + 4);
+   }
+
+   /**
+    * Interprets the postfix code of the record at start.
+    */
+   private static double evaluate (ByteBuffer b, int start, double [] frame, double [] stack) {
+      int code = start + FormulaCodec.RECORD_HEADER;
+      int end = code + b.getInt(start);
+      int constant = start + FormulaCodec.align(FormulaCodec.RECORD_HEADER + b.getInt(start));
+      int top = 0;
+      for (int i = code; i < end; i++) {
+         int op = b.get(i) & 0xff;
+         if (op >= FormulaCodec.VARIABLE) {
+            stack[top++] = frame[op - FormulaCodec.VARIABLE];
+         }
+         else if (op == FormulaCodec.CONSTANT) {
+            stack[top++] = b.getDouble(constant);
+            constant += 8;
+         }
+         else if (op < FormulaCodec.SPECIAL_OPERATION) {
+            double r = stack[--top];
+            double l = stack[top - 1];
+            switch (OPERATIONS[op - FormulaCodec.OPERATION]) {
+               case ADD :
+                  stack[top - 1] = l + r;
+                  break;
+               case SUB :
+                  stack[top - 1] = l - r;
+                  break;
+               case DIV :
+                  stack[top - 1] = l / r;
+                  break;
+               case MULT :
+                  stack[top - 1] = l * r;
+                  break;
+               default :
+                  stack[top - 1] = Math.pow(l, r);
+            }
+         }
+         else {
+            stack[top - 1] = FormulaUtility.specialCalculations(SPECIAL_OPERATIONS[op - FormulaCodec.SPECIAL_OPERATION], stack[top - 1]);
+         }
+      }
+      return stack[0];
+   }
+}
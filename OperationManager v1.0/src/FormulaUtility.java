@@ -1,7 +1,11 @@
 package src;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FormulaUtility {
    public static final String[] OPERATIONS = {"^", "*", "/", "+","-"};
@@ -20,10 +24,78 @@ public class FormulaUtility {
       public String toString () {return t;}
    }
 
-   public enum Variable {
-      X ("x"), Y ("y");
+   /**
+    * Variable of a formula. x and y are the predefined X and Y, other names are obtained with of(name).
+    * Instances are interned, so variables with the same name are the same object and can be compared with ==.
+    * The interning table holds its variables weakly: a name no live object refers to any more (say, from a
+    * formula that failed to parse) is dropped, so it does not grow with every name ever read.
+    * A name is made of ASCII letters, digits and '_', does not start with a digit, and does not start with a
+    * special operation name, "Infinity" or "NaN" (the formula would read those as the operation or the number).
+    */
+   public static final class Variable {
+      public static final Variable X = new Variable ("x");
+      public static final Variable Y = new Variable ("y");
+      private static final ConcurrentHashMap<String, Name> names = new ConcurrentHashMap<String, Name>();
+      private static final ReferenceQueue<Variable> collected = new ReferenceQueue<Variable>();
+      static {
+         names.put(X.t, new Name(X));
+         names.put(Y.t, new Name(Y));
+      }
+
       private final String t;
       private Variable (String c) {t = c;}
+
+      public static Variable of (String name) {
+         Name known = names.get(name);
+         Variable ans = known == null ? null : known.get();
+         if (ans != null) return ans;
+         if (name.isEmpty() || nameEnd(name, 0) != name.length() || matchSpecialOperation(name, 0) != null || FormulaScanner.startsNumber(name, 0)) {
+            throw new InvalidParameterException("Incorrect numerical value in input: invalid variable name " + name + ".");
+         }
+         expunge();
+         Variable created = new Variable (name);
+         Name fresh = new Name(created);
+         while (true) {
+            Name current = names.putIfAbsent(name, fresh);
+            if (current == null) return created;
+            ans = current.get();
+            if (ans != null) return ans;
+            if (names.replace(name, current, fresh)) return created;
+         }
+      }
+
+      /**
+       * @return true if a variable with this name is currently interned.
+       */
+      static boolean isInterned (String name) {
+         expunge();
+         Name known = names.get(name);
+         return known != null && known.get() != null;
+      }
+
+      /**
+       * Removes the entries of the collected variables.
+       */
+      private static void expunge () {
+         for (Reference<? extends Variable> r = collected.poll(); r != null; r = collected.poll()) {
+            Name n = (Name) r;
+            names.remove(n.name, n);
+         }
+      }
+
+      /**
+       * Entry of the interning table, queued once its variable is collected.
+       */
+      private static final class Name extends WeakReference<Variable> {
+         private final String name;
+
+         private Name (Variable v) {
+            super(v, collected);
+            name = v.t;
+         }
+      }
+
+      public String getName () {return t;}
       public String toString () {return t;}
    }
 
@@ -48,6 +120,13 @@ public class FormulaUtility {
       public String toString () {return t;}
    }
 
+   /**
+    * Precision of the special operations: EXACT uses Math, FAST the approximations of FastMath, within FastMath.ERROR.
+    */
+   public enum Precision {
+      EXACT, FAST
+   }
+
    public enum Separator {
       OPEN ("("), CLOSE (")");
       String g;
@@ -108,100 +187,133 @@ public class FormulaUtility {
       }
    }
 
-   public static Type toType (String g) {
-      for (String j : OPERATIONS) {
-         if (g.equals(j)) return Type.OP;
+   /**
+    * Classifies a single character. Digits, 'I' (Infinity) and 'N' (NaN) start numbers.
+    * '-' is returned as an operation, the caller decides whether it starts a negative number.
+    * @return Type of the character, or null if it is not part of the formula syntax.
+    */
+   public static Type toType (char c) {
+      switch (c) {
+         case '^' : case '*' : case '/' : case '+' : case '-' :
+            return Type.OP;
+         case 'x' : case 'y' :
+            return Type.VAR;
+         case '(' :
+            return Type.O_SEP;
+         case ')' :
+            return Type.C_SEP;
+         case 'l' : case 's' : case 'c' : case 't' :
+            return Type.S_OP;
+         case '$' :
+            return Type.PH;
+         case 'I' : case 'N' :
+            return Type.NUM;
+         default :
+            return (c >= '0' && c <= '9') ? Type.NUM : null;
       }
+   }
 
-      for (String j : VARIABLES) {
-         if (g.equals(j)) return Type.VAR;
+   public static Type toType (String g) {
+      Type ans = g.length() == 1 ? toType(g.charAt(0)) : null;
+      if (ans != null) return ans;
+      if (g.length() == 0) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < g.length(); i++) {
+         if (g.charAt(i) < '0' || g.charAt(i) > '9') throw new InvalidParameterException("Incorrect numerical value in input.");
       }
+      return Type.NUM;
+   }
 
-      for (String j : OPEN_SEPARATORS) {
-         if (g.equals(j)) return Type.O_SEP;
-      }
-      
-      for (String j : CLOSED_SEPARATORS) {
-         if (g.equals(j)) return Type.C_SEP;
+   public static Variable toVariable (char c) {
+      switch (c) {
+         case 'x' : return Variable.X;
+         case 'y' : return Variable.Y;
+         default : throw new InvalidParameterException("Incorrect numerical value in input.");
       }
+   }
 
-      for (String j : SPECIAL_OPERATION_STARTERS) {
-         if (g.equals(j)) return Type.S_OP;
-      }
+   public static Variable toVariable (String g) {
+      return Variable.of(g);
+   }
 
-      if (g.equals("$")) return Type.PH;
+   /**
+    * Variable whose name is c[start, end), without building a String for x and y.
+    */
+   static Variable toVariable (CharSequence c, int start, int end) {
+      if (end == start + 1 && (c.charAt(start) == 'x' || c.charAt(start) == 'y')) return toVariable(c.charAt(start));
+      return Variable.of(c.subSequence(start, end).toString());
+   }
 
-      try {
-         Integer.parseInt(g);
-         return Type.NUM;
-      }
-      catch (NumberFormatException e) {
-         throw new InvalidParameterException("Incorrect numerical value in input.");
-      }
+   public static boolean isNameStart (char c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
    }
 
-   public static Variable toVariable (String g) {
-      switch (g) {
-         case "x" : return Variable.X;
-         case "y" : return Variable.Y;
+   public static boolean isNamePart (char c) {
+      return isNameStart(c) || (c >= '0' && c <= '9');
+   }
+
+   /**
+    * @return index after the name starting at start, or start if no name starts there.
+    */
+   public static int nameEnd (CharSequence c, int start) {
+      if (start >= c.length() || !isNameStart(c.charAt(start))) return start;
+      int i = start + 1;
+      while (i < c.length() && isNamePart(c.charAt(i))) i++;
+      return i;
+   }
+
+   public static Operation toOperation (char c) {
+      switch (c) {
+         case '^' :  return Operation.EXP;
+         case '*' :  return Operation.MULT;
+         case '/' :  return Operation.DIV;
+         case '+' :  return Operation.ADD;
+         case '-' :  return Operation.SUB;
          default : throw new InvalidParameterException("Incorrect numerical value in input.");
       }
    }
 
    public static Operation toOperation (String g) {
-      switch (g) {
-         case "^" :  return Operation.EXP;
-         case "*" :  return Operation.MULT;
-         case "/" :  return Operation.DIV;
-         case "+" :  return Operation.ADD;
-         case "-" :  return Operation.SUB;
-         default : throw new InvalidParameterException("Incorrect numerical value in input.");
-      }
+      if (g.length() != 1) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return toOperation(g.charAt(0));
    }
 
    public static SpecialOperation toSpecialOperation (String g) {
-      switch (g) {
-         case "ln" :  return SpecialOperation.LN;
-         case "log" :  return SpecialOperation.LOG;
-         case "sin" :  return SpecialOperation.SIN;
-         case "cos" :  return SpecialOperation.COS;
-         case "tan" :  return SpecialOperation.TAN;
-         default : throw new InvalidParameterException("Incorrect numerical value in input.");
-      }
+      SpecialOperation ans = matchSpecialOperation(g, 0);
+      if (ans == null || ans.toString().length() != g.length()) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return ans;
    }
 
-   public static double extractDouble (String c, int initialIndex) {
-      int i = initialIndex;
-      String tAns = "";
-      while (i < c.length()) {
-         try {
-            tAns += Integer.parseInt(c.substring(i, i+1));
+   /**
+    * Finds the special operation whose name starts at initialIndex, comparing characters in place.
+    * @return SpecialOperation, or null if none starts there.
+    */
+   public static SpecialOperation matchSpecialOperation (CharSequence c, int initialIndex) {
+      for (SpecialOperation s : SpecialOperation.values()) {
+         String name = s.toString();
+         if (initialIndex + name.length() > c.length()) continue;
+         boolean matches = true;
+         for (int i = 0; i < name.length() && matches; i++) {
+            matches = c.charAt(initialIndex + i) == name.charAt(i);
          }
-         catch (NumberFormatException e) {
-            if (c.substring(i, i+1).equals(".")) tAns += ".";
-            else break;
-         }
-         i++;
+         if (matches) return s;
       }
-      try {return Double.parseDouble(tAns);}
-      catch (NumberFormatException e) {throw new InvalidParameterException("Incorrect numerical value in input.");}
+      return null;
    }
 
-   public static SpecialOperation extractSpecialOperation (String c, int initialIndex) {
+   public static double extractDouble (String c, int initialIndex) {
+      FormulaScanner scanner = new FormulaScanner(c);
+      if (scanner.scanNumber(c, initialIndex) < 0) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return scanner.getNumber();
+   }
 
-      final int maxLength = 3;
-      final int minLength = 2;
-      if ((c.length() - initialIndex) < minLength) throw new InvalidParameterException("Incorrect numerical value in input.");
-      for (int i = minLength; i <= maxLength; i++) {
-         try {
-            return toSpecialOperation(c.substring(initialIndex, initialIndex + i));
-         }
-         catch (InvalidParameterException e) {;}
-      }
-      throw new InvalidParameterException("Incorrect numerical value in input.");  
+   public static SpecialOperation extractSpecialOperation (String c, int initialIndex) {
+      SpecialOperation ans = matchSpecialOperation(c, initialIndex);
+      if (ans == null) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return ans;
    }
 
    public static double biCalculations (Operation z, double x, double y) {
+      if (FormulaMetrics.ENABLED) FormulaMetrics.biCalculation(z);
       switch (z) {
          case ADD :
             return x + y;
@@ -219,6 +331,7 @@ public class FormulaUtility {
    }
 
    public static double specialCalculations (SpecialOperation z, double x) {
+      if (FormulaMetrics.ENABLED) FormulaMetrics.specialCalculation(z);
       switch (z) {
          case SIN :
             return Math.sin(x);
@@ -228,8 +341,16 @@ public class FormulaUtility {
             return Math.log10(x);
          case LN :
             return Math.log(x);
+         case TAN :
+            return Math.tan(x);
          default :
             throw new InvalidParameterException("Incorrect numerical value in input.");
       }
    }
+
+   public static double specialCalculations (SpecialOperation z, double x, Precision p) {
+      if (p == Precision.EXACT) return specialCalculations(z, x);
+      if (FormulaMetrics.ENABLED) FormulaMetrics.specialCalculation(z);
+      return FastMath.calculate(z, x);
+   }
 }
\ No newline at end of file
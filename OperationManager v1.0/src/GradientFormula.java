@@ -0,0 +1,286 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Precision;
+import src.FormulaUtility.SpecialOperation;
+import src.FormulaUtility.Variable;
+
+/**
+ * Forward mode automatic differentiation: the value of a formula and its derivative by every variable, in one walk
+ * of the compiled tree. Every node computes its value together with its gradient (one derivative per frame slot).
+ * Rules:
+ * - a + b, a - b: a' + b', a' - b'
+ * - a * b: a' b + a b'
+ * - a / b: a' / b - b' a / b^2
+ * - a ^ b: a' b a^(b - 1) + b' a^b ln(a). The second term is left out where b' is 0, so constant exponents work
+ *   with negative bases, and where a^b is 0, so 0^b (b > 0) has derivative 0 by b instead of 0 * -Infinity.
+ * - sin, cos, tan: a' cos(a), -a' sin(a), a' (1 + tan(a)^2)
+ * - ln, log: a' / a, a' / (a ln 10)
+ * A derivative that is 0 stays 0 whatever it is multiplied by, so the gradient by a variable the subtree does not
+ * use is exactly 0 even where the value is infinite. Special operations at Precision.FAST also take their
+ * derivative at that precision.
+ * Results are exact derivatives of the evaluated expression, with no step size, up to rounding.
+ * The batch methods walk the tree once per block of CompiledFormula.BATCH_SIZE points, like CompiledFormula.
+ * GradientFormula is immutable and safe to share between threads.
+ */
+public class GradientFormula {
+   private static final double LN10 = Math.log(10);
+
+   private final CompiledFormula formula;
+   private final Node root;
+   private final Variable [] variables;
+   private final int slots;
+   private final int depth;
+
+   public GradientFormula (Formula f) {
+      this(f.compile());
+   }
+
+   public GradientFormula (CompiledFormula f) {
+      this.formula = f;
+      this.root = f.getRoot();
+      this.variables = f.getVariables();
+      this.slots = variables.length;
+      this.depth = root.scratchLevels() + 1;
+   }
+
+   public CompiledFormula getFormula () {return formula;}
+
+   /**
+    * @return {f, df/dx, df/dy} at (x, y).
+    */
+   public double [] evaluate (double x, double y) {
+      double [] frame = new double [slots];
+      for (int i = 0; i < slots; i++) {
+         if (variables[i] != Variable.X && variables[i] != Variable.Y) throw notXY();
+         frame[i] = variables[i] == Variable.X ? x : y;
+      }
+      double [] gradient = new double [slots];
+      double [] ans = new double [3];
+      ans[0] = evaluate(frame, gradient);
+      for (int i = 0; i < slots; i++) ans[variables[i] == Variable.X ? 1 : 2] = gradient[i];
+      return ans;
+   }
+
+   /**
+    * @param frame: value of every variable, indexed by slot (see CompiledFormula.getVariables)
+    * @param gradient: receives the derivative by every variable, indexed by slot, at least getFrameSize() elements
+    * @return value of the formula.
+    */
+   public double evaluate (double [] frame, double [] gradient) {
+      if (frame.length < slots || gradient.length < slots) throw new InvalidParameterException("Incorrect numerical value in input.");
+      double [] values = new double [depth];
+      double [] derivatives = new double [depth * slots];
+      evaluate(root, frame, values, derivatives, 0);
+      System.arraycopy(derivatives, 0, gradient, 0, slots);
+      return values[0];
+   }
+
+   /**
+    * Evaluates every point (xs[i], ys[i]): value[i] = f, dx[i] = df/dx, dy[i] = df/dy.
+    * @param ys: y values, at least as long as xs
+    * @param value, dx, dy: results, at least as long as xs
+    */
+   public void evaluate (double [] xs, double [] ys, double [] value, double [] dx, double [] dy) {
+      int length = xs.length;
+      if (ys.length < length || value.length < length || dx.length < length || dy.length < length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      double [][] columns = new double [slots][];
+      double [][] gradient = new double [slots][];
+      boolean hasX = false, hasY = false;
+      for (int i = 0; i < slots; i++) {
+         if (variables[i] != Variable.X && variables[i] != Variable.Y) throw notXY();
+         hasX |= variables[i] == Variable.X;
+         hasY |= variables[i] == Variable.Y;
+         columns[i] = variables[i] == Variable.X ? xs : ys;
+         gradient[i] = variables[i] == Variable.X ? dx : dy;
+      }
+      if (!hasX) Arrays.fill(dx, 0, length, 0);
+      if (!hasY) Arrays.fill(dy, 0, length, 0);
+      evaluateColumns(columns, value, gradient, 0, length);
+   }
+
+   /**
+    * Evaluates the points offset <= i < offset + length of a columnar frame (columns[slot][i] is the value of the
+    * variable of that slot at point i): value[i] = f and gradient[slot][i] = df/d(variable of slot).
+    */
+   public void evaluate (double [][] columns, double [] value, double [][] gradient, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > value.length || columns.length < slots || gradient.length < slots) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < slots; i++) {
+         if (columns[i] == null || gradient[i] == null || offset + length > columns[i].length || offset + length > gradient[i].length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      }
+      evaluateColumns(columns, value, gradient, offset, length);
+   }
+
+   /** Number of slots a frame and a gradient need. */
+   public int getFrameSize () {return slots;}
+
+   private static InvalidParameterException notXY () {
+      return new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y, evaluate it with a frame.");
+   }
+
+   private void evaluateColumns (double [][] columns, double [] value, double [][] gradient, int offset, int length) {
+      int block = Math.min(length, CompiledFormula.BATCH_SIZE);
+      double [][] values = new double [depth][block];
+      double [][][] derivatives = new double [depth][slots][block];
+      for (int done = 0; done < length; done += CompiledFormula.BATCH_SIZE) {
+         int n = Math.min(CompiledFormula.BATCH_SIZE, length - done);
+         evaluate(root, columns, offset + done, n, values, derivatives, 0);
+         System.arraycopy(values[0], 0, value, offset + done, n);
+         for (int j = 0; j < slots; j++) System.arraycopy(derivatives[0][j], 0, gradient[j], offset + done, n);
+      }
+   }
+
+   /** d * s, or 0 if d is 0. */
+   private static double scale (double d, double s) {
+      return d == 0 ? 0 : d * s;
+   }
+
+   /**
+    * Derivative of the special operation z at a, value being z(a).
+    */
+   private static double slope (SpecialOperation z, double a, double value, Precision p) {
+      switch (z) {
+         case SIN :
+            return FormulaUtility.specialCalculations(SpecialOperation.COS, a, p);
+         case COS :
+            return -FormulaUtility.specialCalculations(SpecialOperation.SIN, a, p);
+         case TAN :
+            return 1 + value * value;
+         case LN :
+            return Double.isNaN(value) ? Double.NaN : 1 / a;
+         default :
+            return Double.isNaN(value) ? Double.NaN : 1 / (a * LN10);
+      }
+   }
+
+   /**
+    * Computes the value of node n into v[level] and its gradient into d[level * slots, (level + 1) * slots),
+    * using deeper levels for the right operands.
+    */
+   private void evaluate (Node n, double [] frame, double [] v, double [] d, int level) {
+      int g = level * slots;
+      if (n instanceof Constant) {
+         v[level] = ((Constant) n).value;
+         Arrays.fill(d, g, g + slots, 0);
+      }
+      else if (n instanceof VariableNode) {
+         int slot = ((VariableNode) n).slot;
+         v[level] = frame[slot];
+         Arrays.fill(d, g, g + slots, 0);
+         d[g + slot] = 1;
+      }
+      else if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         evaluate(s.child, frame, v, d, level);
+         double a = v[level];
+         v[level] = FormulaUtility.specialCalculations(s.operation, a, s.precision);
+         double k = slope(s.operation, a, v[level], s.precision);
+         for (int j = g; j < g + slots; j++) d[j] = scale(d[j], k);
+      }
+      else {
+         BiNode b = (BiNode) n;
+         evaluate(b.left, frame, v, d, level);
+         evaluate(b.right, frame, v, d, level + 1);
+         double l = v[level], r = v[level + 1];
+         int h = g + slots;
+         switch (b.operation) {
+            case ADD :
+               v[level] = l + r;
+               for (int j = 0; j < slots; j++) d[g + j] += d[h + j];
+               break;
+            case SUB :
+               v[level] = l - r;
+               for (int j = 0; j < slots; j++) d[g + j] -= d[h + j];
+               break;
+            case MULT :
+               v[level] = l * r;
+               for (int j = 0; j < slots; j++) d[g + j] = scale(d[g + j], r) + scale(d[h + j], l);
+               break;
+            case DIV :
+               v[level] = l / r;
+               for (int j = 0; j < slots; j++) d[g + j] = scale(d[g + j], 1 / r) - scale(d[h + j], v[level] / r);
+               break;
+            default :
+               v[level] = Math.pow(l, r);
+               double base = r == 0 ? 0 : r * Math.pow(l, r - 1);
+               double exponent = v[level] == 0 ? 0 : v[level] * Math.log(l);
+               for (int j = 0; j < slots; j++) d[g + j] = scale(d[g + j], base) + scale(d[h + j], exponent);
+         }
+      }
+   }
+
+   /**
+    * Batch walk: computes the values of node n for count points starting at index from of the columns into
+    * v[level][0, count), and its derivative by slot j into d[level][j][0, count).
+    */
+   private void evaluate (Node n, double [][] columns, int from, int count, double [][] v, double [][][] d, int level) {
+      double [] value = v[level];
+      double [][] gradient = d[level];
+      if (n instanceof Constant) {
+         Arrays.fill(value, 0, count, ((Constant) n).value);
+         for (int j = 0; j < slots; j++) Arrays.fill(gradient[j], 0, count, 0);
+      }
+      else if (n instanceof VariableNode) {
+         int slot = ((VariableNode) n).slot;
+         System.arraycopy(columns[slot], from, value, 0, count);
+         for (int j = 0; j < slots; j++) Arrays.fill(gradient[j], 0, count, j == slot ? 1 : 0);
+      }
+      else if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         evaluate(s.child, columns, from, count, v, d, level);
+         for (int i = 0; i < count; i++) {
+            double a = value[i];
+            value[i] = FormulaUtility.specialCalculations(s.operation, a, s.precision);
+            double k = slope(s.operation, a, value[i], s.precision);
+            for (int j = 0; j < slots; j++) gradient[j][i] = scale(gradient[j][i], k);
+         }
+      }
+      else {
+         BiNode b = (BiNode) n;
+         evaluate(b.left, columns, from, count, v, d, level);
+         evaluate(b.right, columns, from, count, v, d, level + 1);
+         double [] right = v[level + 1];
+         double [][] rightGradient = d[level + 1];
+         switch (b.operation) {
+            case ADD :
+               for (int i = 0; i < count; i++) value[i] += right[i];
+               for (int j = 0; j < slots; j++) {
+                  for (int i = 0; i < count; i++) gradient[j][i] += rightGradient[j][i];
+               }
+               break;
+            case SUB :
+               for (int i = 0; i < count; i++) value[i] -= right[i];
+               for (int j = 0; j < slots; j++) {
+                  for (int i = 0; i < count; i++) gradient[j][i] -= rightGradient[j][i];
+               }
+               break;
+            case MULT :
+               for (int j = 0; j < slots; j++) {
+                  for (int i = 0; i < count; i++) gradient[j][i] = scale(gradient[j][i], right[i]) + scale(rightGradient[j][i], value[i]);
+               }
+               for (int i = 0; i < count; i++) value[i] *= right[i];
+               break;
+            case DIV :
+               for (int i = 0; i < count; i++) value[i] /= right[i];
+               for (int j = 0; j < slots; j++) {
+                  for (int i = 0; i < count; i++) gradient[j][i] = scale(gradient[j][i], 1 / right[i]) - scale(rightGradient[j][i], value[i] / right[i]);
+               }
+               break;
+            default :
+               for (int i = 0; i < count; i++) {
+                  double l = value[i], r = right[i];
+                  value[i] = Math.pow(l, r);
+                  double base = r == 0 ? 0 : r * Math.pow(l, r - 1);
+                  double exponent = value[i] == 0 ? 0 : value[i] * Math.log(l);
+                  for (int j = 0; j < slots; j++) gradient[j][i] = scale(gradient[j][i], base) + scale(rightGradient[j][i], exponent);
+               }
+         }
+      }
+   }
+}
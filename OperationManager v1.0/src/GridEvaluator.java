@@ -0,0 +1,141 @@
+package src;
+
+import java.nio.DoubleBuffer;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a formula over a regular (x, y) grid in parallel.
+ * The grid is split recursively into tiles that run on a ForkJoinPool (with work stealing),
+ * and every tile is evaluated row by row with the batch path of CompiledFormula.
+ * Results are row-major: the value for column i and row j is at index j * xResolution + i,
+ * where column i has x = xMin + i * (xMax - xMin) / (xResolution - 1), and the same for rows and y.
+ * A GridEvaluator only holds immutable state and can be shared between threads.
+ */
+public class GridEvaluator {
+   public static final int DEFAULT_TILE_SIZE = 16384;
+
+   private final CompiledFormula formula;
+   private final ForkJoinPool pool;
+   private final int tileSize;
+
+   public GridEvaluator (Formula f) {
+      this(f.compile());
+   }
+
+   public GridEvaluator (CompiledFormula f) {
+      this(f, ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+   }
+
+   /**
+    * @param f: The formula to evaluate
+    * @param pool: The pool running the tiles
+    * @param tileSize: maximum number of points evaluated by one task
+    */
+   public GridEvaluator (CompiledFormula f, ForkJoinPool pool, int tileSize) {
+      if (tileSize < 1) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.formula = f;
+      this.pool = pool;
+      this.tileSize = tileSize;
+   }
+
+   /**
+    * @return new row-major array of xResolution * yResolution values.
+    */
+   public double [] evaluate (double xMin, double xMax, int xResolution, double yMin, double yMax, int yResolution) {
+      double [] out = new double [checkedSize(xResolution, yResolution)];
+      evaluate(xMin, xMax, xResolution, yMin, yMax, yResolution, out);
+      return out;
+   }
+
+   public void evaluate (double xMin, double xMax, int xResolution, double yMin, double yMax, int yResolution, double [] out) {
+      if (out.length < checkedSize(xResolution, yResolution)) throw new InvalidParameterException("Incorrect numerical value in input.");
+      pool.invoke(new Tile(new Grid(xMin, xMax, xResolution, yMin, yMax, yResolution, out, null), 0, yResolution, 0, xResolution));
+   }
+
+   /**
+    * Fills out starting at its index 0 (absolute puts, the position of the buffer is not changed).
+    */
+   public void evaluate (double xMin, double xMax, int xResolution, double yMin, double yMax, int yResolution, DoubleBuffer out) {
+      if (out.limit() < checkedSize(xResolution, yResolution)) throw new InvalidParameterException("Incorrect numerical value in input.");
+      pool.invoke(new Tile(new Grid(xMin, xMax, xResolution, yMin, yMax, yResolution, null, out), 0, yResolution, 0, xResolution));
+   }
+
+   private static int checkedSize (int xResolution, int yResolution) {
+      if (xResolution < 1 || yResolution < 1 || (long) xResolution * yResolution > Integer.MAX_VALUE) throw new InvalidParameterException("Incorrect numerical value in input.");
+      return xResolution * yResolution;
+   }
+
+   static double coordinate (double min, double max, int resolution, int i) {
+      return resolution == 1 ? min : min + i * ((max - min) / (resolution - 1));
+   }
+
+   /**
+    * Grid description and output shared by all tiles of one call.
+    */
+   private static class Grid {
+      private final double [] xValues;
+      private final double [] yValues;
+      private final double [] array;
+      private final DoubleBuffer buffer;
+
+      private Grid (double xMin, double xMax, int xResolution, double yMin, double yMax, int yResolution, double [] array, DoubleBuffer buffer) {
+         xValues = new double [xResolution];
+         for (int i = 0; i < xResolution; i++) xValues[i] = coordinate(xMin, xMax, xResolution, i);
+         yValues = new double [yResolution];
+         for (int j = 0; j < yResolution; j++) yValues[j] = coordinate(yMin, yMax, yResolution, j);
+         this.array = array;
+         this.buffer = buffer;
+      }
+   }
+
+   @SuppressWarnings("serial")
+   private class Tile extends RecursiveAction {
+      private final Grid grid;
+      private final int rowStart, rowEnd, columnStart, columnEnd;
+
+      private Tile (Grid grid, int rowStart, int rowEnd, int columnStart, int columnEnd) {
+         this.grid = grid;
+         this.rowStart = rowStart;
+         this.rowEnd = rowEnd;
+         this.columnStart = columnStart;
+         this.columnEnd = columnEnd;
+      }
+
+      protected void compute () {
+         int rows = rowEnd - rowStart;
+         int columns = columnEnd - columnStart;
+         if ((long) rows * columns <= tileSize) {
+            evaluateTile();
+         }
+         else if (rows > 1) {
+            int middle = rowStart + rows / 2;
+            invokeAll(new Tile(grid, rowStart, middle, columnStart, columnEnd), new Tile(grid, middle, rowEnd, columnStart, columnEnd));
+         }
+         else {
+            int middle = columnStart + columns / 2;
+            invokeAll(new Tile(grid, rowStart, rowEnd, columnStart, middle), new Tile(grid, rowStart, rowEnd, middle, columnEnd));
+         }
+      }
+
+      private void evaluateTile () {
+         int columns = columnEnd - columnStart;
+         int width = grid.xValues.length;
+         double [] ys = new double [width];
+         double [] out = grid.array != null ? null : new double [columns];
+         for (int row = rowStart; row < rowEnd; row++) {
+            Arrays.fill(ys, columnStart, columnEnd, grid.yValues[row]);
+            int index = row * width + columnStart;
+            if (grid.array != null) {
+               formula.evaluate(grid.xValues, ys, columnStart, grid.array, index, columns);
+            }
+            else {
+               formula.evaluate(grid.xValues, ys, columnStart, out, 0, columns);
+               grid.buffer.put(index, out, 0, columns);
+            }
+         }
+      }
+   }
+}
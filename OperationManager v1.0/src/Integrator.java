@@ -0,0 +1,348 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleBinaryOperator;
+import src.FormulaUtility.Variable;
+
+/**
+ * Adaptive numerical integration of a formula over x in [a, b] (y fixed), or over the rectangle [xMin, xMax] x [yMin, yMax].
+ * Every piece of the domain is estimated with a rule that also estimates its own error. Pieces whose error is above
+ * their share of the tolerance are split in two, and each half gets half the tolerance. Work goes where the integrand
+ * is hard, so smooth regions cost a handful of evaluations, unlike uniform sampling.
+ * Halves are forked on a ForkJoinPool down to FORK_DEPTH levels, then refined in the same task.
+ * maxEvaluations is shared by all the tasks: when it runs out, pieces stop splitting and the result is not converged.
+ * Rules:
+ * - gaussKronrod: 15 point Kronrod rule, error |K15 - G7| against its embedded 7 point Gauss rule;
+ * - simpson: Simpson's rule on the piece and on its halves, error |S2 - S1| / 15, result Richardson corrected;
+ * - cubature: Genz-Malik rule, degree 7 with 17 points and an embedded degree 5 rule for the error. Rectangles are
+ *   split across the axis where the fourth difference of f is largest.
+ * The formula is evaluated with CompiledFormula.toBytecode. Tolerances are absolute.
+ */
+public class Integrator {
+   public static final int DEFAULT_MAX_EVALUATIONS = 1_000_000;
+   /** Levels of splitting that fork new tasks. Deeper splits run in the task that found them. */
+   public static final int FORK_DEPTH = 10;
+   /** Deepest split, beyond which pieces are too small to be split in double precision anyway. */
+   private static final int MAX_DEPTH = 60;
+
+   private static final double [] KRONROD_NODES = {
+      0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+      0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+      0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+      0.207784955007898467600689403773245, 0.0
+   };
+   private static final double [] KRONROD_WEIGHTS = {
+      0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+      0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+      0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+      0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+   };
+   /** Weights of the Gauss rule on the odd Kronrod nodes 1, 3, 5 and 7. */
+   private static final double [] GAUSS_WEIGHTS = {
+      0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+      0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+   };
+
+   /** Genz-Malik generators and weights for two dimensions, weights normalized to sum 1. */
+   private static final double GM_L2 = Math.sqrt(9.0 / 70);
+   private static final double GM_L3 = Math.sqrt(9.0 / 10);
+   private static final double GM_L5 = Math.sqrt(9.0 / 19);
+   private static final double GM_W1 = -3816.0 / 19683, GM_W2 = 980.0 / 6561, GM_W3 = 1020.0 / 19683, GM_W4 = 200.0 / 19683, GM_W5 = 6859.0 / 19683 / 4;
+   private static final double GM_E1 = -971.0 / 729, GM_E2 = 245.0 / 486, GM_E3 = 65.0 / 1458, GM_E4 = 25.0 / 729;
+
+   private final CompiledFormula formula;
+   private final DoubleBinaryOperator f;
+   private final ForkJoinPool pool;
+
+   public Integrator (Formula f) {
+      this(f.compile());
+   }
+
+   public Integrator (CompiledFormula f) {
+      this(f, ForkJoinPool.commonPool());
+   }
+
+   public Integrator (CompiledFormula f, ForkJoinPool pool) {
+      if (pool == null) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (Variable v : f.getVariables()) {
+         if (v != Variable.X && v != Variable.Y) throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y.");
+      }
+      this.formula = f;
+      this.f = f.toBytecode();
+      this.pool = pool;
+   }
+
+   public CompiledFormula getFormula () {return formula;}
+
+   /**
+    * Outcome of an integration.
+    */
+   public static final class Result {
+      public final double value;
+      /** Sum of the error estimates of the final pieces. */
+      public final double error;
+      public final long evaluations;
+      /** True if every piece met its tolerance, false if the evaluation budget ran out first. */
+      public final boolean converged;
+
+      Result (double value, double error, long evaluations, boolean converged) {
+         this.value = value;
+         this.error = error;
+         this.evaluations = evaluations;
+         this.converged = converged;
+      }
+
+      public String toString () {
+         return value + " +- " + error + " (" + evaluations + " evaluations" + (converged ? ")" : ", not converged)");
+      }
+   }
+
+   /**
+    * Integral over x in [a, b] with y = 0, to the given absolute tolerance.
+    */
+   public Result integrate (double a, double b, double tolerance) {
+      return gaussKronrod(a, b, 0, tolerance, DEFAULT_MAX_EVALUATIONS);
+   }
+
+   /**
+    * Integral over x in [a, b] at the given y, with adaptive Gauss-Kronrod.
+    * @param tolerance: absolute error wanted, greater than 0
+    * @param maxEvaluations: evaluation budget, at least 15
+    */
+   public Result gaussKronrod (double a, double b, double y, double tolerance, long maxEvaluations) {
+      check(a, b, tolerance, maxEvaluations, 15);
+      Budget budget = new Budget(maxEvaluations, 15);
+      double [] piece = kronrod(a, b, y);
+      return budget.result(pool.invoke(new Segment(this, a, b, y, piece[0], piece[1], tolerance, 0, false, null, budget)));
+   }
+
+   /**
+    * Integral over x in [a, b] at the given y, with adaptive Simpson.
+    * @param maxEvaluations: evaluation budget, at least 5
+    */
+   public Result simpson (double a, double b, double y, double tolerance, long maxEvaluations) {
+      check(a, b, tolerance, maxEvaluations, 5);
+      Budget budget = new Budget(maxEvaluations, 5);
+      double m = 0.5 * (a + b);
+      double [] values = {f.applyAsDouble(a, y), f.applyAsDouble(0.5 * (a + m), y), f.applyAsDouble(m, y), f.applyAsDouble(0.5 * (m + b), y), f.applyAsDouble(b, y)};
+      double [] piece = simpson(a, b, values);
+      return budget.result(pool.invoke(new Segment(this, a, b, y, piece[0], piece[1], tolerance, 0, true, values, budget)));
+   }
+
+   /**
+    * Integral over the rectangle [xMin, xMax] x [yMin, yMax], with adaptive Genz-Malik cubature.
+    * @param maxEvaluations: evaluation budget, at least 17
+    */
+   public Result cubature (double xMin, double xMax, double yMin, double yMax, double tolerance, long maxEvaluations) {
+      check(xMin, xMax, tolerance, maxEvaluations, 17);
+      check(yMin, yMax, tolerance, maxEvaluations, 17);
+      Budget budget = new Budget(maxEvaluations, 17);
+      double [] piece = genzMalik(xMin, xMax, yMin, yMax);
+      return budget.result(pool.invoke(new Rectangle(this, xMin, xMax, yMin, yMax, piece, tolerance, 0, budget)));
+   }
+
+   private static void check (double a, double b, double tolerance, long maxEvaluations, int points) {
+      if (!(a < b) || Double.isInfinite(a) || Double.isInfinite(b) || !(tolerance > 0) || maxEvaluations < points) throw new InvalidParameterException("Incorrect numerical value in input.");
+   }
+
+   /**
+    * Evaluations left to spend, shared by all the tasks of one integration.
+    */
+   private static final class Budget {
+      private final long total;
+      private final AtomicLong remaining;
+
+      /**
+       * @param spent: evaluations of the first estimate, already done
+       */
+      private Budget (long total, long spent) {
+         this.total = total;
+         this.remaining = new AtomicLong(total - spent);
+      }
+
+      /** Reserves n evaluations, or returns false (reserving nothing) if there are not enough left. */
+      private boolean take (long n) {
+         long r;
+         do {
+            r = remaining.get();
+            if (r < n) return false;
+         } while (!remaining.compareAndSet(r, r - n));
+         return true;
+      }
+
+      private Result result (double [] piece) {
+         return new Result(piece[0], piece[1], total - remaining.get(), piece[2] != 0);
+      }
+   }
+
+   /**
+    * @return {K15, |K15 - G7|} over [a, b].
+    */
+   private double [] kronrod (double a, double b, double y) {
+      double center = 0.5 * (a + b);
+      double half = 0.5 * (b - a);
+      double fc = f.applyAsDouble(center, y);
+      double kronrod = KRONROD_WEIGHTS[7] * fc;
+      double gauss = GAUSS_WEIGHTS[3] * fc;
+      for (int i = 0; i < 7; i++) {
+         double dx = half * KRONROD_NODES[i];
+         double sum = f.applyAsDouble(center - dx, y) + f.applyAsDouble(center + dx, y);
+         kronrod += KRONROD_WEIGHTS[i] * sum;
+         if ((i & 1) == 1) gauss += GAUSS_WEIGHTS[i >> 1] * sum;
+      }
+      return new double [] {kronrod * half, Math.abs((kronrod - gauss) * half)};
+   }
+
+   /**
+    * @param values: f at a, (3a + b) / 4, (a + b) / 2, (a + 3b) / 4 and b
+    * @return {Richardson corrected composite Simpson, error estimate}.
+    */
+   private static double [] simpson (double a, double b, double [] values) {
+      double h = b - a;
+      double whole = h / 6 * (values[0] + 4 * values[2] + values[4]);
+      double halves = h / 12 * (values[0] + 4 * values[1] + 2 * values[2] + 4 * values[3] + values[4]);
+      double difference = halves - whole;
+      return new double [] {halves + difference / 15, Math.abs(difference) / 15};
+   }
+
+   /**
+    * @return {degree 7 estimate, |degree 7 - degree 5|, axis to split (0 for x, 1 for y)}.
+    */
+   private double [] genzMalik (double xMin, double xMax, double yMin, double yMax) {
+      double cx = 0.5 * (xMin + xMax), cy = 0.5 * (yMin + yMax);
+      double hx = 0.5 * (xMax - xMin), hy = 0.5 * (yMax - yMin);
+      double f1 = f.applyAsDouble(cx, cy);
+      double x2 = f.applyAsDouble(cx - GM_L2 * hx, cy) + f.applyAsDouble(cx + GM_L2 * hx, cy);
+      double y2 = f.applyAsDouble(cx, cy - GM_L2 * hy) + f.applyAsDouble(cx, cy + GM_L2 * hy);
+      double x3 = f.applyAsDouble(cx - GM_L3 * hx, cy) + f.applyAsDouble(cx + GM_L3 * hx, cy);
+      double y3 = f.applyAsDouble(cx, cy - GM_L3 * hy) + f.applyAsDouble(cx, cy + GM_L3 * hy);
+      double f4 = f.applyAsDouble(cx - GM_L3 * hx, cy - GM_L3 * hy) + f.applyAsDouble(cx + GM_L3 * hx, cy - GM_L3 * hy)
+         + f.applyAsDouble(cx - GM_L3 * hx, cy + GM_L3 * hy) + f.applyAsDouble(cx + GM_L3 * hx, cy + GM_L3 * hy);
+      double f5 = f.applyAsDouble(cx - GM_L5 * hx, cy - GM_L5 * hy) + f.applyAsDouble(cx + GM_L5 * hx, cy - GM_L5 * hy)
+         + f.applyAsDouble(cx - GM_L5 * hx, cy + GM_L5 * hy) + f.applyAsDouble(cx + GM_L5 * hx, cy + GM_L5 * hy);
+      double area = 4 * hx * hy;
+      double degree7 = area * (GM_W1 * f1 + GM_W2 * (x2 + y2) + GM_W3 * (x3 + y3) + GM_W4 * f4 + GM_W5 * f5);
+      double degree5 = area * (GM_E1 * f1 + GM_E2 * (x2 + y2) + GM_E3 * (x3 + y3) + GM_E4 * f4);
+      double ratio = (GM_L2 * GM_L2) / (GM_L3 * GM_L3);
+      double dx = Math.abs(x2 - 2 * f1 - ratio * (x3 - 2 * f1));
+      double dy = Math.abs(y2 - 2 * f1 - ratio * (y3 - 2 * f1));
+      return new double [] {degree7, Math.abs(degree7 - degree5), dy > dx ? 1 : 0};
+   }
+
+   /**
+    * Piece [a, b] of a 1D integration with its estimate, split while its error is above tolerance.
+    * Computes {value, error, 1 if converged else 0}.
+    */
+   @SuppressWarnings("serial")
+   private static final class Segment extends RecursiveTask<double []> {
+      private final Integrator integrator;
+      private final double a, b, y, value, error, tolerance;
+      private final int depth;
+      private final boolean simpson;
+      /** f at the five Simpson points, reused by the halves. */
+      private final double [] values;
+      private final Budget budget;
+
+      private Segment (Integrator integrator, double a, double b, double y, double value, double error, double tolerance, int depth, boolean simpson, double [] values, Budget budget) {
+         this.integrator = integrator;
+         this.a = a;
+         this.b = b;
+         this.y = y;
+         this.value = value;
+         this.error = error;
+         this.tolerance = tolerance;
+         this.depth = depth;
+         this.simpson = simpson;
+         this.values = values;
+         this.budget = budget;
+      }
+
+      protected double [] compute () {
+         if (error <= tolerance) return new double [] {value, error, 1};
+         double m = 0.5 * (a + b);
+         if (depth >= MAX_DEPTH || !(a < m && m < b) || !budget.take(simpson ? 4 : 30)) return new double [] {value, error, 0};
+         Segment left, right;
+         if (simpson) {
+            DoubleBinaryOperator f = integrator.f;
+            double [] l = {values[0], f.applyAsDouble(0.5 * (a + 0.5 * (a + m)), y), values[1], f.applyAsDouble(0.5 * (0.5 * (a + m) + m), y), values[2]};
+            double [] r = {values[2], f.applyAsDouble(0.5 * (m + 0.5 * (m + b)), y), values[3], f.applyAsDouble(0.5 * (0.5 * (m + b) + b), y), values[4]};
+            double [] pl = Integrator.simpson(a, m, l);
+            double [] pr = Integrator.simpson(m, b, r);
+            left = new Segment(integrator, a, m, y, pl[0], pl[1], tolerance / 2, depth + 1, true, l, budget);
+            right = new Segment(integrator, m, b, y, pr[0], pr[1], tolerance / 2, depth + 1, true, r, budget);
+         }
+         else {
+            double [] pl = integrator.kronrod(a, m, y);
+            double [] pr = integrator.kronrod(m, b, y);
+            left = new Segment(integrator, a, m, y, pl[0], pl[1], tolerance / 2, depth + 1, false, null, budget);
+            right = new Segment(integrator, m, b, y, pr[0], pr[1], tolerance / 2, depth + 1, false, null, budget);
+         }
+         double [] l, r;
+         if (depth < FORK_DEPTH) {
+            right.fork();
+            l = left.compute();
+            r = right.join();
+         }
+         else {
+            l = left.compute();
+            r = right.compute();
+         }
+         return new double [] {l[0] + r[0], l[1] + r[1], l[2] != 0 && r[2] != 0 ? 1 : 0};
+      }
+   }
+
+   /**
+    * Rectangle of a 2D integration with its Genz-Malik estimate {value, error, split axis}.
+    */
+   @SuppressWarnings("serial")
+   private static final class Rectangle extends RecursiveTask<double []> {
+      private final Integrator integrator;
+      private final double xMin, xMax, yMin, yMax, tolerance;
+      private final double [] estimate;
+      private final int depth;
+      private final Budget budget;
+
+      private Rectangle (Integrator integrator, double xMin, double xMax, double yMin, double yMax, double [] estimate, double tolerance, int depth, Budget budget) {
+         this.integrator = integrator;
+         this.xMin = xMin;
+         this.xMax = xMax;
+         this.yMin = yMin;
+         this.yMax = yMax;
+         this.estimate = estimate;
+         this.tolerance = tolerance;
+         this.depth = depth;
+         this.budget = budget;
+      }
+
+      protected double [] compute () {
+         if (estimate[1] <= tolerance) return new double [] {estimate[0], estimate[1], 1};
+         boolean splitX = estimate[2] == 0;
+         double m = splitX ? 0.5 * (xMin + xMax) : 0.5 * (yMin + yMax);
+         boolean splittable = splitX ? (xMin < m && m < xMax) : (yMin < m && m < yMax);
+         if (depth >= 2 * MAX_DEPTH || !splittable || !budget.take(34)) return new double [] {estimate[0], estimate[1], 0};
+         Rectangle left, right;
+         if (splitX) {
+            left = new Rectangle(integrator, xMin, m, yMin, yMax, integrator.genzMalik(xMin, m, yMin, yMax), tolerance / 2, depth + 1, budget);
+            right = new Rectangle(integrator, m, xMax, yMin, yMax, integrator.genzMalik(m, xMax, yMin, yMax), tolerance / 2, depth + 1, budget);
+         }
+         else {
+            left = new Rectangle(integrator, xMin, xMax, yMin, m, integrator.genzMalik(xMin, xMax, yMin, m), tolerance / 2, depth + 1, budget);
+            right = new Rectangle(integrator, xMin, xMax, m, yMax, integrator.genzMalik(xMin, xMax, m, yMax), tolerance / 2, depth + 1, budget);
+         }
+         double [] l, r;
+         if (depth < 2 * FORK_DEPTH) {
+            right.fork();
+            l = left.compute();
+            r = right.join();
+         }
+         else {
+            l = left.compute();
+            r = right.compute();
+         }
+         return new double [] {l[0] + r[0], l[1] + r[1], l[2] != 0 && r[2] != 0 ? 1 : 0};
+      }
+   }
+}
@@ -0,0 +1,246 @@
+package src;
+
+import java.security.InvalidParameterException;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Variable;
+
+/**
+ * Interval evaluation of a formula: given a range for every variable, returns bounds [lo, hi] guaranteed to
+ * contain every value the formula takes over the box (values that are NaN, like ln of a negative number, are left out).
+ * Every inexact result is widened by one ulp in each direction, so rounding can only make the bounds larger.
+ * When nothing can be said, for example x / y with 0 in the range of y, the bounds are [-Infinity, Infinity].
+ * When the formula is NaN on the whole box, the bounds are [NaN, NaN] (see isEmpty).
+ * Special operations at Precision.FAST are bounded like the exact ones, widened by FastMath.ERROR.
+ * IntervalFormula is immutable and safe to share between threads.
+ */
+public class IntervalFormula {
+   private static final double TWO_PI = 2 * Math.PI;
+   /** Beyond this magnitude multiples of pi are too coarse to place the extrema of sin, cos and tan. */
+   private static final double PERIODIC_LIMIT = 1e8;
+
+   private final CompiledFormula formula;
+   private final Node root;
+   private final int depth;
+
+   public IntervalFormula (Formula f) {
+      this(f.compile());
+   }
+
+   public IntervalFormula (CompiledFormula f) {
+      this.formula = f;
+      this.root = f.getRoot();
+      this.depth = root.scratchLevels() + 1;
+   }
+
+   public CompiledFormula getFormula () {return formula;}
+
+   /**
+    * @return {lo, hi}, the bounds of the formula for x in [xMin, xMax] and y in [yMin, yMax].
+    */
+   public double [] evaluate (double xMin, double xMax, double yMin, double yMax) {
+      double [] min = new double [formula.getFrameSize()];
+      double [] max = new double [min.length];
+      Variable [] variables = formula.getVariables();
+      for (int i = 0; i < variables.length; i++) {
+         if (variables[i] != Variable.X && variables[i] != Variable.Y) throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y, evaluate it with a frame.");
+         min[i] = variables[i] == Variable.X ? xMin : yMin;
+         max[i] = variables[i] == Variable.X ? xMax : yMax;
+      }
+      return evaluate(min, max);
+   }
+
+   /**
+    * @param min: lower bound of every variable, indexed by frame slot (see CompiledFormula.getVariables)
+    * @param max: upper bound of every variable, indexed by frame slot
+    * @return {lo, hi}
+    */
+   public double [] evaluate (double [] min, double [] max) {
+      if (min.length < formula.getFrameSize() || max.length < formula.getFrameSize()) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < formula.getFrameSize(); i++) {
+         if (!(min[i] <= max[i])) throw new InvalidParameterException("Incorrect numerical value in input.");
+      }
+      double [] lo = new double [depth];
+      double [] hi = new double [depth];
+      evaluate(root, min, max, lo, hi, 0);
+      return new double [] {lo[0], hi[0]};
+   }
+
+   /**
+    * Allocation-free variant for repeated calls: lo and hi need stackSize() elements, the result is in lo[0] and hi[0].
+    */
+   void evaluate (double [] min, double [] max, double [] lo, double [] hi) {
+      evaluate(root, min, max, lo, hi, 0);
+   }
+
+   int stackSize () {return depth;}
+
+   public static boolean isEmpty (double [] bounds) {
+      return Double.isNaN(bounds[0]);
+   }
+
+   /**
+    * Computes the bounds of node n into lo[level] and hi[level], using deeper levels for the right operands.
+    */
+   private static void evaluate (Node n, double [] min, double [] max, double [] lo, double [] hi, int level) {
+      if (n instanceof Constant) {
+         double v = ((Constant) n).value;
+         lo[level] = v;
+         hi[level] = v;
+      }
+      else if (n instanceof VariableNode) {
+         lo[level] = min[((VariableNode) n).slot];
+         hi[level] = max[((VariableNode) n).slot];
+      }
+      else if (n instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) n;
+         evaluate(s.child, min, max, lo, hi, level);
+         if (Double.isNaN(lo[level])) return;
+         double a = lo[level], b = hi[level];
+         special(s, lo, hi, level);
+         if (s.precision == FormulaUtility.Precision.FAST && !Double.isNaN(lo[level])) approximate(s, a, b, lo, hi, level);
+      }
+      else {
+         BiNode b = (BiNode) n;
+         evaluate(b.left, min, max, lo, hi, level);
+         evaluate(b.right, min, max, lo, hi, level + 1);
+         if (Double.isNaN(lo[level]) || Double.isNaN(lo[level + 1])) {
+            set(lo, hi, level, Double.NaN, Double.NaN);
+            return;
+         }
+         binary(b, lo, hi, level);
+      }
+   }
+
+   private static void binary (BiNode b, double [] lo, double [] hi, int level) {
+      double al = lo[level], ah = hi[level], bl = lo[level + 1], bh = hi[level + 1];
+      switch (b.operation) {
+         case ADD :
+            widen(lo, hi, level, al + bl, ah + bh);
+            break;
+         case SUB :
+            widen(lo, hi, level, al - bh, ah - bl);
+            break;
+         case MULT :
+            corners(lo, hi, level, al * bl, al * bh, ah * bl, ah * bh);
+            break;
+         case DIV :
+            if (bl <= 0 && bh >= 0) set(lo, hi, level, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+            else corners(lo, hi, level, al / bl, al / bh, ah / bl, ah / bh);
+            break;
+         default :
+            power(lo, hi, level, al, ah, bl, bh);
+      }
+   }
+
+   /**
+    * Bounds of a^b. For a >= 0 pow is monotonic in each argument, so the corners bound it. A negative base only
+    * has real powers for integer exponents, handled when the exponent is a single integer, and is NaN for a
+    * single non integer exponent. An infinite exponent gives 0 or Infinity depending on |a| against 1, whatever the sign of a.
+    */
+   private static void power (double [] lo, double [] hi, int level, double al, double ah, double bl, double bh) {
+      if (bl == bh && Double.isInfinite(bl)) {
+         double m = al <= 0 && ah >= 0 ? 0 : Math.min(Math.abs(al), Math.abs(ah));
+         double M = Math.max(Math.abs(al), Math.abs(ah));
+         // |a| == 1 is NaN and left out; |a| < 1 goes to 0 and |a| > 1 to Infinity for +Infinity, the other way round for -Infinity
+         boolean small = m < 1, large = M > 1;
+         if (!small && !large) set(lo, hi, level, Double.NaN, Double.NaN);
+         else if (bl > 0) set(lo, hi, level, small ? 0 : Double.POSITIVE_INFINITY, large ? Double.POSITIVE_INFINITY : 0);
+         else set(lo, hi, level, large ? 0 : Double.POSITIVE_INFINITY, small ? Double.POSITIVE_INFINITY : 0);
+      }
+      else if (bl == bh && bl == Math.rint(bl)) {
+         double e = bl;
+         if (e == 0) set(lo, hi, level, 1, 1);
+         else if (al > 0 || ah < 0) corners(lo, hi, level, Math.pow(al, e), Math.pow(ah, e), Math.pow(al, e), Math.pow(ah, e));
+         else if (e < 0) set(lo, hi, level, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+         else if (e % 2 == 0) widen(lo, hi, level, 0, Math.pow(Math.max(-al, ah), e));
+         else widen(lo, hi, level, Math.pow(al, e), Math.pow(ah, e));
+      }
+      else if (al >= 0) corners(lo, hi, level, Math.pow(al, bl), Math.pow(al, bh), Math.pow(ah, bl), Math.pow(ah, bh));
+      else if (bl == bh && ah < 0) set(lo, hi, level, Double.NaN, Double.NaN);
+      else if (bl == bh) corners(lo, hi, level, Math.pow(0, bl), Math.pow(0, bl), Math.pow(ah, bl), Math.pow(ah, bl));
+      else set(lo, hi, level, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+   }
+
+   private static void special (SpecialNode s, double [] lo, double [] hi, int level) {
+      double a = lo[level], b = hi[level];
+      switch (s.operation) {
+         case SIN :
+            periodic(lo, hi, level, Math.sin(a), Math.sin(b), a, b, Math.PI / 2, -Math.PI / 2);
+            break;
+         case COS :
+            periodic(lo, hi, level, Math.cos(a), Math.cos(b), a, b, 0, Math.PI);
+            break;
+         case TAN :
+            if (b - a < Math.PI && Math.max(-a, b) < PERIODIC_LIMIT && !hasPeriodPoint(a, b, Math.PI / 2, Math.PI)) widen(lo, hi, level, Math.tan(a), Math.tan(b));
+            else set(lo, hi, level, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+            break;
+         case LN :
+            if (b < 0) set(lo, hi, level, Double.NaN, Double.NaN);
+            else widen(lo, hi, level, a <= 0 ? Double.NEGATIVE_INFINITY : Math.log(a), Math.log(b));
+            break;
+         default :
+            if (b < 0) set(lo, hi, level, Double.NaN, Double.NaN);
+            else widen(lo, hi, level, a <= 0 ? Double.NEGATIVE_INFINITY : Math.log10(a), Math.log10(b));
+      }
+   }
+
+   /**
+    * Widens the bounds of a special operation at Precision.FAST by the error bound of FastMath, for arguments in [a, b].
+    * For tan the bound grows like 1 / |cos x|, largest at one end since [a, b] holds no pole.
+    */
+   private static void approximate (SpecialNode s, double a, double b, double [] lo, double [] hi, int level) {
+      double scale = s.operation == FormulaUtility.SpecialOperation.TAN ? 1 / Math.min(Math.abs(Math.cos(a)), Math.abs(Math.cos(b))) : 1;
+      lo[level] -= FastMath.ERROR * scale * Math.max(1, Math.abs(lo[level]));
+      hi[level] += FastMath.ERROR * scale * Math.max(1, Math.abs(hi[level]));
+   }
+
+   /**
+    * Bounds of sin or cos over [a, b]: the values at the ends, extended to 1 and -1 when a maximum
+    * (maxPhase + 2k pi) or a minimum (minPhase + 2k pi) may lie in the range.
+    */
+   private static void periodic (double [] lo, double [] hi, int level, double fa, double fb, double a, double b, double maxPhase, double minPhase) {
+      if (!(b - a < TWO_PI) || Math.max(-a, b) >= PERIODIC_LIMIT) {
+         set(lo, hi, level, -1, 1);
+         return;
+      }
+      widen(lo, hi, level, Math.min(fa, fb), Math.max(fa, fb));
+      if (hasPeriodPoint(a, b, maxPhase, TWO_PI)) hi[level] = 1;
+      if (hasPeriodPoint(a, b, minPhase, TWO_PI)) lo[level] = -1;
+      lo[level] = Math.max(lo[level], -1);
+      hi[level] = Math.min(hi[level], 1);
+   }
+
+   /**
+    * True if phase + k period may lie in [a, b] for some integer k, erring on the side of true.
+    */
+   private static boolean hasPeriodPoint (double a, double b, double phase, double period) {
+      double margin = 1e-12 * Math.max(1, Math.max(-a, b));
+      double k = Math.floor((a - phase) / period);
+      for (int i = 0; i < 3; i++) {
+         double p = phase + (k + i) * period;
+         if (p >= a - margin && p <= b + margin) return true;
+      }
+      return false;
+   }
+
+   private static void corners (double [] lo, double [] hi, int level, double p, double q, double r, double s) {
+      widen(lo, hi, level, Math.min(Math.min(p, q), Math.min(r, s)), Math.max(Math.max(p, q), Math.max(r, s)));
+   }
+
+   /**
+    * Stores [nextDown(l), nextUp(h)], or the whole line if a NaN (like Infinity - Infinity) came up.
+    */
+   private static void widen (double [] lo, double [] hi, int level, double l, double h) {
+      if (Double.isNaN(l) || Double.isNaN(h)) set(lo, hi, level, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+      else set(lo, hi, level, Math.nextDown(l), Math.nextUp(h));
+   }
+
+   private static void set (double [] lo, double [] hi, int level, double l, double h) {
+      lo[level] = l;
+      hi[level] = h;
+   }
+}
@@ -0,0 +1,196 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidParameterException;
+
+/**
+ * Streams (x, y) pairs from a file through a formula and writes the results to another file.
+ * The input is memory-mapped one window at a time, so memory use does not depend on the file size,
+ * and rows are parsed straight into primitive arrays (no String or Double per row; only a CSV value of more
+ * than 19 significant digits whose extra digits decide the rounding is copied out, see FormulaScanner.scanNumber).
+ * Binary results go to output windows mapped at exactly the final size. The number of CSV results is only known
+ * at the end, so they are written through the channel one block at a time and the output is never resized while
+ * mapped. Mappings are released by the garbage collector once the evaluator has dropped them.
+ * Input is either raw little-endian doubles (x0, y0, x1, y1, ...) or CSV text with one "x,y" pair per line.
+ * Output is always raw little-endian doubles, one result per input pair, in input order.
+ */
+public class MappedFileEvaluator {
+   public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+   private final CompiledFormula formula;
+   private final int windowSize;
+
+   public MappedFileEvaluator (Formula f) {
+      this(f.compile());
+   }
+
+   public MappedFileEvaluator (CompiledFormula f) {
+      this(f, DEFAULT_WINDOW_SIZE);
+   }
+
+   /**
+    * @param windowSize: bytes mapped at once from each file, at least 4096
+    */
+   public MappedFileEvaluator (CompiledFormula f, int windowSize) {
+      if (windowSize < 4096) throw new InvalidParameterException("Incorrect numerical value in input.");
+      this.formula = f;
+      this.windowSize = windowSize & ~15;
+   }
+
+   /**
+    * Evaluates a file of little-endian (x, y) double pairs.
+    * @return number of results written.
+    */
+   public long evaluateBinary (Path input, Path output) throws IOException {
+      try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         long size = in.size();
+         if (size % 16 != 0) throw new InvalidParameterException("Incorrect numerical value in input: file size is not a multiple of 16 bytes.");
+         long count = size / 16;
+         int block = CompiledFormula.BATCH_SIZE;
+         double [] xs = new double [block];
+         double [] ys = new double [block];
+         double [] results = new double [block];
+         for (long position = 0; position < size; position += windowSize) {
+            int length = (int) Math.min(windowSize, size - position);
+            DoubleBuffer pairs = in.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            DoubleBuffer values = out.map(FileChannel.MapMode.READ_WRITE, position / 2, length / 2).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            while (pairs.hasRemaining()) {
+               int n = Math.min(block, pairs.remaining() / 2);
+               for (int i = 0; i < n; i++) {
+                  xs[i] = pairs.get();
+                  ys[i] = pairs.get();
+               }
+               formula.evaluate(xs, ys, results, 0, n);
+               values.put(results, 0, n);
+            }
+         }
+         return count;
+      }
+   }
+
+   /**
+    * Evaluates a CSV file with one "x,y" pair per line. Spaces around the values and empty lines are ignored,
+    * lines may end with "\n" or "\r\n".
+    * @return number of results written.
+    * @throws InvalidParameterException with the line number of the first line that is not a valid pair.
+    */
+   public long evaluateCsv (Path input, Path output) throws IOException {
+      try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         CsvReader reader = new CsvReader(in, out);
+         reader.run();
+         return reader.written;
+      }
+   }
+
+   /**
+    * State of one evaluateCsv call.
+    */
+   private final class CsvReader {
+      private final FileChannel in;
+      private final FileChannel out;
+      private final ByteSequence text = new ByteSequence();
+      private final FormulaScanner numbers = new FormulaScanner("");
+      private final double [] xs = new double [CompiledFormula.BATCH_SIZE];
+      private final double [] ys = new double [CompiledFormula.BATCH_SIZE];
+      private final double [] results = new double [CompiledFormula.BATCH_SIZE];
+      private int pending = 0;
+      private long line = 0;
+      private long written = 0;
+      private final ByteBuffer output = ByteBuffer.allocateDirect(CompiledFormula.BATCH_SIZE * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+      private CsvReader (FileChannel in, FileChannel out) {
+         this.in = in;
+         this.out = out;
+      }
+
+      private void run () throws IOException {
+         long size = in.size();
+         long position = 0;
+         while (position < size) {
+            int length = (int) Math.min(windowSize, size - position);
+            text.buffer = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            text.length = length;
+            boolean last = position + length == size;
+            int start = 0;
+            while (start < length) {
+               int end = start;
+               while (end < length && text.buffer.get(end) != '\n') end++;
+               if (end == length && !last) break;
+               line++;
+               parseLine(start, end);
+               start = end + 1;
+            }
+            if (start == 0 && !last) throw new InvalidParameterException("Incorrect numerical value in input at line " + (line + 1) + ": line longer than the mapping window.");
+            position += start;
+         }
+         text.buffer = null;
+         flush();
+      }
+
+      private void parseLine (int start, int end) throws IOException {
+         if (end > start && text.buffer.get(end - 1) == '\r') end--;
+         int i = skipSpaces(start, end);
+         if (i == end) return;
+         text.length = end;
+         int next = numbers.scanNumber(text, i);
+         if (next < 0) throw invalidLine();
+         xs[pending] = numbers.getNumber();
+         i = skipSpaces(next, end);
+         if (i == end || text.buffer.get(i) != ',') throw invalidLine();
+         i = skipSpaces(i + 1, end);
+         next = numbers.scanNumber(text, i);
+         if (next < 0 || skipSpaces(next, end) != end) throw invalidLine();
+         ys[pending] = numbers.getNumber();
+         text.length = text.buffer.limit();
+         if (++pending == xs.length) flush();
+      }
+
+      private InvalidParameterException invalidLine () {
+         return new InvalidParameterException("Incorrect numerical value in input at line " + line + ": expected \"x,y\".");
+      }
+
+      private int skipSpaces (int i, int end) {
+         while (i < end && text.buffer.get(i) == ' ') i++;
+         return i;
+      }
+
+      private void flush () throws IOException {
+         if (pending == 0) return;
+         formula.evaluate(xs, ys, results, 0, pending);
+         output.clear();
+         output.asDoubleBuffer().put(results, 0, pending);
+         output.limit(pending * 8);
+         while (output.hasRemaining()) out.write(output);
+         written += pending;
+         pending = 0;
+      }
+   }
+
+   /**
+    * CharSequence view of a mapped window, reused for every row so FormulaScanner can parse numbers in place.
+    */
+   private static final class ByteSequence implements CharSequence {
+      private MappedByteBuffer buffer;
+      private int length;
+
+      public int length () {return length;}
+      public char charAt (int index) {return (char) (buffer.get(index) & 0xff);}
+
+      public CharSequence subSequence (int start, int end) {
+         StringBuilder ans = new StringBuilder(end - start);
+         for (int i = start; i < end; i++) ans.append(charAt(i));
+         return ans;
+      }
+
+      public String toString () {return subSequence(0, length).toString();}
+   }
+}
@@ -0,0 +1,141 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adaptive quadtree search over a rectangular (x, y) domain, driven by IntervalFormula.
+ * Every cell is bounded with one interval evaluation: cells whose bounds exclude the target are discarded whole,
+ * cells whose bounds prove the target everywhere are reported whole, and the rest are split in four until maxDepth.
+ * For an implicit curve f(x, y) = 0 the work grows with the length of the curve instead of the number of pixels:
+ * a 2^maxDepth x 2^maxDepth grid only refines the cells the curve may cross.
+ * Cell edges are computed from integer positions, so neighbouring cells and parent and child cells share their edges
+ * exactly and the cells always cover the whole domain.
+ */
+public class RegionFinder {
+   public static final int MAX_DEPTH = 30;
+
+   private final IntervalFormula formula;
+
+   public RegionFinder (Formula f) {
+      this(new IntervalFormula(f));
+   }
+
+   public RegionFinder (CompiledFormula f) {
+      this(new IntervalFormula(f));
+   }
+
+   public RegionFinder (IntervalFormula f) {
+      this.formula = f;
+   }
+
+   /**
+    * Cell of the quadtree.
+    */
+   public static final class Region {
+      public final double xMin;
+      public final double xMax;
+      public final double yMin;
+      public final double yMax;
+      public final int depth;
+      /**
+       * True if the condition holds on the whole cell (at every point where f is not NaN),
+       * false if the cell is a finest level cell where it may hold.
+       */
+      public final boolean certain;
+
+      Region (double xMin, double xMax, double yMin, double yMax, int depth, boolean certain) {
+         this.xMin = xMin;
+         this.xMax = xMax;
+         this.yMin = yMin;
+         this.yMax = yMax;
+         this.depth = depth;
+         this.certain = certain;
+      }
+
+      public String toString () {
+         return "[" + xMin + "," + xMax + "]x[" + yMin + "," + yMax + "]" + (certain ? "" : "?");
+      }
+   }
+
+   /**
+    * Finest level cells that may contain a point where f(x, y) = 0. Every zero of the domain lies in one of them
+    * (a cell is only discarded when its bounds exclude 0). Cells are never certain.
+    * @param maxDepth: number of subdivisions, the finest cells are (xMax - xMin) / 2^maxDepth wide, at most MAX_DEPTH
+    */
+   public List<Region> findZeros (double xMin, double xMax, double yMin, double yMax, int maxDepth) {
+      return search(xMin, xMax, yMin, yMax, maxDepth, 0, true);
+   }
+
+   /**
+    * Regions where f(x, y) > c: certain regions of any size where the bounds prove it everywhere, plus the
+    * finest level cells where it may hold only in part. Points where f is NaN never satisfy it.
+    */
+   public List<Region> findAbove (double c, double xMin, double xMax, double yMin, double yMax, int maxDepth) {
+      return search(xMin, xMax, yMin, yMax, maxDepth, c, false);
+   }
+
+   private List<Region> search (double xMin, double xMax, double yMin, double yMax, int maxDepth, double c, boolean zeros) {
+      if (!(xMin < xMax) || !(yMin < yMax) || maxDepth < 0 || maxDepth > MAX_DEPTH || Double.isNaN(c)) throw new InvalidParameterException("Incorrect numerical value in input.");
+      CompiledFormula compiled = formula.getFormula();
+      int xSlot = compiled.slotOf(FormulaUtility.Variable.X);
+      int ySlot = compiled.slotOf(FormulaUtility.Variable.Y);
+      if (compiled.getFrameSize() > (xSlot >= 0 ? 1 : 0) + (ySlot >= 0 ? 1 : 0)) throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y.");
+      double [] min = new double [compiled.getFrameSize()];
+      double [] max = new double [min.length];
+      double [] lo = new double [formula.stackSize()];
+      double [] hi = new double [formula.stackSize()];
+      ArrayList<Region> ans = new ArrayList<Region>();
+      // Cells waiting to be examined: depth and integer position (i, j) in the 2^depth x 2^depth grid of that depth.
+      int [] stack = new int [3 * (3 * maxDepth + 1)];
+      int top = 0;
+      stack[top++] = 0;
+      stack[top++] = 0;
+      stack[top++] = 0;
+      while (top > 0) {
+         int j = stack[--top];
+         int i = stack[--top];
+         int depth = stack[--top];
+         int cells = 1 << depth;
+         double x0 = edge(xMin, xMax, cells, i);
+         double x1 = edge(xMin, xMax, cells, i + 1);
+         double y0 = edge(yMin, yMax, cells, j);
+         double y1 = edge(yMin, yMax, cells, j + 1);
+         if (xSlot >= 0) {
+            min[xSlot] = x0;
+            max[xSlot] = x1;
+         }
+         if (ySlot >= 0) {
+            min[ySlot] = y0;
+            max[ySlot] = y1;
+         }
+         formula.evaluate(min, max, lo, hi);
+         double l = lo[0];
+         double h = hi[0];
+         if (Double.isNaN(l)) continue;
+         if (zeros ? (l > 0 || h < 0) : h <= c) continue;
+         boolean certain = !zeros && l > c;
+         if (certain || depth == maxDepth) {
+            ans.add(new Region(x0, x1, y0, y1, depth, certain));
+            continue;
+         }
+         if (top + 12 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+         for (int k = 3; k >= 0; k--) {
+            stack[top++] = depth + 1;
+            stack[top++] = 2 * i + (k & 1);
+            stack[top++] = 2 * j + (k >> 1);
+         }
+      }
+      return ans;
+   }
+
+   /**
+    * Edge i of a domain split in cells equal parts. The step is scaled by a power of two between depths, so
+    * edge 2i at depth d + 1 is exactly edge i at depth d.
+    */
+   private static double edge (double min, double max, int cells, int i) {
+      return i == cells ? max : min + i * ((max - min) / cells);
+   }
+}
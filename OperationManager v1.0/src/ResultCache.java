@@ -0,0 +1,261 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleBinaryOperator;
+import src.FormulaUtility.Variable;
+
+/**
+ * Bounded memoization of formula results, keyed on the formula and the raw bits of x and y.
+ * Formulas are wrapped with memoize, and every Memoized formula has its own id in the keys and its own hit and
+ * miss counts. Keys compare bits, so 0.0 and -0.0, and NaNs with different payloads, are different keys.
+ * The table is made of primitive arrays (no boxing, no per entry object): capacity slots of
+ * 8 + 8 + 8 + 4 + 1 bytes, allocated once, so memory is bounded by the capacity.
+ * Slots are grouped in buckets of WAYS. A key can only be in the bucket its hash selects, so a lookup reads at
+ * most WAYS consecutive slots. When the bucket is full, the CLOCK policy picks the victim: a hand sweeps the
+ * bucket, clearing the referenced bit of the slots it passes, and evicts the first slot not referenced since
+ * the last sweep (an approximation of LRU).
+ * The table is split into lock-striped segments like FormulaCache. A miss evaluates the formula without any lock
+ * held, so two threads missing on the same key at the same time may both evaluate it.
+ * NaN results are cached and returned as Double.NaN, whatever their payload.
+ * Caching is worth it when evaluation costs more than a lookup, as with formulas with many special operations.
+ */
+public class ResultCache {
+   public static final int DEFAULT_SEGMENTS = 16;
+   /** Slots per bucket. */
+   public static final int WAYS = 8;
+   /** Bytes taken by one slot. */
+   public static final int SLOT_SIZE = 29;
+   /** Bits returned by a lookup that misses: a NaN the table never holds, since NaN results are stored as Double.NaN. */
+   private static final long MISS = 0x7ff0dead0000beefL;
+
+   private final Segment [] segments;
+   private final int capacity;
+   private final AtomicInteger ids = new AtomicInteger();
+   private final LongAdder evictions = new LongAdder();
+
+   public ResultCache (int capacity) {
+      this(capacity, DEFAULT_SEGMENTS);
+   }
+
+   /**
+    * @param capacity: maximum number of results, rounded up to a power of two, at least WAYS
+    * @param concurrencyLevel: number of segments, rounded up to a power of two and lowered so every segment
+    * has at least one bucket
+    */
+   public ResultCache (int capacity, int concurrencyLevel) {
+      if (capacity < WAYS || capacity > 1 << 30 || concurrencyLevel < 1) throw new InvalidParameterException("Incorrect numerical value in input.");
+      int size = powerOfTwo(capacity);
+      int count = Math.min(powerOfTwo(concurrencyLevel), size / WAYS);
+      segments = new Segment [count];
+      for (int i = 0; i < count; i++) segments[i] = new Segment(size / count);
+      this.capacity = size;
+   }
+
+   private static int powerOfTwo (int n) {
+      int ans = Integer.highestOneBit(n);
+      return ans < n ? ans << 1 : ans;
+   }
+
+   public Memoized memoize (Formula f) {
+      return memoize(f.compile());
+   }
+
+   /**
+    * Wraps a formula over x and y. Every call returns a new Memoized with its own keys and counts, so wrapping
+    * the same formula twice does not share results.
+    */
+   public Memoized memoize (CompiledFormula f) {
+      for (Variable v : f.getVariables()) {
+         if (v != Variable.X && v != Variable.Y) throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y.");
+      }
+      int id = ids.incrementAndGet();
+      if (id == 0) throw new IllegalStateException("ResultCache has run out of formula ids.");
+      return new Memoized(this, f, id);
+   }
+
+   /**
+    * Formula whose results go through the cache.
+    */
+   public static final class Memoized implements DoubleBinaryOperator {
+      private final ResultCache cache;
+      private final CompiledFormula formula;
+      private final int id;
+      private final LongAdder hits = new LongAdder();
+      private final LongAdder misses = new LongAdder();
+
+      private Memoized (ResultCache cache, CompiledFormula formula, int id) {
+         this.cache = cache;
+         this.formula = formula;
+         this.id = id;
+      }
+
+      /**
+       * @return cached result for (x, y), or formula.evaluate(x, y), which is then cached.
+       */
+      public double evaluate (double x, double y) {
+         long xb = Double.doubleToRawLongBits(x);
+         long yb = Double.doubleToRawLongBits(y);
+         long h = hash(id, xb, yb);
+         Segment s = cache.segmentFor(h);
+         long cached = s.find(id, xb, yb, h);
+         if (cached != MISS) {
+            hits.increment();
+            return Double.longBitsToDouble(cached);
+         }
+         misses.increment();
+         double ans = formula.evaluate(x, y);
+         s.put(id, xb, yb, h, ans);
+         return ans;
+      }
+
+      public double applyAsDouble (double x, double y) {return evaluate(x, y);}
+
+      public CompiledFormula getFormula () {return formula;}
+      public long getHitCount () {return hits.sum();}
+      public long getMissCount () {return misses.sum();}
+
+      public double getHitRate () {
+         long h = hits.sum();
+         long total = h + misses.sum();
+         return total == 0 ? 1.0 : (double) h / total;
+      }
+
+      /**
+       * Removes the cached results of this formula.
+       */
+      public void invalidate () {
+         for (Segment s : cache.segments) s.remove(id);
+      }
+
+      public String toString () {
+         return "Memoized[" + formula + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+      }
+   }
+
+   public void invalidateAll () {
+      for (Segment s : segments) s.clear();
+   }
+
+   /** Number of cached results. */
+   public long size () {
+      long ans = 0;
+      for (Segment s : segments) ans += s.size();
+      return ans;
+   }
+
+   public int getCapacity () {return capacity;}
+
+   /** Bytes taken by the table, whatever the number of cached results. */
+   public long getMemoryUsed () {return (long) capacity * SLOT_SIZE;}
+
+   public long getEvictionCount () {return evictions.sum();}
+
+   public String toString () {
+      return "ResultCache[size=" + size() + ", capacity=" + capacity + ", evictions=" + getEvictionCount() + "]";
+   }
+
+   private static long hash (int id, long x, long y) {
+      long h = x * 0x9e3779b97f4a7c15L;
+      h ^= Long.rotateLeft(y * 0xc2b2ae3d27d4eb4fL, 31);
+      h ^= id * 0x165667b19e3779f9L;
+      h ^= h >>> 29;
+      h *= 0xbf58476d1ce4e5b9L;
+      return h ^ (h >>> 32);
+   }
+
+   private Segment segmentFor (long h) {
+      return segments[(int) (h >>> 40) & (segments.length - 1)];
+   }
+
+   /**
+    * One lock stripe: parallel arrays of slots, bucket b holding slots [b * WAYS, (b + 1) * WAYS).
+    * A formula id of 0 marks an empty slot.
+    */
+   private final class Segment {
+      private final long [] xs;
+      private final long [] ys;
+      private final int [] formulas;
+      private final double [] results;
+      private final boolean [] referenced;
+      /** CLOCK hand of every bucket, as an offset in the bucket. */
+      private final byte [] hands;
+      private final int mask;
+      private int size = 0;
+
+      private Segment (int slots) {
+         xs = new long [slots];
+         ys = new long [slots];
+         formulas = new int [slots];
+         results = new double [slots];
+         referenced = new boolean [slots];
+         hands = new byte [slots / WAYS];
+         mask = slots / WAYS - 1;
+      }
+
+      /**
+       * @return bits of the result cached for the key, whose slot is marked referenced, or MISS.
+       */
+      private synchronized long find (int id, long x, long y, long h) {
+         int start = ((int) h & mask) * WAYS;
+         for (int i = start; i < start + WAYS; i++) {
+            if (formulas[i] == id && xs[i] == x && ys[i] == y) {
+               referenced[i] = true;
+               return Double.doubleToRawLongBits(results[i]);
+            }
+         }
+         return MISS;
+      }
+
+      private synchronized void put (int id, long x, long y, long h, double result) {
+         if (Double.isNaN(result)) result = Double.NaN;
+         int start = ((int) h & mask) * WAYS;
+         int free = -1;
+         for (int i = start; i < start + WAYS; i++) {
+            if (formulas[i] == id && xs[i] == x && ys[i] == y) {
+               results[i] = result;
+               referenced[i] = true;
+               return;
+            }
+            if (free < 0 && formulas[i] == 0) free = i;
+         }
+         if (free < 0) {
+            int bucket = start / WAYS;
+            int hand = hands[bucket];
+            while (referenced[start + hand]) {
+               referenced[start + hand] = false;
+               hand = (hand + 1) & (WAYS - 1);
+            }
+            free = start + hand;
+            hands[bucket] = (byte) ((hand + 1) & (WAYS - 1));
+            evictions.increment();
+         }
+         else size++;
+         formulas[free] = id;
+         xs[free] = x;
+         ys[free] = y;
+         results[free] = result;
+         referenced[free] = false;
+      }
+
+      private synchronized void remove (int id) {
+         for (int i = 0; i < formulas.length; i++) {
+            if (formulas[i] == id) {
+               formulas[i] = 0;
+               referenced[i] = false;
+               size--;
+            }
+         }
+      }
+
+      private synchronized void clear () {
+         Arrays.fill(formulas, 0);
+         Arrays.fill(referenced, false);
+         size = 0;
+      }
+
+      private synchronized int size () {return size;}
+   }
+}
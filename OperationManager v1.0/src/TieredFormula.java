@@ -0,0 +1,53 @@
+package src;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Evaluates a CompiledFormula through its expression tree first, and switches to generated bytecode
+ * once the formula has been called threshold times. Both tiers return identical results.
+ * The default threshold can be set with the system property "operationmanager.tier.threshold".
+ */
+public class TieredFormula implements DoubleBinaryOperator {
+   public static final int DEFAULT_THRESHOLD = Integer.getInteger("operationmanager.tier.threshold", 10000);
+
+   private final CompiledFormula interpreted;
+   private final int threshold;
+   private int calls = 0;
+   private volatile DoubleBinaryOperator promoted;
+
+   public TieredFormula (CompiledFormula f) {
+      this(f, DEFAULT_THRESHOLD);
+   }
+
+   /**
+    * @param f: The compiled formula to evaluate
+    * @param threshold: number of calls after which bytecode is generated (0 generates it on the first call)
+    */
+   public TieredFormula (CompiledFormula f, int threshold) {
+      this.interpreted = f;
+      this.threshold = threshold;
+   }
+
+   /**
+    * The call counter is not synchronized: under contention promotion may happen a few calls late, never twice.
+    */
+   public double applyAsDouble (double x, double y) {
+      DoubleBinaryOperator p = promoted;
+      if (p != null) return p.applyAsDouble(x, y);
+      if (++calls > threshold) return promote().applyAsDouble(x, y);
+      return interpreted.evaluate(x, y);
+   }
+
+   public double evaluate (double x, double y) {
+      return applyAsDouble(x, y);
+   }
+
+   public boolean isPromoted () {
+      return promoted != null;
+   }
+
+   private synchronized DoubleBinaryOperator promote () {
+      if (promoted == null) promoted = interpreted.toBytecode();
+      return promoted;
+   }
+}
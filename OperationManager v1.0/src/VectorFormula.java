@@ -0,0 +1,265 @@
+package src;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.Constant;
+import src.CompiledFormula.VariableNode;
+import src.CompiledFormula.SpecialNode;
+import src.CompiledFormula.BiNode;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.SpecialOperation;
+
+/**
+ * Batch evaluation backend using the Vector API (jdk.incubator.vector), so the JVM must run with
+ * --add-modules jdk.incubator.vector. No other class depends on it.
+ * Like the batch path of CompiledFormula, the tree is walked once per block of CompiledFormula.BATCH_SIZE points,
+ * but every node processes its block SPECIES.length() lanes at a time (4 on AVX2, 8 on AVX-512), falling
+ * back to scalar evaluation for the last block.length % lanes elements. Variables and constant operands are
+ * read in place, without being copied to a block first.
+ * ADD, SUB, MULT and DIV give exactly the results of CompiledFormula. EXP, SIN, COS, TAN, LN and LOG use the
+ * vector math library and may differ in the last digit, at either precision (see CompiledFormula.withPrecision).
+ * VectorFormula is immutable and safe to share between threads.
+ */
+public class VectorFormula {
+   static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+   private static final int LANES = SPECIES.length();
+
+   private final CompiledFormula formula;
+   private final Node root;
+   private final int scratchLevels;
+
+   public VectorFormula (Formula f) {
+      this(f.compile());
+   }
+
+   public VectorFormula (CompiledFormula f) {
+      this.formula = f;
+      this.root = f.getRoot();
+      this.scratchLevels = root.scratchLevels();
+   }
+
+   /** Number of doubles processed by one vector operation on this machine. */
+   public static int getLanes () {return LANES;}
+
+   public CompiledFormula getFormula () {return formula;}
+
+   /**
+    * Evaluates the formula for every (xs[i], ys[i]) pair into out[i]. Only for formulas over x and y.
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out) {
+      evaluate(xs, ys, out, 0, xs.length);
+   }
+
+   /**
+    * Evaluates the pairs (xs[i], ys[i]) with offset <= i < offset + length into out[i]. Only for formulas over x and y.
+    */
+   public void evaluate (double [] xs, double [] ys, double [] out, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > xs.length || offset + length > ys.length || offset + length > out.length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      FormulaUtility.Variable [] variables = formula.getVariables();
+      double [][] columns = new double [variables.length][];
+      for (int i = 0; i < variables.length; i++) {
+         if (variables[i] != FormulaUtility.Variable.X && variables[i] != FormulaUtility.Variable.Y) throw new InvalidParameterException("Incorrect numerical value in input: the formula has variables other than x and y, evaluate it with columns.");
+         columns[i] = variables[i] == FormulaUtility.Variable.X ? xs : ys;
+      }
+      evaluateColumns(columns, out, offset, length);
+   }
+
+   /**
+    * Evaluates the points offset <= i < offset + length of a columnar frame (see CompiledFormula.evaluate(double [][], ...)).
+    */
+   public void evaluate (double [][] columns, double [] out, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > out.length || columns.length < formula.getFrameSize()) throw new InvalidParameterException("Incorrect numerical value in input.");
+      for (int i = 0; i < formula.getFrameSize(); i++) {
+         if (columns[i] == null || offset + length > columns[i].length) throw new InvalidParameterException("Incorrect numerical value in input.");
+      }
+      evaluateColumns(columns, out, offset, length);
+   }
+
+   private void evaluateColumns (double [][] columns, double [] out, int offset, int length) {
+      double [][] scratch = new double [scratchLevels][Math.min(length, CompiledFormula.BATCH_SIZE)];
+      for (int done = 0; done < length; done += CompiledFormula.BATCH_SIZE) {
+         int n = Math.min(CompiledFormula.BATCH_SIZE, length - done);
+         evaluate(root, columns, offset + done, out, offset + done, n, scratch, 0);
+      }
+   }
+
+   /**
+    * Same contract as Node.evaluate(double [][], ...), n points from index from of the columns into dst[to].
+    */
+   private static void evaluate (Node node, double [][] columns, int from, double [] dst, int to, int n, double [][] scratch, int level) {
+      if (node instanceof Constant) {
+         Arrays.fill(dst, to, to + n, ((Constant) node).value);
+      }
+      else if (node instanceof VariableNode) {
+         System.arraycopy(columns[((VariableNode) node).slot], from, dst, to, n);
+      }
+      else if (node instanceof SpecialNode) {
+         SpecialNode s = (SpecialNode) node;
+         if (s.child instanceof VariableNode) {
+            special(s.operation, columns[((VariableNode) s.child).slot], from, dst, to, n);
+         }
+         else {
+            evaluate(s.child, columns, from, dst, to, n, scratch, level);
+            special(s.operation, dst, to, dst, to, n);
+         }
+      }
+      else {
+         BiNode b = (BiNode) node;
+         if (b.left instanceof Constant && !(b.right instanceof Constant)) {
+            double [] r = dst;
+            int rOffset = to;
+            if (b.right instanceof VariableNode) {
+               r = columns[((VariableNode) b.right).slot];
+               rOffset = from;
+            }
+            else evaluate(b.right, columns, from, dst, to, n, scratch, level);
+            binary(b.operation, ((Constant) b.left).value, r, rOffset, dst, to, n);
+            return;
+         }
+         double [] l = dst;
+         int lOffset = to;
+         if (b.left instanceof VariableNode) {
+            l = columns[((VariableNode) b.left).slot];
+            lOffset = from;
+         }
+         else evaluate(b.left, columns, from, dst, to, n, scratch, level);
+         if (b.right instanceof Constant) {
+            binary(b.operation, l, lOffset, ((Constant) b.right).value, dst, to, n);
+            return;
+         }
+         double [] r = scratch[level];
+         int rOffset = 0;
+         if (b.right instanceof VariableNode) {
+            r = columns[((VariableNode) b.right).slot];
+            rOffset = from;
+         }
+         else evaluate(b.right, columns, from, r, 0, n, scratch, level + 1);
+         binary(b.operation, l, lOffset, r, rOffset, dst, to, n);
+      }
+   }
+
+   private static DoubleVector load (double [] a, int offset) {
+      return DoubleVector.fromArray(SPECIES, a, offset);
+   }
+
+   /**
+    * dst[to + i] = a[ao + i] z b[bo + i]. One loop per operation so every vector operation is a constant for the JIT.
+    */
+   private static void binary (Operation z, double [] a, int ao, double [] b, int bo, double [] dst, int to, int n) {
+      int i = 0;
+      int bound = SPECIES.loopBound(n);
+      switch (z) {
+         case ADD :
+            for (; i < bound; i += LANES) load(a, ao + i).add(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case SUB :
+            for (; i < bound; i += LANES) load(a, ao + i).sub(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case DIV :
+            for (; i < bound; i += LANES) load(a, ao + i).div(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case MULT :
+            for (; i < bound; i += LANES) load(a, ao + i).mul(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case EXP :
+            for (; i < bound; i += LANES) load(a, ao + i).pow(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         default :
+      }
+      for (; i < n; i++) dst[to + i] = FormulaUtility.biCalculations(z, a[ao + i], b[bo + i]);
+   }
+
+   /**
+    * dst[to + i] = a[ao + i] z c. A power of 2.0 is a multiplication, like the JIT does for Math.pow(a, 2.0).
+    */
+   private static void binary (Operation z, double [] a, int ao, double c, double [] dst, int to, int n) {
+      int i = 0;
+      int bound = SPECIES.loopBound(n);
+      switch (z) {
+         case ADD :
+            for (; i < bound; i += LANES) load(a, ao + i).add(c).intoArray(dst, to + i);
+            break;
+         case SUB :
+            for (; i < bound; i += LANES) load(a, ao + i).sub(c).intoArray(dst, to + i);
+            break;
+         case DIV :
+            for (; i < bound; i += LANES) load(a, ao + i).div(c).intoArray(dst, to + i);
+            break;
+         case MULT :
+            for (; i < bound; i += LANES) load(a, ao + i).mul(c).intoArray(dst, to + i);
+            break;
+         case EXP :
+            if (c == 2.0) {
+               for (; i < bound; i += LANES) {
+                  DoubleVector v = load(a, ao + i);
+                  v.mul(v).intoArray(dst, to + i);
+               }
+            }
+            else {
+               for (; i < bound; i += LANES) load(a, ao + i).pow(c).intoArray(dst, to + i);
+            }
+            break;
+         default :
+      }
+      for (; i < n; i++) dst[to + i] = FormulaUtility.biCalculations(z, a[ao + i], c);
+   }
+
+   /**
+    * dst[to + i] = c z b[bo + i].
+    */
+   private static void binary (Operation z, double c, double [] b, int bo, double [] dst, int to, int n) {
+      int i = 0;
+      int bound = SPECIES.loopBound(n);
+      DoubleVector v = DoubleVector.broadcast(SPECIES, c);
+      switch (z) {
+         case ADD :
+            for (; i < bound; i += LANES) v.add(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case SUB :
+            for (; i < bound; i += LANES) v.sub(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case DIV :
+            for (; i < bound; i += LANES) v.div(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case MULT :
+            for (; i < bound; i += LANES) v.mul(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         case EXP :
+            for (; i < bound; i += LANES) v.pow(load(b, bo + i)).intoArray(dst, to + i);
+            break;
+         default :
+      }
+      for (; i < n; i++) dst[to + i] = FormulaUtility.biCalculations(z, c, b[bo + i]);
+   }
+
+   /**
+    * dst[to + i] = z(a[ao + i]).
+    */
+   private static void special (SpecialOperation z, double [] a, int ao, double [] dst, int to, int n) {
+      int i = 0;
+      int bound = SPECIES.loopBound(n);
+      switch (z) {
+         case SIN :
+            for (; i < bound; i += LANES) load(a, ao + i).lanewise(VectorOperators.SIN).intoArray(dst, to + i);
+            break;
+         case COS :
+            for (; i < bound; i += LANES) load(a, ao + i).lanewise(VectorOperators.COS).intoArray(dst, to + i);
+            break;
+         case TAN :
+            for (; i < bound; i += LANES) load(a, ao + i).lanewise(VectorOperators.TAN).intoArray(dst, to + i);
+            break;
+         case LN :
+            for (; i < bound; i += LANES) load(a, ao + i).lanewise(VectorOperators.LOG).intoArray(dst, to + i);
+            break;
+         case LOG :
+            for (; i < bound; i += LANES) load(a, ao + i).lanewise(VectorOperators.LOG10).intoArray(dst, to + i);
+            break;
+         default :
+      }
+      for (; i < n; i++) dst[to + i] = FormulaUtility.specialCalculations(z, a[ao + i]);
+   }
+}
@@ -0,0 +1,294 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import org.junit.jupiter.api.Test;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+
+/**
+ * The compiled tree against the same expressions written in Java and against Formula.solve, and the batch,
+ * bytecode and specialized forms against the tree, bit for bit.
+ */
+class CompiledFormulaTest {
+   static final String [] FORMULAS = {
+      "2.0*x+y-3.5*x*y+x/y",
+      "sin(x)*cos(y)+ln(x+2.0)-log(y+10.0)+sin(cos(x*y))",
+      "(x+1.0)*(y-2.0)^2.0+sin(x)/(1.0+cos(y)*cos(y))-ln(x*x+1.0)",
+      "x^y-y^x",
+      "tan(x)*tan(y)",
+      "x-y-x-y+1.0",
+      "x/y/x*y",
+      "2.0^3.0^x",
+      "sin(x*3.0)*cos(y)+x*y^2.0",
+      "((((x+1.0)*y+2.0)*x+3.0)*y+4.0)",
+      "ln(x)-ln(y)",
+      "1.0/(x-y)",
+      "5.0",
+      "x*-2.0+y*-0.5"
+   };
+
+   /** FORMULAS in Java: every operation left to right, ^ first, then * and /, then + and -. */
+   static final DoubleBinaryOperator [] REFERENCES = {
+      (x, y) -> 2.0 * x + y - 3.5 * x * y + x / y,
+      (x, y) -> Math.sin(x) * Math.cos(y) + Math.log(x + 2.0) - Math.log10(y + 10.0) + Math.sin(Math.cos(x * y)),
+      (x, y) -> (x + 1.0) * Math.pow(y - 2.0, 2.0) + Math.sin(x) / (1.0 + Math.cos(y) * Math.cos(y)) - Math.log(x * x + 1.0),
+      (x, y) -> Math.pow(x, y) - Math.pow(y, x),
+      (x, y) -> Math.tan(x) * Math.tan(y),
+      (x, y) -> x - y - x - y + 1.0,
+      (x, y) -> x / y / x * y,
+      (x, y) -> Math.pow(Math.pow(2.0, 3.0), x),
+      (x, y) -> Math.sin(x * 3.0) * Math.cos(y) + x * Math.pow(y, 2.0),
+      (x, y) -> ((((x + 1.0) * y + 2.0) * x + 3.0) * y + 4.0),
+      (x, y) -> Math.log(x) - Math.log(y),
+      (x, y) -> 1.0 / (x - y),
+      (x, y) -> 5.0,
+      (x, y) -> x * -2.0 + y * -0.5
+   };
+
+   /** Points including zeros, negatives, large values and the edges of the special operations. */
+   static double [] points (long seed, int n) {
+      Random random = new Random(seed);
+      double [] ans = new double [n];
+      double [] edges = {0.0, -0.0, 1.0, -1.0, 0.5, 2.0, 1e-300, 1e300, Math.PI / 2};
+      for (int i = 0; i < n; i++) ans[i] = i < edges.length ? edges[i] : (random.nextDouble() * 2 - 1) * Math.pow(10, random.nextInt(7) - 3);
+      return ans;
+   }
+
+   @Test
+   void compiledMatchesJava () {
+      double [] xs = points(1, 40);
+      double [] ys = points(2, 40);
+      for (int i = 0; i < FORMULAS.length; i++) {
+         CompiledFormula c = new Formula(FORMULAS[i]).compile();
+         for (double x : xs) {
+            for (double y : ys) assertEquals(REFERENCES[i].applyAsDouble(x, y), c.evaluate(x, y), FORMULAS[i] + " at " + x + ", " + y);
+         }
+      }
+   }
+
+   @Test
+   void compiledMatchesSolve () {
+      double [] xs = points(1, 40);
+      double [] ys = points(2, 40);
+      for (String source : FORMULAS) {
+         Formula f = new Formula(source);
+         CompiledFormula c = f.compile();
+         for (double x : xs) {
+            for (double y : ys) assertEquals(f.solve(x, y), c.evaluate(x, y), source + " at " + x + ", " + y);
+         }
+      }
+   }
+
+   @Test
+   void batchMatchesTree () {
+      double [] xs = points(3, 5000);
+      double [] ys = points(4, 5000);
+      double [] out = new double [xs.length];
+      for (String source : FORMULAS) {
+         CompiledFormula c = new Formula(source).compile();
+         c.evaluate(xs, ys, out);
+         for (int i = 0; i < xs.length; i++) assertEquals(c.evaluate(xs[i], ys[i]), out[i], source + " batch at " + i);
+         double [] shifted = new double [xs.length];
+         c.evaluate(xs, ys, shifted, 1000, 3001);
+         for (int i = 1000; i < 4001; i++) assertEquals(out[i], shifted[i], source + " batch with offset at " + i);
+      }
+   }
+
+   @Test
+   void bytecodeMatchesTree () {
+      double [] xs = points(5, 2000);
+      double [] ys = points(6, 2000);
+      for (String source : FORMULAS) {
+         CompiledFormula c = new Formula(source).compile();
+         DoubleBinaryOperator bytecode = c.toBytecode();
+         TieredFormula tiered = new TieredFormula(c, 100);
+         for (int i = 0; i < xs.length; i++) {
+            double expected = c.evaluate(xs[i], ys[i]);
+            assertEquals(expected, bytecode.applyAsDouble(xs[i], ys[i]), source + " bytecode at " + i);
+            assertEquals(expected, tiered.applyAsDouble(xs[i], ys[i]), source + " tiered at " + i);
+         }
+         assertTrue(tiered.isPromoted(), source);
+      }
+   }
+
+   @Test
+   void specializedMatchesOriginal () {
+      double [] fixed = points(9, 30);
+      double [] free = points(10, 30);
+      for (String source : FORMULAS) {
+         CompiledFormula c = new Formula(source).compile();
+         for (double a : fixed) {
+            CompiledFormula onX = c.specialize(Variable.X, a);
+            CompiledFormula onY = c.specialize(Variable.Y, a);
+            for (double b : free) {
+               // the specialized variable is ignored, NaN shows it is never read
+               assertEquals(c.evaluate(a, b), onX.evaluate(Double.NaN, b), source + " with x = " + a + " at y = " + b);
+               assertEquals(c.evaluate(b, a), onY.evaluate(b, Double.NaN), source + " with y = " + a + " at x = " + b);
+            }
+         }
+      }
+   }
+
+   @Test
+   void specializeFoldsTheFixedPart () {
+      CompiledFormula c = new Formula("sin(x*2.0)*y+ln(x)").compile();
+      CompiledFormula s = c.specialize(Variable.X, 1.5);
+      assertEquals("((" + Math.sin(3.0) + "*y)+" + Math.log(1.5) + ")", s.toString());
+      assertTrue(s.size() < c.size());
+   }
+
+   @Test
+   void frameSlotsFollowTheSource () {
+      Variable rate = Variable.of("rate");
+      Variable time = Variable.of("time");
+      Variable offset = Variable.of("offset_2");
+      CompiledFormula c = new Formula("rate*time+sin(x)*offset_2-x").compile();
+      assertArrayEquals(new Variable [] {rate, time, Variable.X, offset}, c.getVariables());
+      assertEquals(4, c.getFrameSize());
+      assertEquals(0, c.slotOf(rate));
+      assertEquals(2, c.slotOf(Variable.X));
+      assertEquals(3, c.slotOf(offset));
+      assertEquals(-1, c.slotOf(Variable.Y));
+      assertEquals(1.5 * 2.0 + Math.sin(0.25) * -3.0 - 0.25, c.evaluate(new double [] {1.5, 2.0, 0.25, -3.0}));
+      assertThrows(InvalidParameterException.class, () -> c.evaluate(new double [3]));
+      assertThrows(InvalidParameterException.class, () -> c.evaluate(1.0, 2.0));
+   }
+
+   @Test
+   void frameMatchesXY () {
+      double [] xs = points(11, 200);
+      double [] ys = points(12, 200);
+      for (String source : FORMULAS) {
+         CompiledFormula c = new Formula(source).compile();
+         CompiledFormula bound = c.bind(Variable.X, Variable.Y);
+         double [] frame = new double [2];
+         for (int i = 0; i < xs.length; i++) {
+            frame[0] = xs[i];
+            frame[1] = ys[i];
+            assertEquals(c.evaluate(xs[i], ys[i]), bound.evaluate(frame), source + " at " + i);
+         }
+      }
+   }
+
+   @Test
+   void boundFormulasShareAFrame () {
+      Variable rate = Variable.of("rate");
+      Variable time = Variable.of("time");
+      Variable [] layout = {time, Variable.Y, rate, Variable.X};
+      CompiledFormula a = new Formula("x*rate").compile().bind(layout);
+      CompiledFormula b = new Formula("rate-time").compile().bind(layout);
+      assertArrayEquals(layout, a.getVariables());
+      assertEquals(2, a.slotOf(rate));
+      assertEquals(3, a.slotOf(Variable.X));
+      assertEquals(1, b.slotOf(Variable.Y));
+      double [] frame = {4.0, 100.0, 1.5, 2.0};
+      assertEquals(2.0 * 1.5, a.evaluate(frame));
+      assertEquals(1.5 - 4.0, b.evaluate(frame));
+      double [][] columns = {{4.0, 5.0}, {100.0, 100.0}, {1.5, 2.5}, {2.0, 3.0}};
+      double [] out = new double [2];
+      a.evaluate(columns, out, 0, 2);
+      assertArrayEquals(new double [] {2.0 * 1.5, 3.0 * 2.5}, out);
+      b.evaluate(columns, out, 0, 2);
+      assertArrayEquals(new double [] {1.5 - 4.0, 2.5 - 5.0}, out);
+
+      CompiledFormula c = new Formula("x*rate").compile();
+      assertThrows(InvalidParameterException.class, () -> c.bind(Variable.X));
+      assertThrows(InvalidParameterException.class, () -> c.bind(rate, Variable.X, rate));
+   }
+
+   /** The source with every x replaced by (gx) and every y by (gy), at the same time. */
+   private static String replaceXY (String source, String gx, String gy) {
+      StringBuilder ans = new StringBuilder();
+      for (char c : source.toCharArray()) {
+         if (c == 'x') ans.append('(').append(gx).append(')');
+         else if (c == 'y') ans.append('(').append(gy).append(')');
+         else ans.append(c);
+      }
+      return ans.toString();
+   }
+
+   private static void assertSameFormula (CompiledFormula expected, CompiledFormula actual, String message) {
+      assertEquals(expected.toString(), actual.toString(), message);
+      double [] xs = points(23, 30);
+      double [] ys = points(24, 30);
+      for (int i = 0; i < xs.length; i++) assertEquals(expected.evaluate(xs[i], ys[i]), actual.evaluate(xs[i], ys[i]), message + " at " + i);
+   }
+
+   @Test
+   void compositionMatchesParsedText () {
+      String gx = "sin(y)*2.0";
+      String gy = "x-1.5";
+      for (String source : FORMULAS) {
+         CompiledFormula c = new Formula(source).compile();
+         assertSameFormula(new Formula(replaceXY(source, gx, "y")).compile(), c.substitute(Variable.X, new Formula(gx).compile()), source + " with x = " + gx);
+         assertSameFormula(new Formula(replaceXY(source, gx, gy)).compile(), c.compose(new Formula(gx).compile(), new Formula(gy).compile()), source + " composed");
+      }
+      CompiledFormula [] parts = new CompiledFormula [FORMULAS.length];
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < FORMULAS.length; i++) {
+         parts[i] = new Formula(FORMULAS[i]).compile();
+         text.append(i == 0 ? "(" : "-(").append(FORMULAS[i]).append(')');
+      }
+      assertSameFormula(new Formula(text.toString()).compile(), CompiledFormula.combine(Operation.SUB, parts), "combined");
+   }
+
+   /**
+    * 16000 parts x*i: the balanced tree stays shallow, and every pass over it gives 0.5 * (1 + ... + 16000) exactly.
+    */
+   @Test
+   void combineThousandsOfParts () throws Exception {
+      int n = 16000;
+      CompiledFormula [] parts = new CompiledFormula [n];
+      for (int i = 0; i < n; i++) parts[i] = CompiledFormula.combine(Operation.MULT, CompiledFormula.variable(Variable.X), CompiledFormula.constant(i + 1));
+      CompiledFormula c = CompiledFormula.combine(Operation.ADD, parts);
+      double expected = 0.5 * n * (n + 1) / 2;
+      assertTrue(c.getRoot().depth <= 2 + 15, "depth " + c.getRoot().depth);
+      assertEquals(expected, c.evaluate(0.5, 7.0));
+      assertEquals(expected, c.evaluate(new double [] {0.5}));
+      double [] xs = new double [CompiledFormula.BATCH_SIZE + 3];
+      Arrays.fill(xs, 0.5);
+      double [] out = new double [xs.length];
+      c.evaluate(xs, xs, out);
+      for (double v : out) assertEquals(expected, v);
+      assertEquals(4 * n - 1, c.size());
+      assertEquals(c.toString(), new Formula(c.toString()).compile().toString());
+      CompiledFormula decoded = FormulaCodec.decode(ByteBuffer.wrap(FormulaCodec.encode(c)));
+      assertEquals(expected, decoded.evaluate(0.5, 0.0));
+      assertEquals(expected, new FormulaBatch(c).evaluate(0.5, 0.0)[0]);
+   }
+
+   @Test
+   void treesDeeperThanTheLimitAreRejected () {
+      CompiledFormula [] parts = new CompiledFormula [CompiledFormula.MAX_DEPTH];
+      for (int i = 0; i < parts.length; i++) parts[i] = CompiledFormula.variable(Variable.X);
+      // a chain of MAX_DEPTH parts is as deep as allowed, and every recursive pass handles it
+      CompiledFormula chain = CompiledFormula.combine(Operation.SUB, parts);
+      assertEquals(CompiledFormula.MAX_DEPTH, chain.getRoot().depth);
+      assertEquals(1.0 - (parts.length - 1), chain.evaluate(1.0, 0.0));
+      double [] out = new double [3];
+      chain.evaluate(new double [] {1.0, 2.0, 3.0}, new double [3], out);
+      assertEquals(2.0 - 2.0 * (parts.length - 1), out[1]);
+      assertEquals(chain.toString(), new Formula(chain.toString()).compile().toString());
+      assertEquals(chain.toString(), FormulaCodec.decode(ByteBuffer.wrap(FormulaCodec.encode(chain))).toString());
+      assertEquals(1.0 - (parts.length - 1), new FormulaBatch(chain).evaluate(1.0, 0.0)[0]);
+      assertEquals(chain.evaluate(1.0, 0.0), chain.toBytecode().applyAsDouble(1.0, 0.0));
+      assertEquals(1.0 - (parts.length - 1), new IntervalFormula(chain).evaluate(1.0, 1.0, 0.0, 0.0)[0], 1e-9);
+      new VectorFormula(chain).evaluate(new double [] {1.0, 2.0, 3.0}, new double [3], out);
+      assertEquals(2.0 - 2.0 * (parts.length - 1), out[1]);
+
+      CompiledFormula [] more = Arrays.copyOf(parts, parts.length + 1);
+      more[parts.length] = CompiledFormula.variable(Variable.X);
+      assertThrows(InvalidParameterException.class, () -> CompiledFormula.combine(Operation.SUB, more));
+      assertThrows(InvalidParameterException.class, () -> CompiledFormula.apply(FormulaUtility.SpecialOperation.SIN, chain));
+      assertThrows(InvalidParameterException.class, () -> chain.substitute(Variable.X, new Formula("x+1.0").compile()));
+   }
+}
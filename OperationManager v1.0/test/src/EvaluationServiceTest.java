@@ -0,0 +1,150 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Dispatch by size and by latency, and futures that always complete: unknown ids, rejected batches and close.
+ */
+class EvaluationServiceTest {
+   private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+   private static final Formula FORMULA = new Formula("x*y+sin(x)");
+
+   private static Throwable cause (CompletableFuture<Double> f) {
+      ExecutionException e = assertThrows(ExecutionException.class, () -> f.get(10, TimeUnit.SECONDS));
+      return e.getCause();
+   }
+
+   @Test
+   void fullBatchIsDispatchedAtOnce () throws Exception {
+      EvaluationService service = new EvaluationService(4, HOUR, Runnable::run);
+      service.register("f", FORMULA);
+      ArrayList<CompletableFuture<Double>> futures = new ArrayList<CompletableFuture<Double>>();
+      for (int i = 0; i < 3; i++) futures.add(service.submit("f", i, 2.0));
+      for (CompletableFuture<Double> f : futures) assertFalse(f.isDone());
+      futures.add(service.submit("f", 3, 2.0));
+      for (int i = 0; i < 4; i++) {
+         assertTrue(futures.get(i).isDone());
+         assertEquals(FORMULA.compile().evaluate(i, 2.0), futures.get(i).get());
+      }
+      assertEquals(1, service.getBatchCount());
+      assertEquals(4, service.getRequestCount());
+      service.close();
+   }
+
+   @Test
+   void partialBatchIsDispatchedAfterTheLatency () throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         EvaluationService service = new EvaluationService(1000, TimeUnit.MILLISECONDS.toNanos(200), executor);
+         service.register("f", FORMULA);
+         CompletableFuture<Double> a = service.submit("f", 1.0, 2.0);
+         CompletableFuture<Double> b = service.submit("f", 3.0, 4.0);
+         assertEquals(FORMULA.compile().evaluate(1.0, 2.0), a.get(10, TimeUnit.SECONDS));
+         assertEquals(FORMULA.compile().evaluate(3.0, 4.0), b.get(10, TimeUnit.SECONDS));
+         assertEquals(1, service.getBatchCount());
+         service.close();
+      }
+      finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   void unknownIdsFail () {
+      EvaluationService service = new EvaluationService(4, HOUR, Runnable::run);
+      assertInstanceOf(InvalidParameterException.class, cause(service.submit("f", 1.0, 2.0)));
+      service.register("f", FORMULA);
+      assertTrue(service.unregister("f"));
+      assertFalse(service.unregister("f"));
+      assertInstanceOf(InvalidParameterException.class, cause(service.submit("f", 1.0, 2.0)));
+      service.close();
+   }
+
+   @Test
+   void rejectedBatchesFailTheirFutures () {
+      RejectedExecutionException rejected = new RejectedExecutionException("full");
+      EvaluationService service = new EvaluationService(2, HOUR, r -> {throw rejected;});
+      service.register("f", FORMULA);
+      CompletableFuture<Double> a = service.submit("f", 1.0, 2.0);
+      CompletableFuture<Double> b = service.submit("f", 3.0, 4.0);
+      assertSame(rejected, cause(a));
+      assertSame(rejected, cause(b));
+      CompletableFuture<Double> c = service.submit("f", 5.0, 6.0);
+      service.close();
+      assertSame(rejected, cause(c));
+   }
+
+   @Test
+   void closeFlushesAndRejectsLaterSubmits () throws Exception {
+      EvaluationService service = new EvaluationService(100, HOUR, Runnable::run);
+      service.register("f", FORMULA);
+      CompletableFuture<Double> a = service.submit("f", 1.0, 2.0);
+      assertFalse(a.isDone());
+      service.close();
+      assertEquals(FORMULA.compile().evaluate(1.0, 2.0), a.get(10, TimeUnit.SECONDS));
+      assertInstanceOf(IllegalStateException.class, cause(service.submit("f", 1.0, 2.0)));
+   }
+
+   @Test
+   void closeRacingSubmitsCompletesEveryFuture () throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         for (int round = 0; round < 20; round++) {
+            EvaluationService service = new EvaluationService(8, TimeUnit.MILLISECONDS.toNanos(1), executor);
+            service.register("f", FORMULA);
+            int threads = 4;
+            ArrayList<ArrayList<CompletableFuture<Double>>> futures = new ArrayList<ArrayList<CompletableFuture<Double>>>();
+            CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Thread> submitters = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+               ArrayList<CompletableFuture<Double>> own = new ArrayList<CompletableFuture<Double>>();
+               futures.add(own);
+               Thread thread = new Thread(() -> {
+                  try {
+                     start.await();
+                  }
+                  catch (InterruptedException e) {
+                     return;
+                  }
+                  for (int i = 0; i < 2000; i++) own.add(service.submit("f", i, 1.0));
+               });
+               submitters.add(thread);
+               thread.start();
+            }
+            start.countDown();
+            Thread.sleep(1);
+            service.close();
+            for (Thread thread : submitters) thread.join();
+            for (ArrayList<CompletableFuture<Double>> own : futures) {
+               for (int i = 0; i < own.size(); i++) {
+                  try {
+                     assertEquals(FORMULA.compile().evaluate(i, 1.0), own.get(i).get(10, TimeUnit.SECONDS));
+                  }
+                  catch (ExecutionException e) {
+                     assertInstanceOf(IllegalStateException.class, e.getCause());
+                  }
+               }
+            }
+         }
+      }
+      finally {
+         executor.shutdown();
+      }
+   }
+}
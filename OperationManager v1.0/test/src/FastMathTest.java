@@ -0,0 +1,94 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import org.junit.jupiter.api.Test;
+import src.FormulaUtility.Precision;
+import src.FormulaUtility.Variable;
+
+/**
+ * A bounded sample of benchmarks.FastMathAccuracy: every function within FastMath.ERROR of StrictMath, and the
+ * edge cases handled like StrictMath. Also the FAST paths of CompiledFormula against each other.
+ */
+class FastMathTest {
+   private static final int SAMPLES = 100_000;
+
+   private static void assertWithinBound (String name, DoubleUnaryOperator fast, DoubleUnaryOperator exact, double [] xs, boolean tan) {
+      for (double x : xs) {
+         double e = exact.applyAsDouble(x);
+         double error = Math.abs(fast.applyAsDouble(x) - e);
+         double bound = FastMath.ERROR * Math.max(1, Math.abs(e)) / (tan ? Math.abs(StrictMath.cos(x)) : 1);
+         assertTrue(error <= bound, name + "(" + x + ") = " + fast.applyAsDouble(x) + ", expected " + e);
+      }
+   }
+
+   @Test
+   void functionsAreWithinTheBound () {
+      Random random = new Random(42);
+      double [] angles = new double [3 * SAMPLES];
+      double [] positives = new double [2 * SAMPLES];
+      for (int i = 0; i < SAMPLES; i++) {
+         angles[i] = (random.nextDouble() * 2 - 1) * Math.PI;
+         angles[SAMPLES + i] = (random.nextDouble() * 2 - 1) * 1000;
+         angles[2 * SAMPLES + i] = (random.nextDouble() * 2 - 1) * FastMath.REDUCTION_LIMIT;
+         positives[i] = 0.5 + 1.5 * random.nextDouble();
+         positives[SAMPLES + i] = Math.pow(2, (random.nextDouble() * 2 - 1) * 1020);
+      }
+      assertWithinBound("sin", FastMath::sin, StrictMath::sin, angles, false);
+      assertWithinBound("cos", FastMath::cos, StrictMath::cos, angles, false);
+      assertWithinBound("tan", FastMath::tan, StrictMath::tan, angles, true);
+      assertWithinBound("ln", FastMath::log, StrictMath::log, positives, false);
+      assertWithinBound("log", FastMath::log10, StrictMath::log10, positives, false);
+   }
+
+   @Test
+   void edgeCasesMatchStrictMath () {
+      double [] edges = {0.0, -0.0, 1.0, -1.0, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Math.PI, Math.PI / 2, Math.PI / 4, 1e-300,
+         FastMath.REDUCTION_LIMIT, Math.nextUp(FastMath.REDUCTION_LIMIT), 1e22, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      for (double x : edges) {
+         assertEdge("sin", FastMath.sin(x), StrictMath.sin(x), x, 1);
+         assertEdge("cos", FastMath.cos(x), StrictMath.cos(x), x, 1);
+         assertEdge("tan", FastMath.tan(x), StrictMath.tan(x), x, Math.abs(StrictMath.cos(x)));
+         assertEdge("ln", FastMath.log(x), StrictMath.log(x), x, 1);
+         assertEdge("log", FastMath.log10(x), StrictMath.log10(x), x, 1);
+      }
+      assertEquals(0.0, FastMath.log(1.0));
+      assertEquals(Double.NEGATIVE_INFINITY, FastMath.log(0.0));
+   }
+
+   /**
+    * Same as StrictMath where the result is not finite, otherwise within the bound.
+    */
+   private static void assertEdge (String name, double fast, double exact, double x, double scale) {
+      boolean same = Double.compare(fast, exact) == 0;
+      boolean close = Double.isFinite(exact) && Math.abs(fast - exact) <= FastMath.ERROR * Math.max(1, Math.abs(exact)) / scale;
+      assertTrue(same || close, name + "(" + x + ") = " + fast + ", expected " + exact);
+   }
+
+   @Test
+   void fastPathsAgree () {
+      double [] xs = CompiledFormulaTest.points(21, 3000);
+      double [] ys = CompiledFormulaTest.points(22, 3000);
+      double [] out = new double [xs.length];
+      for (String source : CompiledFormulaTest.FORMULAS) {
+         CompiledFormula c = new Formula(source).compile(Precision.FAST);
+         c.evaluate(xs, ys, out);
+         DoubleBinaryOperator bytecode = c.toBytecode();
+         Variable [] variables = c.getVariables();
+         double [] frame = new double [variables.length];
+         for (int i = 0; i < xs.length; i++) {
+            double expected = c.evaluate(xs[i], ys[i]);
+            for (int k = 0; k < frame.length; k++) frame[k] = variables[k] == Variable.X ? xs[i] : ys[i];
+            assertEquals(expected, out[i], source + " batch at " + i);
+            assertEquals(expected, bytecode.applyAsDouble(xs[i], ys[i]), source + " bytecode at " + i);
+            assertEquals(expected, c.evaluate(frame), source + " frame at " + i);
+         }
+      }
+      CompiledFormula sin = new Formula("sin(x)").compile(Precision.FAST);
+      for (double x : xs) assertEquals(FastMath.sin(x), sin.evaluate(x, 0), "sin at " + x);
+   }
+}
@@ -0,0 +1,56 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import src.CompiledFormula.Node;
+import src.CompiledFormula.BiNode;
+import src.CompiledFormula.VariableNode;
+import src.FormulaUtility.Operation;
+import src.FormulaUtility.Variable;
+
+/**
+ * Shared registers must give the same results as evaluating each formula on its own.
+ */
+class FormulaBatchTest {
+   @Test
+   void batchMatchesEachFormula () {
+      CompiledFormula [] compiled = new CompiledFormula [CompiledFormulaTest.FORMULAS.length];
+      for (int i = 0; i < compiled.length; i++) compiled[i] = new Formula(CompiledFormulaTest.FORMULAS[i]).compile();
+      FormulaBatch batch = new FormulaBatch(compiled);
+      double [] xs = CompiledFormulaTest.points(7, 3000);
+      double [] ys = CompiledFormulaTest.points(8, 3000);
+      double [][] results = new double [compiled.length][xs.length];
+      batch.evaluate(xs, ys, results, 0, xs.length);
+      for (int p = 0; p < xs.length; p++) {
+         double [] scalar = batch.evaluate(xs[p], ys[p]);
+         for (int i = 0; i < compiled.length; i++) {
+            double expected = compiled[i].evaluate(xs[p], ys[p]);
+            assertEquals(expected, scalar[i], CompiledFormulaTest.FORMULAS[i] + " at " + p);
+            assertEquals(expected, results[i][p], CompiledFormulaTest.FORMULAS[i] + " batch at " + p);
+         }
+      }
+   }
+
+   @Test
+   void equalSubtreesShareARegister () {
+      FormulaBatch batch = new FormulaBatch(new Formula("sin(x*y)*sin(x*y)+cos(x*y)"), new Formula("x*y+1.0"));
+      // x, y, x*y, sin, *, cos, + and then 1.0, +
+      assertEquals(9, batch.getRegisterCount());
+      assertEquals(14 + 5, batch.getNodeCount());
+   }
+
+   @Test
+   void sharedNodesAreRegisteredOnce () {
+      // 2^200 paths from the root to x, one register per level
+      Node n = new VariableNode(Variable.X, 0);
+      for (int i = 0; i < 200; i++) n = BiNode.create(Operation.ADD, n, n);
+      Node root = n;
+      FormulaBatch batch = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> new FormulaBatch(new Node [] {root}));
+      assertEquals(201, batch.getRegisterCount());
+      assertEquals(201, batch.getNodeCount());
+      assertEquals(Math.pow(2, 200), batch.evaluate(1.0, 0.0)[0]);
+   }
+}
@@ -0,0 +1,133 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.InvalidParameterException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The cache must accept exactly the sources the Formula constructor accepts, and return the same formula.
+ */
+class FormulaCacheTest {
+   private static final String [] TOKENS = {"x", "y", "ab", "2", "2.5", "1e3", "1e", "-", "+", "*", "/", "^", "(", ")", "sin", "ln", "log", "NaN", "Infinity", ".5", "e", "E"};
+
+   /**
+    * @return the message of the Formula constructor for the source, or null if it is valid.
+    */
+   private static String constructorError (String source) {
+      try {
+         new Formula(source);
+         return null;
+      }
+      catch (InvalidParameterException e) {
+         return e.getMessage();
+      }
+   }
+
+   private static void assertSameAsConstructor (FormulaCache cache, String source) {
+      String error = constructorError(source);
+      if (error != null) {
+         InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> cache.get(source), source);
+         assertEquals(error, e.getMessage(), source);
+         assertNull(cache.getIfPresent(source), source);
+         return;
+      }
+      CompiledFormula expected = new Formula(source).compile();
+      CompiledFormula cached = cache.get(source);
+      assertEquals(expected.toString(), cached.toString(), source);
+      assertEquals(expected.toString(), new Formula(FormulaCache.normalize(source)).compile().toString(), source);
+      for (double x = -2; x <= 2; x += 0.75) assertEquals(expected.evaluate(new double [] {x, 0.5, 3, 4}), cached.evaluate(new double [] {x, 0.5, 3, 4}), source);
+   }
+
+   /**
+    * Source text that can be converted to a String but not read char by char, so a scan fails the test.
+    */
+   private static final class Unscannable implements CharSequence {
+      private final String text;
+      Unscannable (String text) {this.text = text;}
+      public int length () {return text.length();}
+      public char charAt (int index) {throw new AssertionError("scanned " + text);}
+      public CharSequence subSequence (int start, int end) {throw new AssertionError("scanned " + text);}
+      public String toString () {return text;}
+   }
+
+   @Test
+   void repeatedSpellingIsNotScanned () {
+      FormulaCache cache = new FormulaCache(64);
+      CompiledFormula f = cache.get("sin(x) + y * 2.0");
+      assertSame(f, cache.get("sin(x)+y*2"));
+      assertSame(f, cache.get(new Unscannable("sin(x) + y * 2.0")));
+      assertSame(f, cache.get(new Unscannable("sin(x)+y*2")));
+      assertSame(f, cache.getIfPresent(new Unscannable("sin(x)+y*2")));
+      assertThrows(AssertionError.class, () -> cache.get(new Unscannable("sin(x) +y*2")));
+      assertEquals(3, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+   }
+
+   @Test
+   void spellingsLeaveWithTheirEntry () {
+      FormulaCache cache = new FormulaCache(1);
+      CompiledFormula f = cache.get("x + 1.0");
+      cache.get("y");
+      assertEquals(1, cache.getEvictionCount());
+      assertThrows(AssertionError.class, () -> cache.get(new Unscannable("x + 1.0")));
+      CompiledFormula g = cache.get("x + 1.0");
+      assertNotSame(f, g);
+      cache.invalidate("x+1");
+      assertThrows(AssertionError.class, () -> cache.getIfPresent(new Unscannable("x + 1.0")));
+      cache.get("x + 1.0");
+      cache.invalidateAll();
+      assertEquals(0, cache.size());
+      assertNotSame(g, cache.get("x + 1.0"));
+   }
+
+   @Test
+   void spellingsPerKeyAreBounded () {
+      FormulaCache cache = new FormulaCache(8);
+      CompiledFormula f = cache.get("x");
+      StringBuilder source = new StringBuilder("x");
+      for (int i = 0; i < 3 * FormulaCache.MAX_SPELLINGS; i++) {
+         source.insert(0, ' ');
+         assertSame(f, cache.get(source.toString()));
+      }
+      assertThrows(AssertionError.class, () -> cache.get(new Unscannable(source.toString())));
+   }
+
+   @Test
+   void spacesThatChangeTheMeaning () {
+      FormulaCache cache = new FormulaCache(64);
+      String [] sources = {"x* - 2.0", "x* -2.0", "x - 2.0", "x -2.0", "x- 2.0", "1e -5", "1e-5", "1 e5", "sin -2.0", "sin - 2.0",
+         "2 .5", "a b", "( x + 1.0 ) * y", "- Infinity", "-Infinity", "x+$", "x*NaN", "sin x", "ln og"};
+      for (String source : sources) assertSameAsConstructor(cache, source);
+   }
+
+   @Test
+   void equivalentSourcesShareAnEntry () {
+      FormulaCache cache = new FormulaCache(64);
+      CompiledFormula f = cache.get("x + 1.0");
+      assertSame(f, cache.get("x+1"));
+      assertSame(f, cache.get(" x +1.000"));
+      assertEquals(1, cache.size());
+   }
+
+   @Test
+   void randomSources () {
+      FormulaCache cache = new FormulaCache(256);
+      Random random = new Random(11);
+      StringBuilder source = new StringBuilder();
+      for (int i = 0; i < 50_000; i++) {
+         source.setLength(0);
+         int n = 1 + random.nextInt(7);
+         for (int k = 0; k < n; k++) {
+            source.append(TOKENS[random.nextInt(TOKENS.length)]);
+            if (random.nextInt(3) == 0) source.append(' ');
+         }
+         assertSameAsConstructor(cache, source.toString());
+      }
+   }
+}
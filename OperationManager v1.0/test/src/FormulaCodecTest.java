@@ -0,0 +1,136 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Records decoded back to the formula they were encoded from, and corrupt records rejected with InvalidParameterException.
+ */
+class FormulaCodecTest {
+   private static final String [] MORE_FORMULAS = {"a*b+c", "ab-x/long_name", "sin(a)^x"};
+
+   private static ArrayList<CompiledFormula> formulas () {
+      ArrayList<CompiledFormula> ans = new ArrayList<CompiledFormula>();
+      for (String source : CompiledFormulaTest.FORMULAS) ans.add(new Formula(source).compile());
+      for (String source : MORE_FORMULAS) ans.add(new Formula(source).compile());
+      return ans;
+   }
+
+   private static void assertSameFormula (CompiledFormula expected, CompiledFormula actual) {
+      assertEquals(expected.toString(), actual.toString());
+      assertArrayEquals(expected.getVariables(), actual.getVariables(), expected.toString());
+      double [] points = CompiledFormulaTest.points(8, 20);
+      double [] frame = new double [expected.getVariables().length];
+      for (int i = 0; i < points.length; i++) {
+         for (int k = 0; k < frame.length; k++) frame[k] = points[(i + 3 * k) % points.length];
+         assertEquals(expected.evaluate(frame), actual.evaluate(frame), expected.toString());
+      }
+   }
+
+   @Test
+   void recordRoundTrip () {
+      for (CompiledFormula f : formulas()) {
+         byte [] record = FormulaCodec.encode(f);
+         assertEquals(0, record.length % 8);
+         ByteBuffer b = ByteBuffer.wrap(record);
+         assertSameFormula(f, FormulaCodec.decode(b));
+         assertEquals(record.length, b.position());
+      }
+   }
+
+   @Test
+   void libraryRoundTrip (@TempDir Path dir) throws IOException {
+      ArrayList<CompiledFormula> formulas = formulas();
+      Path file = dir.resolve("formulas.omf");
+      FormulaCodec.writeLibrary(formulas, file);
+      CompiledFormula [] decoded = FormulaCodec.readLibrary(file);
+      assertEquals(formulas.size(), decoded.length);
+      for (int i = 0; i < decoded.length; i++) assertSameFormula(formulas.get(i), decoded[i]);
+   }
+
+   private static void assertCorrupt (byte [] record) {
+      assertThrows(InvalidParameterException.class, () -> FormulaCodec.decode(ByteBuffer.wrap(record)), Arrays.toString(record));
+   }
+
+   @Test
+   void corruptHeaders () {
+      byte [] record = FormulaCodec.encode(new Formula("x*y+2.0").compile());
+      int [][] headers = {{-1, 1}, {5, -1}, {Integer.MAX_VALUE, 1}, {5, Integer.MAX_VALUE}, {Integer.MAX_VALUE - 4, 0}, {5, 1 << 28}, {record.length, 0}};
+      for (int [] header : headers) {
+         byte [] copy = record.clone();
+         ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(0, header[0]).putInt(4, header[1]);
+         assertCorrupt(copy);
+      }
+      assertCorrupt(Arrays.copyOf(record, 8));
+      byte [] deep = record.clone();
+      ByteBuffer.wrap(deep).order(ByteOrder.LITTLE_ENDIAN).putShort(8, (short) -1);
+      assertCorrupt(deep);
+      byte [] variables = record.clone();
+      ByteBuffer.wrap(variables).order(ByteOrder.LITTLE_ENDIAN).putShort(10, (short) 300);
+      assertCorrupt(variables);
+   }
+
+   @Test
+   void duplicateNamesInTheLayout () {
+      byte [] record = FormulaCodec.encode(new Formula("a+b").compile());
+      ByteBuffer b = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+      int layoutStart = FormulaCodec.align(FormulaCodec.RECORD_HEADER + b.getInt(0)) + 8 * b.getInt(4);
+      assertEquals('a', record[layoutStart + 1]);
+      assertEquals('b', record[layoutStart + 3]);
+      record[layoutStart + 3] = 'a';
+      assertCorrupt(record);
+   }
+
+   @Test
+   void onlyTheCurrentVersionIsRead () {
+      ByteBuffer library = ByteBuffer.allocate(FormulaCodec.LIBRARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      library.putInt(FormulaCodec.MAGIC).putShort((short) 1).putShort((short) 0).putInt(0).putInt(0).flip();
+      InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> FormulaCodec.readLibrary(library));
+      assertEquals("Incorrect numerical value in input: unsupported library version 1.", e.getMessage());
+      // opcodes 1 and 2 were X and Y in version 1
+      for (byte op = 1; op <= 2; op++) {
+         byte [] record = FormulaCodec.encode(new Formula("x").compile());
+         record[FormulaCodec.RECORD_HEADER] = op;
+         assertCorrupt(record);
+      }
+   }
+
+   @Test
+   void truncatedAndRandomRecords () {
+      byte [] record = FormulaCodec.encode(new Formula("sin(a)*b-x/2.5").compile());
+      for (int n = 0; n < record.length; n++) assertCorrupt(Arrays.copyOf(record, n));
+      Random random = new Random(3);
+      for (int i = 0; i < 100_000; i++) {
+         byte [] copy = record.clone();
+         for (int k = 1 + random.nextInt(3); k > 0; k--) copy[random.nextInt(copy.length)] = (byte) random.nextInt();
+         try {
+            FormulaCodec.decode(ByteBuffer.wrap(copy));
+         }
+         catch (InvalidParameterException e) {
+            // the only failure allowed
+         }
+      }
+   }
+
+   @Test
+   void corruptLibraryCount () {
+      ByteBuffer library = ByteBuffer.allocate(FormulaCodec.LIBRARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      library.putInt(FormulaCodec.MAGIC).putShort(FormulaCodec.VERSION).putShort((short) 0).putInt(-1).putInt(0).flip();
+      assertThrows(InvalidParameterException.class, () -> FormulaCodec.readLibrary(library.duplicate()));
+      library.putInt(8, Integer.MAX_VALUE);
+      assertThrows(InvalidParameterException.class, () -> FormulaCodec.readLibrary(library.duplicate()));
+   }
+}
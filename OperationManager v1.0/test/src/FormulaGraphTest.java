@@ -0,0 +1,159 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import src.FormulaUtility.Variable;
+
+/**
+ * Recompute against the values the formulas must take, cycles, level changes and the isolation of snapshots.
+ */
+class FormulaGraphTest {
+   private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+   @AfterAll
+   static void shutdown () {
+      POOL.shutdown();
+   }
+
+   @Test
+   void onlyDirtyFormulasAreRecomputed () {
+      FormulaGraph graph = new FormulaGraph(POOL);
+      graph.set("a", 2.0);
+      graph.set("b", 3.0);
+      graph.define("sum", new Formula("a+b"));
+      graph.define("twice", new Formula("sum*2.0"));
+      graph.define("other", new Formula("b-1.0"));
+      assertEquals(3, graph.recompute());
+      assertEquals(10.0, graph.snapshot().get("twice"));
+      graph.set("a", 4.0);
+      assertEquals(2, graph.getDirtyCount());
+      assertEquals(2, graph.recompute());
+      assertEquals(14.0, graph.snapshot().get("twice"));
+      assertEquals(2.0, graph.snapshot().get("other"));
+      graph.set("a", 4.0);
+      assertEquals(0, graph.recompute());
+      assertTrue(graph.remove("b"));
+      assertTrue(Double.isNaN(graph.get("twice")));
+      assertFalse(graph.remove("b"));
+      assertTrue(Double.isNaN(graph.get("b")));
+   }
+
+   @Test
+   void cyclesAreRejected () {
+      FormulaGraph graph = new FormulaGraph(POOL);
+      graph.set("c", 1.0);
+      graph.define("a", new Formula("b+1.0"));
+      graph.define("b", new Formula("c*2.0"));
+      assertThrows(InvalidParameterException.class, () -> graph.define("a", new Formula("a+1.0")));
+      assertThrows(InvalidParameterException.class, () -> graph.define("c", new Formula("a-1.0")));
+      assertThrows(InvalidParameterException.class, () -> graph.define("b", new Formula("a*c")));
+      // the graph is left unchanged
+      assertNull(graph.getFormula("c"));
+      assertEquals(new Formula("b+1.0").compile().optimize().toString(), graph.getFormula("a").toString());
+      assertEquals(3.0, graph.get("a"));
+      graph.set("c", 2.0);
+      assertEquals(5.0, graph.get("a"));
+      assertThrows(InvalidParameterException.class, () -> graph.set("a", 1.0));
+      // a formula may read a name read elsewhere, only a path back to itself is a cycle
+      graph.define("d", new Formula("a+b+c"));
+      assertEquals(11.0, graph.get("d"));
+   }
+
+   @Test
+   void levelsShiftOnRedefinition () {
+      FormulaGraph graph = new FormulaGraph(POOL);
+      graph.set("a", 1.0);
+      graph.define("k1", new Formula("a+1.0"));
+      graph.define("k2", new Formula("k1+1.0"));
+      graph.define("k3", new Formula("k2+1.0"));
+      graph.define("f1", new Formula("a*10.0"));
+      graph.define("f2", new Formula("f1+1.0"));
+      graph.define("g", new Formula("a+f2"));
+      assertEquals(12.0, graph.get("g"));
+      // f1 moves from level 1 to level 4, f2 and g must follow or they would read stale values
+      graph.define("f1", new Formula("k3*10.0"));
+      assertEquals(42.0, graph.get("g"));
+      graph.set("a", 2.0);
+      assertEquals(53.0, graph.get("g"));
+      // and back down, below formulas that now read g
+      graph.define("h", new Formula("g+k1"));
+      graph.define("f1", new Formula("a"));
+      assertEquals(5.0, graph.get("g"));
+      graph.set("a", 3.0);
+      assertEquals(7.0, graph.get("g"));
+      assertEquals(11.0, graph.get("h"));
+      // removing a formula makes it an input of level 0
+      graph.remove("k1");
+      graph.set("k1", 100.0);
+      assertEquals(102.0, graph.get("k3"));
+      assertEquals(107.0, graph.get("h"));
+   }
+
+   @Test
+   void wideLevelsAreEvaluatedInParallel () {
+      FormulaGraph graph = new FormulaGraph(POOL);
+      int n = 4 * FormulaGraph.PARALLEL_THRESHOLD;
+      graph.set("a", 1.0);
+      for (int i = 0; i < n; i++) graph.define("w" + i, new Formula("a*" + i + ".0"));
+      graph.define("total", new Formula("w0+w" + (n - 1)));
+      assertEquals(n + 1, graph.recompute());
+      graph.set("a", 2.0);
+      assertEquals(n + 1, graph.recompute());
+      for (int i = 0; i < n; i++) assertEquals(2.0 * i, graph.snapshot().get("w" + i));
+      assertEquals(2.0 * (n - 1), graph.snapshot().get("total"));
+   }
+
+   @Test
+   void snapshotsAreIsolated () {
+      FormulaGraph graph = new FormulaGraph(POOL);
+      graph.set("a", 1.0);
+      graph.define("b", new Formula("a+1.0"));
+      graph.recompute();
+      FormulaGraph.Snapshot first = graph.snapshot();
+      graph.set("a", 5.0);
+      graph.define("c", new Formula("b*2.0"));
+      graph.define("b", new Formula("a-1.0"));
+      assertSame(first, graph.snapshot());
+      graph.recompute();
+      FormulaGraph.Snapshot second = graph.snapshot();
+      assertEquals(1.0, first.get("a"));
+      assertEquals(2.0, first.get("b"));
+      assertFalse(first.contains(Variable.of("c")));
+      assertThrows(InvalidParameterException.class, () -> first.get("c"));
+      assertEquals(4.0, second.get("b"));
+      assertEquals(8.0, second.get("c"));
+      assertEquals(first.getVersion() + 1, second.getVersion());
+      graph.remove("a");
+      graph.recompute();
+      assertEquals(8.0, second.get("c"));
+      assertTrue(Double.isNaN(graph.snapshot().get("c")));
+   }
+
+   @Test
+   void longChains () {
+      int n = 20000;
+      FormulaGraph graph = new FormulaGraph(POOL);
+      graph.set("n0", 0.0);
+      for (int i = 1; i < n; i++) graph.define("n" + i, new Formula("n" + (i - 1) + "+1.0"));
+      assertEquals(n - 1, graph.get("n" + (n - 1)));
+      // every walk goes the whole length of the chain: dirty marking, level change and the cycle check
+      graph.set("n0", 1.0);
+      assertEquals(n - 1, graph.getDirtyCount());
+      assertEquals(n, graph.get("n" + (n - 1)));
+      graph.define("start", new Formula("n0*2.0"));
+      graph.define("n1", new Formula("start+1.0"));
+      assertEquals(n + 1, graph.get("n" + (n - 1)));
+      assertThrows(InvalidParameterException.class, () -> graph.define("n0", new Formula("n" + (n - 1) + "-1.0")));
+      graph.set("n0", 2.0);
+      assertEquals(n + 3, graph.get("n" + (n - 1)));
+   }
+}
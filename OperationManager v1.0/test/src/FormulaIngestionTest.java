@@ -0,0 +1,89 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bulk ingestion: every line gets its own Result, in input order, and invalid lines never abort the run.
+ */
+class FormulaIngestionTest {
+   private static List<FormulaIngestion.Result> ingest (FormulaIngestion ingestion, List<String> lines) {
+      ArrayList<FormulaIngestion.Result> ans = new ArrayList<FormulaIngestion.Result>();
+      assertEquals(ingestion.ingest(lines, ans::add), ans.size());
+      return ans;
+   }
+
+   @Test
+   void invalidLinesGetTheirOwnResult () {
+      List<FormulaIngestion.Result> results = ingest(new FormulaIngestion(), Arrays.asList("x+1.0", "x+$", "y*2", "((x", "$", "  ", "sin(x)"));
+      assertEquals(6, results.size());
+      assertTrue(results.get(0).isValid());
+      assertFalse(results.get(1).isValid());
+      assertEquals(2, results.get(1).getLine());
+      assertEquals(2, results.get(1).getErrorPosition());
+      assertTrue(results.get(2).isValid());
+      assertFalse(results.get(3).isValid());
+      assertEquals(3, results.get(3).getErrorPosition());
+      assertFalse(results.get(4).isValid());
+      assertEquals(0, results.get(4).getErrorPosition());
+      assertEquals(7, results.get(5).getLine());
+      assertTrue(results.get(5).isValid());
+      assertNull(results.get(0).getMessage());
+   }
+
+   @Test
+   void messageMatchesConstructor () {
+      FormulaIngestion.Result r = ingest(new FormulaIngestion(), Arrays.asList("x*$")).get(0);
+      try {
+         new Formula("x*$");
+      }
+      catch (RuntimeException e) {
+         assertEquals(e.getMessage(), r.getMessage());
+         return;
+      }
+      throw new AssertionError("x*$ was accepted by the Formula constructor");
+   }
+
+   @Test
+   void orderIsKeptAcrossChunks () {
+      ArrayList<String> lines = new ArrayList<String>();
+      for (int i = 0; i < 10_000; i++) lines.add(i % 7 == 0 ? "x+$" + i : "x*" + i + ".0");
+      List<FormulaIngestion.Result> results = ingest(new FormulaIngestion(16, 4, Runnable::run), lines);
+      assertEquals(lines.size(), results.size());
+      for (int i = 0; i < lines.size(); i++) {
+         assertEquals(i + 1, results.get(i).getLine());
+         assertEquals(i % 7 != 0, results.get(i).isValid(), lines.get(i));
+      }
+   }
+
+   private static String repeat (String s, int n) {
+      StringBuilder ans = new StringBuilder();
+      for (int i = 0; i < n; i++) ans.append(s);
+      return ans.toString();
+   }
+
+   @Test
+   void deepLinesAreRejectedWithoutStoppingTheRun () {
+      int max = CompiledFormula.MAX_DEPTH;
+      String nested = repeat("(", 2000) + "x" + repeat(")", 2000);
+      String chain = "x" + repeat("+x", max);
+      List<FormulaIngestion.Result> results = ingest(new FormulaIngestion(2, 2, Runnable::run), Arrays.asList("x+1.0", nested, "y*2.0", chain, "sin(x)"));
+      assertEquals(5, results.size());
+      assertTrue(results.get(0).isValid());
+      assertFalse(results.get(1).isValid());
+      assertEquals(max, results.get(1).getErrorPosition());
+      assertEquals("at most " + max + " nested parentheses", results.get(1).getExpected());
+      assertTrue(results.get(2).isValid());
+      assertFalse(results.get(3).isValid());
+      assertEquals(chain.length(), results.get(3).getErrorPosition());
+      assertTrue(results.get(4).isValid());
+      assertEquals(Math.sin(0.5), results.get(4).getFormula().evaluate(0.5, 0.0));
+   }
+}
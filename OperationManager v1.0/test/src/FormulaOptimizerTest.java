@@ -0,0 +1,64 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every rewrite of FormulaOptimizer must give bit for bit the same result as the tree it replaces.
+ */
+class FormulaOptimizerTest {
+   private static final double [] SPECIAL = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0, 1.0, -1.0, 2.0, 0.5, Double.MIN_VALUE, Double.MAX_VALUE};
+
+   private static void assertSameResults (String source) {
+      CompiledFormula c = new Formula(source).compile();
+      CompiledFormula o = c.optimize();
+      for (double x : SPECIAL) {
+         for (double y : SPECIAL) assertEquals(c.evaluate(x, y), o.evaluate(x, y), source + " at " + x + ", " + y);
+      }
+   }
+
+   private static void assertOptimizedTo (String source, String expected) {
+      assertEquals(expected, new Formula(source).compile().optimize().toString(), source);
+      assertSameResults(source);
+   }
+
+   @Test
+   void identities () {
+      assertOptimizedTo("x-0.0", "x");
+      assertOptimizedTo("x+(-0.0)", "x");
+      assertOptimizedTo("(-0.0)+x", "x");
+      assertOptimizedTo("x*1.0", "x");
+      assertOptimizedTo("1.0*x", "x");
+      assertOptimizedTo("x/1.0", "x");
+      assertOptimizedTo("x^1.0", "x");
+      assertOptimizedTo("y^2.0", "(y*y)");
+      assertOptimizedTo("sin(1.0)+x*(2.0*3.0)", "(" + Math.sin(1.0) + "+(x*6.0))");
+   }
+
+   @Test
+   void zeroExponentIsOneEvenForNaN () {
+      assertOptimizedTo("x^0.0", "1.0");
+      assertOptimizedTo("x^(-0.0)", "1.0");
+      assertEquals(1.0, new Formula("x^0").compile().optimize().evaluate(Double.NaN, 0.0));
+   }
+
+   @Test
+   void rewritesThatWouldChangeTheResultAreKept () {
+      // x*0.0 is NaN for NaN and infinite x, and -0.0 for negative x
+      assertOptimizedTo("x*0.0", "(x*0.0)");
+      assertOptimizedTo("0.0*x", "(0.0*x)");
+      assertEquals(Double.NaN, new Formula("x*0").compile().optimize().evaluate(Double.POSITIVE_INFINITY, 0.0));
+      assertEquals(-0.0, new Formula("x*0").compile().optimize().evaluate(-1.0, 0.0));
+      // x+0.0 turns -0.0 into 0.0, x-(-0.0) does the same
+      assertOptimizedTo("x+0.0", "(x+0.0)");
+      assertOptimizedTo("x-(-0.0)", "(x--0.0)");
+      assertOptimizedTo("(x*2.0)*3.0", "((x*2.0)*3.0)");
+      assertOptimizedTo("x^2.0*y", "((x*x)*y)");
+   }
+
+   @Test
+   void optimizedMatchesTree () {
+      for (String source : CompiledFormulaTest.FORMULAS) assertSameResults(source);
+   }
+}
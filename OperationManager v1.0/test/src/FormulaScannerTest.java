@@ -0,0 +1,165 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Number literals of the scanner against Double.parseDouble, and the error positions of the Formula constructor.
+ */
+class FormulaScannerTest {
+   private static double scan (String literal) {
+      FormulaScanner scanner = new FormulaScanner(literal);
+      assertEquals(literal.length(), scanner.scanNumber(literal, 0), literal);
+      return scanner.getNumber();
+   }
+
+   private static void assertParsed (String literal) {
+      assertEquals(Double.parseDouble(literal), scan(literal), literal);
+   }
+
+   @Test
+   void edgeLiterals () {
+      String [] literals = {"0", "0.0", "-0.0", "00012", "1", "-2.5", "0.1", "0.30000000000000004", "123456789012345", "1234567890123456",
+         "9007199254740993", "1e22", "1e23", "1.5e-3", "2E+5", "1e308", "1.7976931348623157E308", "1.8e308", "4.9E-324", "2.4e-324",
+         "2.2250738585072014E-308", "2.225073858507201E-308", "1e-400", "Infinity", "-Infinity", "NaN",
+         "3.141592653589793238462643383279", "0.000000000000000000000000000001", "100000000000000000000000000000000000000000"};
+      for (String literal : literals) assertParsed(literal);
+   }
+
+   @Test
+   void doubleToStringRoundTrips () {
+      Random random = new Random(42);
+      for (int i = 0; i < 200_000; i++) {
+         double d = Double.longBitsToDouble(random.nextLong());
+         if (Double.isNaN(d)) continue;
+         String literal = Double.toString(d);
+         assertEquals(d, scan(literal), literal);
+         assertEquals(d, scanInPlace(literal), literal);
+      }
+   }
+
+   @Test
+   void randomDecimals () {
+      Random random = new Random(7);
+      StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < 200_000; i++) {
+         literal.setLength(0);
+         int digits = 1 + random.nextInt(22);
+         int point = random.nextInt(digits + 1);
+         for (int k = 0; k < digits; k++) {
+            if (k == point && k > 0) literal.append('.');
+            literal.append((char) ('0' + random.nextInt(10)));
+         }
+         if (random.nextInt(3) == 0) literal.append('e').append(random.nextInt(80) - 40);
+         assertParsed(literal.toString());
+      }
+   }
+
+   /** A view that fails if the scanner copies the text out (subSequence or toString). */
+   private static final class NoCopy implements CharSequence {
+      private final String text;
+
+      NoCopy (String text) {this.text = text;}
+
+      public int length () {return text.length();}
+
+      public char charAt (int index) {return text.charAt(index);}
+
+      public CharSequence subSequence (int start, int end) {throw new AssertionError("copied " + text);}
+
+      public String toString () {throw new AssertionError("copied " + text);}
+   }
+
+   /** Literals of up to 19 significant digits must be parsed without copying the text. */
+   private static double scanInPlace (String literal) {
+      FormulaScanner scanner = new FormulaScanner("");
+      assertEquals(literal.length(), scanner.scanNumber(new NoCopy(literal), 0), literal);
+      return scanner.getNumber();
+   }
+
+   @Test
+   void longMantissasAreParsedInPlace () {
+      String [] literals = {"9007199254740993", "9007199254740992.5", "2.2250738585072011e-308", "2.2250738585072012e-308",
+         "4.9406564584124654e-324", "2.4703282292062328e-324", "1.7976931348623158e308", "1.7976931348623159e308",
+         "18446744073709551615", "9999999999999999999", "0.1000000000000000055511151231257827", "1.00000000000000011102230246251565404236316680908203126"};
+      for (String literal : literals) assertParsed(literal);
+      Random random = new Random(5);
+      StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < 200_000; i++) {
+         literal.setLength(0);
+         literal.append((char) ('1' + random.nextInt(9)));
+         int digits = 16 + random.nextInt(4);
+         for (int k = 1; k < digits; k++) literal.append((char) ('0' + random.nextInt(10)));
+         literal.insert(1 + random.nextInt(digits - 1), '.').append('e').append(random.nextInt(660) - 340);
+         String text = literal.toString();
+         assertEquals(Double.parseDouble(text), scanInPlace(text), text);
+      }
+   }
+
+   @Test
+   void invalidNumbers () {
+      FormulaScanner scanner = new FormulaScanner("");
+      assertEquals(-3, scanner.scanNumber("1e", 0));
+      assertEquals(-4, scanner.scanNumber("2e+x", 0));
+      assertEquals(-2, scanner.scanNumber("-.", 0));
+   }
+
+   private static void assertError (String formula, int position) {
+      InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> new Formula(formula), formula);
+      assertTrue(e.getMessage().contains("at position " + position + ":"), formula + ": " + e.getMessage());
+   }
+
+   @Test
+   void errorPositions () {
+      assertError("x+*2", 2);
+      assertError("((x", 3);
+      assertError("x)", 1);
+      assertError("2.0 x", 4);
+      assertError("x* - 2.0", 3);
+      assertError("sin", 3);
+      assertError("", 0);
+   }
+
+   @Test
+   void negativeLiterals () {
+      assertEquals("(x*-2.0)", new Formula("x*-2.0").compile().toString());
+      assertEquals(-6.0, new Formula("3.0*-2.0").solve());
+   }
+
+   private static String repeat (String s, int n) {
+      StringBuilder ans = new StringBuilder();
+      for (int i = 0; i < n; i++) ans.append(s);
+      return ans.toString();
+   }
+
+   @Test
+   void treeDepthMatchesTheCompiledTree () {
+      String [] more = {"x", "((x))", "sin(cos(x))+1.0", "sin x*y", "x^y^2.0*3.0-4.0/y+x", "x+y*(x-y^ln(2.0))", "-1.0*x", "tan(x)*tan(y)^2.0"};
+      for (String [] sources : new String [][] {CompiledFormulaTest.FORMULAS, more}) {
+         for (String source : sources) {
+            FormulaScanner scanner = new FormulaScanner(source);
+            assertTrue(scanner.scan(), source);
+            assertEquals(new Formula(source).compile().getRoot().depth, scanner.getTreeDepth(), source);
+         }
+      }
+   }
+
+   @Test
+   void deepFormulasAreRejected () {
+      int max = CompiledFormula.MAX_DEPTH;
+      assertEquals(1, new Formula(repeat("(", max) + "x" + repeat(")", max)).compile().getRoot().depth);
+      assertError(repeat("(", max + 1) + "x" + repeat(")", max + 1), max);
+      assertError(repeat("(", 5000) + "x" + repeat(")", 5000), max);
+      // a chain of n operands is n levels deep
+      assertEquals(max, new Formula("x" + repeat("-x", max - 1)).compile().getRoot().depth);
+      assertError("x" + repeat("-x", max), 2 * max + 1);
+      assertError(repeat("sin ", max) + "x", 4 * max);
+      InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> new Formula(repeat("(", 2000)));
+      assertTrue(e.getMessage().endsWith("expected at most " + max + " nested parentheses."), e.getMessage());
+   }
+}
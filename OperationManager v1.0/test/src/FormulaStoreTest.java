@@ -0,0 +1,53 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.InvalidParameterException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Records interpreted in place against the compiled formulas they were encoded from, and invalid handles.
+ */
+class FormulaStoreTest {
+   @Test
+   void storedMatchesCompiled () {
+      FormulaStore store = new FormulaStore(4096);
+      long [] handles = new long [CompiledFormulaTest.FORMULAS.length];
+      for (int i = 0; i < handles.length; i++) handles[i] = store.add(new Formula(CompiledFormulaTest.FORMULAS[i]));
+      double [] xs = CompiledFormulaTest.points(5, 30);
+      double [] ys = CompiledFormulaTest.points(6, 30);
+      for (int i = 0; i < handles.length; i++) {
+         CompiledFormula c = new Formula(CompiledFormulaTest.FORMULAS[i]).compile();
+         for (double x : xs) {
+            for (double y : ys) {
+               assertEquals(c.evaluate(x, y), store.evaluate(handles[i], x, y), CompiledFormulaTest.FORMULAS[i]);
+               assertEquals(c.evaluate(x, y), store.evaluate(handles[i], new double [] {x, y}), CompiledFormulaTest.FORMULAS[i]);
+            }
+         }
+      }
+   }
+
+   @Test
+   void deepFormulaGrowsTheStack () {
+      StringBuilder source = new StringBuilder("x");
+      for (int i = 0; i < 40; i++) source.insert(0, "(y+").append(')');
+      FormulaStore store = new FormulaStore();
+      long small = store.add(new Formula("x+y"));
+      long deep = store.add(new Formula("x-" + source));
+      assertEquals(3.0, store.evaluate(small, 1.0, 2.0));
+      assertEquals(new Formula("x-" + source).compile().evaluate(1.0, 2.0), store.evaluate(deep, 1.0, 2.0));
+      assertEquals(3.0, store.evaluate(small, 1.0, 2.0));
+   }
+
+   @Test
+   void invalidHandles () {
+      FormulaStore store = new FormulaStore();
+      long handle = store.add(new Formula("x*y"));
+      long [] invalid = {Long.MIN_VALUE | handle, -1L, handle + 4, handle + (1L << 32), 0xFFFFFFFFL};
+      for (long h : invalid) {
+         assertThrows(InvalidParameterException.class, () -> store.evaluate(h, 1.0, 2.0), Long.toHexString(h));
+         assertThrows(InvalidParameterException.class, () -> store.getStackSize(h), Long.toHexString(h));
+      }
+   }
+}
@@ -0,0 +1,48 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import org.junit.jupiter.api.Test;
+import src.FormulaUtility.Variable;
+
+/**
+ * Interning of named variables.
+ */
+class FormulaUtilityTest {
+   @Test
+   void variablesAreInterned () {
+      assertSame(Variable.X, Variable.of("x"));
+      assertSame(Variable.Y, Variable.of("y"));
+      Variable v = Variable.of("speed_1");
+      assertSame(v, Variable.of("speed_1"));
+      assertSame(v, new Formula("speed_1*2.0").getVariables()[0]);
+      String [] invalid = {"", "1a", "sinx", "NaN", "a b", "a-b"};
+      for (String name : invalid) assertThrows(InvalidParameterException.class, () -> Variable.of(name), name);
+   }
+
+   @Test
+   void unusedNamesAreDropped () throws InterruptedException {
+      // the line fails after its names were read, nothing keeps them
+      for (int i = 0; i < 100; i++) {
+         String source = "unused_" + i + "*2.0+";
+         assertThrows(InvalidParameterException.class, () -> new Formula(source));
+      }
+      Variable kept = Variable.of("kept_name");
+      boolean dropped = false;
+      for (int round = 0; round < 50 && !dropped; round++) {
+         System.gc();
+         Thread.sleep(10);
+         dropped = true;
+         for (int i = 0; i < 100; i++) dropped &= !Variable.isInterned("unused_" + i);
+      }
+      assertTrue(dropped);
+      assertTrue(Variable.isInterned("kept_name"));
+      assertSame(kept, Variable.of("kept_name"));
+      assertTrue(Variable.isInterned("x"));
+      assertFalse(Variable.isInterned("never_read"));
+   }
+}
@@ -0,0 +1,109 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import src.FormulaUtility.Precision;
+import src.FormulaUtility.Variable;
+
+/**
+ * Derivatives against central finite differences for every operation, and the batch paths against the scalar one.
+ */
+class GradientFormulaTest {
+   /** One formula per Operation and SpecialOperation, then mixes of them. */
+   private static final String [] FORMULAS = {
+      "x+y", "x-y", "x*y", "x/y", "x^y", "x^3.0", "2.0^x", "ln(x*y)", "log(x+y)", "sin(x*y)", "cos(x-y)", "tan(x/y)",
+      "sin(x)*cos(y)+ln(x+2.0)-log(y+10.0)+sin(cos(x*y))", "(x+1.0)*(y-2.0)^2.0+sin(x)/(1.0+cos(y)*cos(y))-ln(x*x+1.0)",
+      "x^y-y^x", "x/y/x*y", "tan(x)*tan(y)"
+   };
+
+   /** Central difference of f along one variable, with a step small enough for smooth f on [0.5, 2]. */
+   private static double difference (CompiledFormula f, double x, double y, boolean byX) {
+      double h = 1e-6;
+      if (byX) return (f.evaluate(x + h, y) - f.evaluate(x - h, y)) / (2 * h);
+      return (f.evaluate(x, y + h) - f.evaluate(x, y - h)) / (2 * h);
+   }
+
+   private static void assertClose (double expected, double actual, String message) {
+      assertTrue(Math.abs(expected - actual) <= 1e-5 * Math.max(1, Math.abs(expected)), message + ": expected " + expected + " but was " + actual);
+   }
+
+   @Test
+   void derivativesMatchFiniteDifferences () {
+      double [] xs = {0.5, 0.7, 1.1, 1.5, 1.9};
+      double [] ys = {0.6, 0.9, 1.3, 2.0};
+      for (String source : FORMULAS) {
+         CompiledFormula f = new Formula(source).compile();
+         GradientFormula g = new GradientFormula(f);
+         for (double x : xs) {
+            for (double y : ys) {
+               double [] ans = g.evaluate(x, y);
+               assertEquals(f.evaluate(x, y), ans[0], source);
+               assertClose(difference(f, x, y, true), ans[1], source + " d/dx at " + x + ", " + y);
+               assertClose(difference(f, x, y, false), ans[2], source + " d/dy at " + x + ", " + y);
+            }
+         }
+      }
+   }
+
+   @Test
+   void powerOfZero () {
+      GradientFormula g = new GradientFormula(new Formula("x^y"));
+      assertArrayEquals(new double [] {0, 0, 0}, g.evaluate(0.0, 2.0));
+      assertArrayEquals(new double [] {0.125, 0.75, 0.125 * Math.log(0.5)}, g.evaluate(0.5, 3.0), 1e-15);
+      double [] root = g.evaluate(0.0, 0.5);
+      assertEquals(0.0, root[0]);
+      assertEquals(Double.POSITIVE_INFINITY, root[1]);
+      assertEquals(0.0, root[2]);
+      // a constant exponent keeps negative bases
+      assertArrayEquals(new double [] {-8.0, 12.0, 0.0}, new GradientFormula(new Formula("x^3.0")).evaluate(-2.0, 5.0));
+   }
+
+   @Test
+   void unusedVariablesHaveZeroDerivative () {
+      double [] ans = new GradientFormula(new Formula("1.0/x")).evaluate(0.0, 3.0);
+      assertEquals(Double.POSITIVE_INFINITY, ans[0]);
+      assertEquals(0.0, ans[2]);
+   }
+
+   @Test
+   void batchMatchesScalar () {
+      int n = CompiledFormula.BATCH_SIZE + 37;
+      double [] xs = CompiledFormulaTest.points(31, n);
+      double [] ys = CompiledFormulaTest.points(32, n);
+      for (Precision p : Precision.values()) {
+         for (String [] sources : new String [][] {FORMULAS, CompiledFormulaTest.FORMULAS}) {
+            for (String source : sources) {
+               GradientFormula g = new GradientFormula(new Formula(source).compile(p));
+               double [] value = new double [n], dx = new double [n], dy = new double [n];
+               g.evaluate(xs, ys, value, dx, dy);
+               Variable [] variables = g.getFormula().getVariables();
+               double [][] columns = new double [variables.length][];
+               double [][] gradient = new double [variables.length][n];
+               for (int k = 0; k < variables.length; k++) columns[k] = variables[k] == Variable.X ? xs : ys;
+               double [] shifted = new double [n];
+               g.evaluate(columns, shifted, gradient, 5, n - 5);
+               double [] frame = new double [variables.length];
+               double [] frameGradient = new double [variables.length];
+               for (int i = 0; i < n; i++) {
+                  String message = source + " " + p + " at " + i;
+                  double [] expected = g.evaluate(xs[i], ys[i]);
+                  assertEquals(expected[0], value[i], message);
+                  assertEquals(expected[1], dx[i], message + " d/dx");
+                  assertEquals(expected[2], dy[i], message + " d/dy");
+                  for (int k = 0; k < frame.length; k++) frame[k] = columns[k][i];
+                  assertEquals(expected[0], g.evaluate(frame, frameGradient), message + " frame");
+                  if (i < 5) continue;
+                  assertEquals(expected[0], shifted[i], message + " columns");
+                  for (int k = 0; k < variables.length; k++) {
+                     assertEquals(expected[variables[k] == Variable.X ? 1 : 2], gradient[k][i], message + " columns d/" + variables[k]);
+                     assertEquals(expected[variables[k] == Variable.X ? 1 : 2], frameGradient[k], message + " frame d/" + variables[k]);
+                  }
+               }
+            }
+         }
+      }
+   }
+}
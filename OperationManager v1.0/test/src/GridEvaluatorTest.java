@@ -0,0 +1,68 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.DoubleBuffer;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parallel grids against CompiledFormula.evaluate at every point, including tiles that do not divide the grid.
+ */
+class GridEvaluatorTest {
+   private static void assertGrid (CompiledFormula f, double [] grid, double xMin, double xMax, int xResolution, double yMin, double yMax, int yResolution) {
+      for (int j = 0; j < yResolution; j++) {
+         double y = GridEvaluator.coordinate(yMin, yMax, yResolution, j);
+         for (int i = 0; i < xResolution; i++) {
+            double x = GridEvaluator.coordinate(xMin, xMax, xResolution, i);
+            assertEquals(f.evaluate(x, y), grid[j * xResolution + i], f + " at column " + i + ", row " + j);
+         }
+      }
+   }
+
+   @Test
+   void gridMatchesPointwise () {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+         for (String source : CompiledFormulaTest.FORMULAS) {
+            CompiledFormula f = new Formula(source).compile();
+            // 37 * 53 points in tiles of at most 100: rows and columns are split unevenly
+            double [] grid = new GridEvaluator(f, pool, 100).evaluate(-2.0, 3.0, 37, -1.5, 2.5, 53);
+            assertGrid(f, grid, -2.0, 3.0, 37, -1.5, 2.5, 53);
+         }
+      }
+      finally {
+         pool.shutdown();
+      }
+   }
+
+   @Test
+   void wideRowsAreSplitByColumn () {
+      CompiledFormula f = new Formula(CompiledFormulaTest.FORMULAS[2]).compile();
+      double [] grid = new GridEvaluator(f, ForkJoinPool.commonPool(), 7).evaluate(0.0, 1.0, 1001, 5.0, 5.0, 1);
+      assertGrid(f, grid, 0.0, 1.0, 1001, 5.0, 5.0, 1);
+   }
+
+   @Test
+   void bufferMatchesArray () {
+      CompiledFormula f = new Formula(CompiledFormulaTest.FORMULAS[1]).compile();
+      GridEvaluator g = new GridEvaluator(f, ForkJoinPool.commonPool(), 64);
+      double [] expected = g.evaluate(-1.0, 1.0, 101, -1.0, 1.0, 99);
+      DoubleBuffer buffer = DoubleBuffer.allocate(expected.length + 5);
+      buffer.position(3);
+      g.evaluate(-1.0, 1.0, 101, -1.0, 1.0, 99, buffer);
+      assertEquals(3, buffer.position());
+      for (int i = 0; i < expected.length; i++) assertEquals(expected[i], buffer.get(i), "index " + i);
+   }
+
+   @Test
+   void invalidSizes () {
+      GridEvaluator g = new GridEvaluator(new Formula("x+y").compile());
+      assertThrows(InvalidParameterException.class, () -> g.evaluate(0, 1, 0, 0, 1, 10));
+      assertThrows(InvalidParameterException.class, () -> g.evaluate(0, 1, 1 << 16, 0, 1, 1 << 16));
+      assertThrows(InvalidParameterException.class, () -> g.evaluate(0, 1, 10, 0, 1, 10, new double [99]));
+      assertThrows(InvalidParameterException.class, () -> new GridEvaluator(new Formula("x").compile(), ForkJoinPool.commonPool(), 0));
+   }
+}
@@ -0,0 +1,101 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every rule against integrals known in closed form, and the converged flag when the evaluation budget runs out.
+ */
+class IntegratorTest {
+   private static final ForkJoinPool POOL = new ForkJoinPool(4);
+   private static final double TOLERANCE = 1e-10;
+
+   /** Formula, a, b, y and the integral over x in [a, b]. */
+   private static final Object [][] INTEGRALS = {
+      {"sin(x)", 0.0, Math.PI, 0.0, 2.0},
+      {"x^2.0", 0.0, 3.0, 0.0, 9.0},
+      {"1.0/(1.0+x*x)", 0.0, 1.0, 0.0, Math.PI / 4},
+      {"ln(x)", 1.0, Math.E, 0.0, 1.0},
+      {"x*y", 0.0, 2.0, 3.0, 6.0},
+      {"cos(x*y)", 0.0, 1.0, 20.0, Math.sin(20.0) / 20.0}
+   };
+
+   /** Formula, xMin, xMax, yMin, yMax and the integral over the rectangle. */
+   private static final Object [][] CUBATURES = {
+      {"x*y", 0.0, 1.0, 0.0, 2.0, 1.0},
+      {"sin(x)*cos(y)", 0.0, Math.PI, 0.0, Math.PI / 2, 2.0},
+      {"x^2.0+y^2.0", -1.0, 1.0, -1.0, 1.0, 8.0 / 3},
+      {"2.718281828459045^(x+y)", 0.0, 1.0, 0.0, 1.0, (Math.E - 1) * (Math.E - 1)}
+   };
+
+   @AfterAll
+   static void shutdown () {
+      POOL.shutdown();
+   }
+
+   private static void assertIntegral (double expected, Integrator.Result r, String message) {
+      assertTrue(r.converged, message + ": " + r);
+      assertEquals(expected, r.value, 10 * TOLERANCE, message + ": " + r);
+      assertTrue(r.error <= TOLERANCE, message + ": " + r);
+   }
+
+   @Test
+   void gaussKronrodKnownIntegrals () {
+      for (Object [] c : INTEGRALS) {
+         Integrator integrator = new Integrator(new Formula((String) c[0]).compile(), POOL);
+         assertIntegral((double) c[4], integrator.gaussKronrod((double) c[1], (double) c[2], (double) c[3], TOLERANCE, Integrator.DEFAULT_MAX_EVALUATIONS), (String) c[0]);
+      }
+      assertEquals(2.0, new Integrator(new Formula("sin(x)")).integrate(0.0, Math.PI, TOLERANCE).value, 10 * TOLERANCE);
+   }
+
+   @Test
+   void simpsonKnownIntegrals () {
+      for (Object [] c : INTEGRALS) {
+         Integrator integrator = new Integrator(new Formula((String) c[0]).compile(), POOL);
+         assertIntegral((double) c[4], integrator.simpson((double) c[1], (double) c[2], (double) c[3], TOLERANCE, Integrator.DEFAULT_MAX_EVALUATIONS), (String) c[0]);
+      }
+   }
+
+   @Test
+   void cubatureKnownIntegrals () {
+      for (Object [] c : CUBATURES) {
+         Integrator integrator = new Integrator(new Formula((String) c[0]).compile(), POOL);
+         assertIntegral((double) c[5], integrator.cubature((double) c[1], (double) c[2], (double) c[3], (double) c[4], TOLERANCE, Integrator.DEFAULT_MAX_EVALUATIONS), (String) c[0]);
+      }
+   }
+
+   @Test
+   void exhaustedBudgetIsNotConverged () {
+      Integrator integrator = new Integrator(new Formula("sin(x*200.0)*cos(y*150.0)").compile(), POOL);
+      Integrator.Result [] results = {
+         integrator.gaussKronrod(0.0, 10.0, 0.3, 1e-12, 100),
+         integrator.simpson(0.0, 10.0, 0.3, 1e-12, 100),
+         integrator.cubature(0.0, 10.0, 0.0, 10.0, 1e-12, 200)
+      };
+      for (Integrator.Result r : results) {
+         assertFalse(r.converged, r.toString());
+         assertTrue(r.toString().endsWith("not converged)"), r.toString());
+      }
+      // evaluations are reserved before they are made, so the budget is never exceeded
+      assertTrue(results[0].evaluations <= 100, results[0].toString());
+      assertTrue(results[1].evaluations <= 100, results[1].toString());
+      assertTrue(results[2].evaluations <= 200, results[2].toString());
+   }
+
+   @Test
+   void invalidArguments () {
+      Integrator integrator = new Integrator(new Formula("x").compile(), POOL);
+      assertThrows(InvalidParameterException.class, () -> integrator.gaussKronrod(1.0, 0.0, 0.0, TOLERANCE, 1000));
+      assertThrows(InvalidParameterException.class, () -> integrator.gaussKronrod(0.0, Double.POSITIVE_INFINITY, 0.0, TOLERANCE, 1000));
+      assertThrows(InvalidParameterException.class, () -> integrator.simpson(0.0, 1.0, 0.0, 0.0, 1000));
+      assertThrows(InvalidParameterException.class, () -> integrator.cubature(0.0, 1.0, 0.0, 1.0, TOLERANCE, 16));
+      assertThrows(InvalidParameterException.class, () -> new Integrator(new Formula("x*rate").compile(), POOL));
+   }
+}
@@ -0,0 +1,70 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Soundness of the bounds: every value the formula takes at a sampled point of the box lies within them.
+ */
+class IntervalFormulaTest {
+   private static final String [] MORE_FORMULAS = {"x^y", "y^x", "x^3.0", "x^-2.0", "x^0.5", "x^-0.5", "tan(x)", "tan(x*y)", "cos(x)-sin(y)", "log(x*y)", "(x-1.0)^(y+0.5)"};
+   private static final double INF = Double.POSITIVE_INFINITY;
+
+   private static void assertContains (CompiledFormula f, double [] bounds, double x, double y, String box) {
+      double v = f.evaluate(x, y);
+      if (Double.isNaN(v)) return;
+      assertTrue(bounds[0] <= v && v <= bounds[1], f + " = " + v + " at " + x + ", " + y + " outside [" + bounds[0] + ", " + bounds[1] + "] over " + box);
+   }
+
+   /** Samples the corners, the middle and random points of the box. */
+   private static void checkBox (CompiledFormula f, IntervalFormula interval, double xMin, double xMax, double yMin, double yMax, Random random) {
+      double [] bounds = interval.evaluate(xMin, xMax, yMin, yMax);
+      String box = "[" + xMin + ", " + xMax + "] x [" + yMin + ", " + yMax + "]";
+      double [] xs = {xMin, xMax, xMin + (xMax - xMin) / 2};
+      double [] ys = {yMin, yMax, yMin + (yMax - yMin) / 2};
+      for (double x : xs) {
+         for (double y : ys) assertContains(f, bounds, x, y, box);
+      }
+      for (int i = 0; i < 30; i++) assertContains(f, bounds, xMin + random.nextDouble() * (xMax - xMin), yMin + random.nextDouble() * (yMax - yMin), box);
+   }
+
+   private static void checkRandomBoxes (String source) {
+      CompiledFormula f = new Formula(source).compile();
+      IntervalFormula interval = new IntervalFormula(f);
+      Random random = new Random(source.hashCode());
+      double [] ends = CompiledFormulaTest.points(source.hashCode(), 40);
+      for (int i = 0; i + 3 < ends.length; i += 2) {
+         double x0 = ends[i], x1 = ends[i + 1], y0 = ends[i + 2], y1 = ends[i + 3];
+         checkBox(f, interval, Math.min(x0, x1), Math.max(x0, x1), Math.min(y0, y1), Math.max(y0, y1), random);
+         checkBox(f, interval, x0, x0, y0, y0, random);
+      }
+   }
+
+   @Test
+   void boundsContainSampledValues () {
+      for (String source : CompiledFormulaTest.FORMULAS) checkRandomBoxes(source);
+      for (String source : MORE_FORMULAS) checkRandomBoxes(source);
+   }
+
+   @Test
+   void infiniteExponentsWithNegativeBases () {
+      CompiledFormula f = new Formula("x^y").compile();
+      IntervalFormula interval = new IntervalFormula(f);
+      double [][] bases = {{-3.0, -2.0}, {-0.5, -0.25}, {-3.0, 0.5}, {-0.5, 0.5}, {-2.0, -1.0}, {-1.0, 2.0}, {0.0, 0.0}, {-INF, -2.0}};
+      for (double y : new double [] {INF, -INF}) {
+         for (double [] base : bases) {
+            double [] bounds = interval.evaluate(base[0], base[1], y, y);
+            for (int i = 0; i <= 16; i++) assertContains(f, bounds, base[0] + i * ((base[1] - base[0]) / 16), y, "[" + base[0] + ", " + base[1] + "], y = " + y);
+            assertContains(f, bounds, base[1], y, "[" + base[0] + ", " + base[1] + "], y = " + y);
+         }
+      }
+      double [] bounds = interval.evaluate(-3.0, -2.0, INF, INF);
+      assertEquals(INF, bounds[0]);
+      assertEquals(0.0, interval.evaluate(-0.5, -0.25, INF, INF)[1]);
+      assertTrue(IntervalFormula.isEmpty(interval.evaluate(-1.0, -1.0, INF, INF)));
+      assertTrue(IntervalFormula.isEmpty(interval.evaluate(-2.0, -1.5, 0.5, 0.5)));
+   }
+}
@@ -0,0 +1,115 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Results read back from the output file against CompiledFormula.evaluate on the same pairs.
+ */
+class MappedFileEvaluatorTest {
+   private static final CompiledFormula FORMULA = new Formula("sin(x)*y+x/(y+2.0)").compile();
+
+   @TempDir
+   Path dir;
+
+   private static double [] read (Path file) throws IOException {
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+      double [] ans = new double [bytes.remaining() / 8];
+      bytes.asDoubleBuffer().get(ans);
+      return ans;
+   }
+
+   private static void assertResults (double [] xs, double [] ys, double [] results) {
+      assertEquals(xs.length, results.length);
+      for (int i = 0; i < xs.length; i++) assertEquals(FORMULA.evaluate(xs[i], ys[i]), results[i], "pair " + i);
+   }
+
+   private long csv (String text, int windowSize) throws IOException {
+      Path input = dir.resolve("in.csv");
+      Files.write(input, text.getBytes(StandardCharsets.US_ASCII));
+      return new MappedFileEvaluator(FORMULA, windowSize).evaluateCsv(input, dir.resolve("out.bin"));
+   }
+
+   @Test
+   void csvLinesSpanningWindows () throws IOException {
+      Random random = new Random(3);
+      int n = 5000;
+      double [] xs = new double [n];
+      double [] ys = new double [n];
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextGaussian() * 100;
+         ys[i] = random.nextInt(1000) - 500;
+         if (i % 7 == 0) text.append(i % 2 == 0 ? "\r\n" : "  \n");
+         text.append(' ').append(xs[i]).append(" , ").append((long) ys[i]).append(i % 3 == 0 ? "\r\n" : "\n");
+      }
+      // about 140 kB through 4 kB windows, so many lines cross a window edge; the last line has no end of line
+      text.setLength(text.length() - (text.charAt(text.length() - 2) == '\r' ? 2 : 1));
+      assertEquals(n, csv(text.toString(), 4096));
+      assertResults(xs, ys, read(dir.resolve("out.bin")));
+   }
+
+   @Test
+   void csvOutputIsExactlyTheResults () throws IOException {
+      Files.write(dir.resolve("out.bin"), new byte [1 << 16]);
+      assertEquals(2, csv("1.0,2.0\n3.0,4.0\n\n", 4096));
+      assertResults(new double [] {1.0, 3.0}, new double [] {2.0, 4.0}, read(dir.resolve("out.bin")));
+   }
+
+   @Test
+   void csvErrorsGiveTheLineNumber () {
+      String [] bad = {"1.0,2.0\r\n\r\n1.0;2.0\r\n", "1.0,2.0\n\n1.0,\n", "1.0,2.0\n\n1.0,2.0,3.0\n", "1.0,2.0\n\nx,2.0"};
+      for (String text : bad) {
+         InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> csv(text, 4096), text);
+         assertEquals("Incorrect numerical value in input at line 3: expected \"x,y\".", e.getMessage(), text);
+      }
+      StringBuilder longLine = new StringBuilder("1.0,2.0\n1.0,");
+      for (int i = 0; i < 5000; i++) longLine.append('0');
+      InvalidParameterException e = assertThrows(InvalidParameterException.class, () -> csv(longLine.toString(), 4096));
+      assertEquals("Incorrect numerical value in input at line 2: line longer than the mapping window.", e.getMessage());
+   }
+
+   @Test
+   void binaryPairs () throws IOException {
+      Random random = new Random(4);
+      int n = 3001;
+      double [] xs = new double [n];
+      double [] ys = new double [n];
+      ByteBuffer bytes = ByteBuffer.allocate(n * 16).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < n; i++) {
+         xs[i] = random.nextDouble() * 10 - 5;
+         ys[i] = random.nextDouble() * 10 - 5;
+         bytes.putDouble(xs[i]).putDouble(ys[i]);
+      }
+      Path input = dir.resolve("in.bin");
+      Files.write(input, bytes.array());
+      assertEquals(n, new MappedFileEvaluator(FORMULA, 4096).evaluateBinary(input, dir.resolve("out.bin")));
+      assertResults(xs, ys, read(dir.resolve("out.bin")));
+
+      Files.write(input, new byte [24]);
+      assertThrows(InvalidParameterException.class, () -> new MappedFileEvaluator(FORMULA).evaluateBinary(input, dir.resolve("out.bin")));
+   }
+
+   @Test
+   void emptyInput () throws IOException {
+      assertEquals(0, csv("", 4096));
+      assertEquals(0, Files.size(dir.resolve("out.bin")));
+      assertEquals(0, csv("\n\r\n  \n", 4096));
+      assertEquals(0, Files.size(dir.resolve("out.bin")));
+      Path input = dir.resolve("in.bin");
+      Files.write(input, new byte [0]);
+      assertEquals(0, new MappedFileEvaluator(FORMULA).evaluateBinary(input, dir.resolve("out.bin")));
+      assertEquals(0, Files.size(dir.resolve("out.bin")));
+   }
+}
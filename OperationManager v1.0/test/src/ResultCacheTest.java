@@ -0,0 +1,126 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Counts, the CLOCK policy and invalidation, on tables small enough to be a single bucket, and the keys that
+ * compare equal as doubles but not as bits.
+ */
+class ResultCacheTest {
+   /** One segment of one bucket: every key goes to the same WAYS slots. */
+   private static ResultCache bucket () {
+      return new ResultCache(ResultCache.WAYS, 1);
+   }
+
+   private static void assertCounts (ResultCache.Memoized m, long hits, long misses) {
+      assertEquals(hits, m.getHitCount(), m.toString());
+      assertEquals(misses, m.getMissCount(), m.toString());
+   }
+
+   @Test
+   void hitsAndMisses () {
+      ResultCache cache = new ResultCache(1024);
+      ResultCache.Memoized m = cache.memoize(new Formula("sin(x)*y"));
+      assertEquals(1.0, m.getHitRate());
+      for (int round = 0; round < 3; round++) {
+         for (int i = 0; i < 10; i++) assertEquals(Math.sin(i) * 2, m.evaluate(i, 2.0));
+      }
+      assertCounts(m, 20, 10);
+      assertEquals(2.0 / 3, m.getHitRate(), 1e-15);
+      assertEquals(10, cache.size());
+      assertEquals(Math.sin(3) * 4, m.applyAsDouble(3.0, 4.0));
+      assertCounts(m, 20, 11);
+      assertEquals(1024, cache.getCapacity());
+      assertEquals(1024L * ResultCache.SLOT_SIZE, cache.getMemoryUsed());
+      assertEquals(0, cache.getEvictionCount());
+   }
+
+   @Test
+   void clockEvictsTheFirstUnreferencedSlot () {
+      ResultCache cache = bucket();
+      ResultCache.Memoized m = cache.memoize(new Formula("x+y"));
+      int ways = ResultCache.WAYS;
+      // keys 0 .. ways - 1 fill the slots in order, none referenced
+      for (int i = 0; i < ways; i++) m.evaluate(i, 0);
+      assertEquals(ways, cache.size());
+      for (int i = 0; i < ways / 2; i++) m.evaluate(i, 0);
+      assertCounts(m, ways / 2, ways);
+      // the hand clears the referenced slots 0 .. ways / 2 - 1 and evicts key ways / 2
+      m.evaluate(ways, 0);
+      assertEquals(1, cache.getEvictionCount());
+      assertEquals(ways, cache.size());
+      for (int i = 0; i <= ways; i++) {
+         if (i != ways / 2) m.evaluate(i, 0);
+      }
+      assertCounts(m, ways / 2 + ways, ways + 1);
+      m.evaluate(ways / 2, 0);
+      assertCounts(m, ways / 2 + ways, ways + 2);
+      // every slot was referenced: the hand went around once, clearing them, and took the slot after the last victim
+      assertEquals(2, cache.getEvictionCount());
+      m.evaluate(ways / 2 + 1, 0);
+      assertCounts(m, ways / 2 + ways, ways + 3);
+      assertEquals(ways, cache.size());
+   }
+
+   @Test
+   void invalidateById () {
+      ResultCache cache = new ResultCache(1 << 16, 4);
+      CompiledFormula f = new Formula("x*y").compile();
+      ResultCache.Memoized a = cache.memoize(f), b = cache.memoize(f);
+      for (int i = 0; i < 20; i++) {
+         a.evaluate(i, 1.0);
+         b.evaluate(i, 1.0);
+      }
+      assertCounts(a, 0, 20);
+      assertCounts(b, 0, 20);
+      assertEquals(40, cache.size());
+      a.invalidate();
+      assertEquals(20, cache.size());
+      for (int i = 0; i < 20; i++) {
+         a.evaluate(i, 1.0);
+         b.evaluate(i, 1.0);
+      }
+      assertCounts(a, 0, 40);
+      assertCounts(b, 20, 20);
+      cache.invalidateAll();
+      assertEquals(0, cache.size());
+      b.evaluate(0, 1.0);
+      assertCounts(b, 20, 21);
+      assertEquals(0, cache.getEvictionCount());
+   }
+
+   @Test
+   void keysCompareBits () {
+      ResultCache cache = bucket();
+      ResultCache.Memoized m = cache.memoize(new Formula("x"));
+      assertEquals(0.0, m.evaluate(0.0, 0.0));
+      assertEquals(-0.0, m.evaluate(-0.0, 0.0));
+      assertCounts(m, 0, 2);
+      assertEquals(-0.0, m.evaluate(-0.0, 0.0));
+      assertEquals(0.0, m.evaluate(0.0, 0.0));
+      assertCounts(m, 2, 2);
+      double payload = Double.longBitsToDouble(0x7ff8000000000123L);
+      assertTrue(Double.isNaN(m.evaluate(Double.NaN, 0.0)));
+      assertTrue(Double.isNaN(m.evaluate(payload, 0.0)));
+      assertCounts(m, 2, 4);
+      // NaN results are cached, and come back as Double.NaN
+      assertEquals(Double.doubleToRawLongBits(Double.NaN), Double.doubleToRawLongBits(m.evaluate(payload, 0.0)));
+      assertTrue(Double.isNaN(m.evaluate(Double.NaN, 0.0)));
+      assertCounts(m, 4, 4);
+      assertEquals(0.0, m.evaluate(0.0, -0.0));
+      assertCounts(m, 4, 5);
+   }
+
+   @Test
+   void invalidArguments () {
+      assertThrows(InvalidParameterException.class, () -> new ResultCache(ResultCache.WAYS - 1));
+      assertThrows(InvalidParameterException.class, () -> new ResultCache(64, 0));
+      assertThrows(InvalidParameterException.class, () -> bucket().memoize(new Formula("x*rate")));
+      assertEquals(64, new ResultCache(33, 1000).getCapacity());
+   }
+}
@@ -0,0 +1,75 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.InvalidParameterException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Vector lanes against the scalar batch path of CompiledFormula, on lengths that leave a scalar tail.
+ */
+class VectorFormulaTest {
+   private static final String [] EXACT = {"2.0*x+y-3.5*x*y+x/y", "x-y-x-y+1.0", "x/y/x*y", "((((x+1.0)*y+2.0)*x+3.0)*y+4.0)", "1.0/(x-y)", "5.0", "x*-2.0+y*-0.5"};
+
+   private static int [] lengths () {
+      int lanes = VectorFormula.getLanes();
+      return new int [] {0, 1, lanes - 1, lanes, lanes + 3, CompiledFormula.BATCH_SIZE + lanes + 1, 3 * CompiledFormula.BATCH_SIZE - 1};
+   }
+
+   /**
+    * Equal, both NaN, or within a few ulps: the vector math library may differ from Math in the last digit.
+    */
+   private static void assertClose (double expected, double actual, String message) {
+      if (Double.isNaN(expected) || Double.isInfinite(expected) || expected == 0.0) {
+         assertEquals(expected, actual, message);
+         return;
+      }
+      assertTrue(Math.abs(expected - actual) <= 4 * Math.ulp(expected), message + ": expected " + expected + " but was " + actual);
+   }
+
+   private static void check (String source, boolean exact) {
+      CompiledFormula c = new Formula(source).compile();
+      VectorFormula v = new VectorFormula(c);
+      for (int length : lengths()) {
+         int offset = 5;
+         double [] xs = CompiledFormulaTest.points(13, offset + length);
+         double [] ys = CompiledFormulaTest.points(14, offset + length);
+         double [] expected = new double [xs.length];
+         double [] actual = new double [xs.length];
+         c.evaluate(xs, ys, expected, offset, length);
+         v.evaluate(xs, ys, actual, offset, length);
+         for (int i = 0; i < offset; i++) assertEquals(0.0, actual[i], source + " wrote before the offset");
+         for (int i = offset; i < xs.length; i++) {
+            String message = source + " at " + i + " of " + length;
+            if (exact) assertEquals(expected[i], actual[i], message);
+            else assertClose(expected[i], actual[i], message);
+         }
+      }
+   }
+
+   @Test
+   void arithmeticIsExact () {
+      for (String source : EXACT) check(source, true);
+   }
+
+   @Test
+   void mathLibraryIsClose () {
+      for (String source : CompiledFormulaTest.FORMULAS) check(source, false);
+   }
+
+   @Test
+   void columnsMatchFrames () {
+      CompiledFormula c = new Formula("rate*time-offset/(time+2.0)").compile();
+      VectorFormula v = new VectorFormula(c);
+      int n = CompiledFormula.BATCH_SIZE + VectorFormula.getLanes() + 1;
+      double [][] columns = {CompiledFormulaTest.points(15, n), CompiledFormulaTest.points(16, n), CompiledFormulaTest.points(17, n)};
+      double [] expected = new double [n];
+      double [] actual = new double [n];
+      c.evaluate(columns, expected, 0, n);
+      v.evaluate(columns, actual, 0, n);
+      for (int i = 0; i < n; i++) assertEquals(expected[i], actual[i], "point " + i);
+      assertThrows(InvalidParameterException.class, () -> v.evaluate(columns[0], columns[1], actual, 0, n));
+   }
+}
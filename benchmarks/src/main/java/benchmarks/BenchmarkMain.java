@@ -0,0 +1,24 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Runs the benchmarks selected on the command line (all by default)
+ * with the GC profiler, so every result also reports allocation rate (gc.alloc.rate.norm = bytes per operation).
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regexp]
+ */
+public class BenchmarkMain {
+   public static void main (String[] args) throws Exception {
+      CommandLineOptions commandLine = new CommandLineOptions(args);
+      Options options = new OptionsBuilder()
+         .parent(commandLine)
+         .addProfiler(GCProfiler.class)
+         .build();
+      new Runner(options).run();
+   }
+}
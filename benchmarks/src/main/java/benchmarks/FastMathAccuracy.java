@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+import src.FastMath;
+
+/**
+ * Accuracy harness of FastMath against StrictMath: for every function, the largest error in ulps of the exact result
+ * and the largest error relative to the bound of FastMath (error / (ERROR * max(1, |exact|)), and for tan also times
+ * |cos x|), over random arguments plus the edge cases. Exits with status 1 if a bound is exceeded.
+ * Usage: java -cp benchmarks/target/benchmarks.jar benchmarks.FastMathAccuracy [samples per range]
+ */
+public class FastMathAccuracy {
+   private static boolean failed = false;
+
+   public static void main (String[] args) {
+      int samples = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+      Random random = new Random(42);
+      double [] angles = new double [3 * samples];
+      for (int i = 0; i < samples; i++) {
+         angles[i] = (random.nextDouble() * 2 - 1) * Math.PI;
+         angles[samples + i] = (random.nextDouble() * 2 - 1) * 1000;
+         angles[2 * samples + i] = (random.nextDouble() * 2 - 1) * FastMath.REDUCTION_LIMIT;
+      }
+      double [] positives = new double [2 * samples];
+      for (int i = 0; i < samples; i++) {
+         positives[i] = 0.5 + 1.5 * random.nextDouble();
+         positives[samples + i] = Math.pow(2, (random.nextDouble() * 2 - 1) * 1020);
+      }
+      check("sin", FastMath::sin, StrictMath::sin, angles, false);
+      check("cos", FastMath::cos, StrictMath::cos, angles, false);
+      check("tan", FastMath::tan, StrictMath::tan, angles, true);
+      check("ln", FastMath::log, StrictMath::log, positives, false);
+      check("log", FastMath::log10, StrictMath::log10, positives, false);
+      double [] edges = {0.0, -0.0, 1.0, -1.0, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Math.PI, Math.PI / 2, Math.PI / 4, 1e-300,
+         FastMath.REDUCTION_LIMIT, Math.nextUp(FastMath.REDUCTION_LIMIT), 1e22, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      for (double x : edges) {
+         edge("sin", FastMath.sin(x), StrictMath.sin(x), x);
+         edge("cos", FastMath.cos(x), StrictMath.cos(x), x);
+         edge("tan", FastMath.tan(x), StrictMath.tan(x), x);
+         edge("ln", FastMath.log(x), StrictMath.log(x), x);
+         edge("log", FastMath.log10(x), StrictMath.log10(x), x);
+      }
+      System.out.println(failed ? "FAILED" : "OK");
+      if (failed) System.exit(1);
+   }
+
+   private static void check (String name, DoubleUnaryOperator fast, DoubleUnaryOperator exact, double [] xs, boolean tan) {
+      double maxUlps = 0;
+      double maxBound = 0;
+      double worst = 0;
+      for (double x : xs) {
+         double e = exact.applyAsDouble(x);
+         double error = Math.abs(fast.applyAsDouble(x) - e);
+         maxUlps = Math.max(maxUlps, error / Math.ulp(e));
+         double bound = error / (FastMath.ERROR * Math.max(1, Math.abs(e)));
+         if (tan) bound *= Math.abs(StrictMath.cos(x));
+         if (bound > maxBound) {
+            maxBound = bound;
+            worst = x;
+         }
+      }
+      System.out.printf("%-4s max %.2f ulp, %.3f of the bound (at %s)%n", name, maxUlps, maxBound, worst);
+      if (maxBound > 1) failed = true;
+   }
+
+   /**
+    * Edge cases must be handled exactly like StrictMath, where the result is not finite or the argument is out of range.
+    */
+   private static void edge (String name, double fast, double exact, double x) {
+      boolean same = Double.compare(fast, exact) == 0;
+      boolean close = Double.isFinite(exact) && Math.abs(fast - exact) <= FastMath.ERROR * Math.max(1, Math.abs(exact)) / (name.equals("tan") ? Math.abs(StrictMath.cos(x)) : 1);
+      if (!same && !close) {
+         System.out.println(name + "(" + x + ") = " + fast + ", expected " + exact);
+         failed = true;
+      }
+   }
+}
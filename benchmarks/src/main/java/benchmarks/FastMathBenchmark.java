@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CompiledFormula;
+import src.Formula;
+import src.FormulaUtility.Precision;
+
+/**
+ * Batch evaluation of formulas dominated by special operations, at Precision.EXACT against Precision.FAST.
+ * Times are per batch of 4096 points. Accuracy is checked separately by FastMathAccuracy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FastMathBenchmark {
+   private static final int SIZE = 4096;
+
+   @Param({"sin(x)*cos(y)", "tan(x)+tan(y)", "ln(x)+log(y)", "SPECIAL"})
+   public String source;
+
+   @Param({"EXACT", "FAST"})
+   public Precision precision;
+
+   private CompiledFormula compiled;
+   private double [] xs;
+   private double [] ys;
+   private double [] out;
+
+   @Setup
+   public void setup () {
+      compiled = new Formula(source.equals("SPECIAL") ? FormulaSamples.SPECIAL : source).compile(precision);
+      Random random = new Random(42);
+      xs = new double [SIZE];
+      ys = new double [SIZE];
+      out = new double [SIZE];
+      for (int i = 0; i < SIZE; i++) {
+         xs[i] = 0.1 + 4.0 * random.nextDouble();
+         ys[i] = 0.1 + 3.0 * random.nextDouble();
+      }
+   }
+
+   @Benchmark
+   public double [] batch () {
+      compiled.evaluate(xs, ys, out);
+      return out;
+   }
+
+   @Benchmark
+   public double scalar () {
+      double sum = 0;
+      for (int i = 0; i < SIZE; i++) sum += compiled.evaluate(xs[i], ys[i]);
+      return sum;
+   }
+}
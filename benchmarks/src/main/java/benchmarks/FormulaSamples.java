@@ -0,0 +1,25 @@
+package benchmarks;
+
+/**
+ * Formula sources shared by the benchmarks.
+ */
+final class FormulaSamples {
+   static final String SHALLOW = "2.0*x+y-3.5*x*y+x/y";
+   static final String SPECIAL = "sin(x)*cos(y)+ln(x+2.0)-log(y+10.0)+sin(cos(x*y))";
+   static final String MIXED = "(x+1.0)*(y-2.0)^2.0+sin(x)/(1.0+cos(y)*cos(y))-ln(x*x+1.0)";
+
+   private FormulaSamples () {}
+
+   /**
+    * Builds a formula with depth levels of nested parentheses: (((x+1.0)*y+2.0)*x+3.0)...
+    */
+   static String nested (int depth) {
+      StringBuilder ans = new StringBuilder();
+      for (int i = 0; i < depth; i++) ans.append('(');
+      ans.append("x+1.0");
+      for (int i = 0; i < depth; i++) {
+         ans.append(')').append(i % 2 == 0 ? "*y+" : "*x+").append(i + 2).append(".0");
+      }
+      return ans.toString();
+   }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.Formula;
+
+/**
+ * Throughput of new Formula(String).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+   @Param({"shallow", "special", "mixed", "nested16"})
+   public String shape;
+
+   private String source;
+
+   @Setup
+   public void setup () {
+      switch (shape) {
+         case "shallow" : source = FormulaSamples.SHALLOW; break;
+         case "special" : source = FormulaSamples.SPECIAL; break;
+         case "mixed" : source = FormulaSamples.MIXED; break;
+         default : source = FormulaSamples.nested(16);
+      }
+   }
+
+   @Benchmark
+   public Formula parse () {
+      return new Formula(source);
+   }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CompiledFormula;
+import src.Formula;
+import src.ResultCache;
+
+/**
+ * Refresh of a 64 x 64 grid of points, evaluated directly against through a ResultCache large enough to hold
+ * the grid (every refresh after the first is all hits). Times are per refresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultCacheBenchmark {
+   private static final int SIDE = 64;
+
+   @Param({"SHALLOW", "SPECIAL"})
+   public String source;
+
+   private CompiledFormula compiled;
+   private ResultCache.Memoized memoized;
+   private double [] grid;
+
+   @Setup
+   public void setup () {
+      compiled = new Formula(source.equals("SHALLOW") ? FormulaSamples.SHALLOW : FormulaSamples.SPECIAL).compile();
+      memoized = new ResultCache(4 * SIDE * SIDE).memoize(compiled);
+      grid = new double [SIDE];
+      for (int i = 0; i < SIDE; i++) grid[i] = 0.1 + 0.05 * i;
+   }
+
+   @Benchmark
+   public double direct () {
+      double sum = 0;
+      for (double x : grid) {
+         for (double y : grid) sum += compiled.evaluate(x, y);
+      }
+      return sum;
+   }
+
+   @Benchmark
+   public double cached () {
+      double sum = 0;
+      for (double x : grid) {
+         for (double y : grid) sum += memoized.evaluate(x, y);
+      }
+      return sum;
+   }
+}
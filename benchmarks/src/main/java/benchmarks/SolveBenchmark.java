@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CompiledFormula;
+import src.Formula;
+
+/**
+ * Latency of Formula.solve(x, y) for shallow and nested formulas, next to the compiled evaluator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SolveBenchmark {
+   @Param({"0", "2", "8", "32"})
+   public int depth;
+
+   public double x = 1.25;
+   public double y = 0.75;
+
+   private Formula formula;
+   private CompiledFormula compiled;
+
+   @Setup
+   public void setup () {
+      formula = new Formula(depth == 0 ? FormulaSamples.SHALLOW : FormulaSamples.nested(depth));
+      compiled = formula.compile();
+   }
+
+   @Benchmark
+   public double solve () {
+      return formula.solve(x, y);
+   }
+
+   @Benchmark
+   public double compiledEvaluate () {
+      return compiled.evaluate(x, y);
+   }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CompiledFormula;
+import src.Formula;
+
+/**
+ * Latency of formulas dominated by sin, cos, ln and log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpecialOperationBenchmark {
+   public double x = 1.25;
+   public double y = 0.75;
+
+   private Formula formula;
+   private CompiledFormula compiled;
+
+   @Setup
+   public void setup () {
+      formula = new Formula(FormulaSamples.SPECIAL);
+      compiled = formula.compile();
+   }
+
+   @Benchmark
+   public double solve () {
+      return formula.solve(x, y);
+   }
+
+   @Benchmark
+   public double compiledEvaluate () {
+      return compiled.evaluate(x, y);
+   }
+}
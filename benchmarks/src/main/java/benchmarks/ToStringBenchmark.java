@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.Formula;
+
+/**
+ * Cost of Formula.toString and toRangeString, which solve uses on every rewriting step.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ToStringBenchmark {
+   private Formula formula;
+   private int middle;
+
+   @Setup
+   public void setup () {
+      formula = new Formula(FormulaSamples.MIXED);
+      middle = formula.getFunction().length / 2;
+   }
+
+   @Benchmark
+   public String toStringWhole () {
+      return formula.toString();
+   }
+
+   @Benchmark
+   public String toRangeStringHalf () {
+      return formula.toRangeString(0, middle);
+   }
+}
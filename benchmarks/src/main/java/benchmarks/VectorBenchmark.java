@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CompiledFormula;
+import src.Formula;
+import src.VectorFormula;
+
+/**
+ * Batch evaluation over primitive arrays: scalar batch path of CompiledFormula against the Vector API backend.
+ * Times are per batch of size points. The speedup grows with the lane count: 4 doubles on AVX2, 8 on AVX-512.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class VectorBenchmark {
+   @Param({"SHALLOW", "SPECIAL", "MIXED"})
+   public String sample;
+
+   @Param({"1024", "1048576"})
+   public int size;
+
+   private CompiledFormula compiled;
+   private VectorFormula vector;
+   private double [] xs;
+   private double [] ys;
+   private double [] out;
+
+   @Setup
+   public void setup () {
+      String source = sample.equals("SHALLOW") ? FormulaSamples.SHALLOW : sample.equals("SPECIAL") ? FormulaSamples.SPECIAL : FormulaSamples.MIXED;
+      compiled = new Formula(source).compile();
+      vector = new VectorFormula(compiled);
+      Random random = new Random(42);
+      xs = new double [size];
+      ys = new double [size];
+      out = new double [size];
+      for (int i = 0; i < size; i++) {
+         xs[i] = 0.1 + 4.0 * random.nextDouble();
+         ys[i] = 0.1 + 3.0 * random.nextDouble();
+      }
+   }
+
+   @Benchmark
+   public double [] scalarBatch () {
+      compiled.evaluate(xs, ys, out);
+      return out;
+   }
+
+   @Benchmark
+   public double [] vectorBatch () {
+      vector.evaluate(xs, ys, out);
+      return out;
+   }
+}